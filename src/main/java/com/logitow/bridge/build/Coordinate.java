@@ -0,0 +1,204 @@
+package com.logitow.bridge.build;
+
+import com.logitow.bridge.build.block.BlockSide;
+
+import java.io.Serializable;
+
+/**
+ * Immutable block coordinate.
+ * Coordinates can also be packed into a single long, 21 bits per axis, which covers +-1048575 blocks.
+ * The static helpers work on the packed form directly, so hot paths don't need to allocate.
+ */
+public final class Coordinate implements Serializable {
+    /**
+     * The origin of a structure.
+     */
+    public static final Coordinate ZERO = new Coordinate(0, 0, 0);
+
+    /**
+     * Mask of a single packed axis.
+     */
+    private static final long AXIS_MASK = 0x1FFFFFL;
+
+    /**
+     * The smallest coordinate value that can be packed.
+     */
+    public static final int MIN_VALUE = -(1 << 20);
+
+    /**
+     * The largest coordinate value that can be packed.
+     */
+    public static final int MAX_VALUE = (1 << 20) - 1;
+
+    private final int x;
+    private final int y;
+    private final int z;
+
+    private Coordinate(int x, int y, int z) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
+    /**
+     * Gets a coordinate instance.
+     * @param x
+     * @param y
+     * @param z
+     * @return
+     */
+    public static Coordinate of(int x, int y, int z) {
+        if(x == 0 && y == 0 && z == 0) return ZERO;
+        return new Coordinate(x, y, z);
+    }
+
+    /**
+     * Gets a coordinate instance from its packed form.
+     * @param packed
+     * @return
+     */
+    public static Coordinate fromPacked(long packed) {
+        return of(unpackX(packed), unpackY(packed), unpackZ(packed));
+    }
+
+    /**
+     * Packs a coordinate into a long.
+     * @param x
+     * @param y
+     * @param z
+     * @return
+     */
+    public static long pack(int x, int y, int z) {
+        return ((x & AXIS_MASK) << 42) | ((y & AXIS_MASK) << 21) | (z & AXIS_MASK);
+    }
+
+    /**
+     * Gets the x value of a packed coordinate.
+     * @param packed
+     * @return
+     */
+    public static int unpackX(long packed) {
+        return (int) ((packed << 1) >> 43);
+    }
+
+    /**
+     * Gets the y value of a packed coordinate.
+     * @param packed
+     * @return
+     */
+    public static int unpackY(long packed) {
+        return (int) ((packed << 22) >> 43);
+    }
+
+    /**
+     * Gets the z value of a packed coordinate.
+     * @param packed
+     * @return
+     */
+    public static int unpackZ(long packed) {
+        return (int) ((packed << 43) >> 43);
+    }
+
+    /**
+     * Offsets a packed coordinate.
+     * @param packed
+     * @param dx
+     * @param dy
+     * @param dz
+     * @return
+     */
+    public static long offset(long packed, int dx, int dy, int dz) {
+        return pack(unpackX(packed) + dx, unpackY(packed) + dy, unpackZ(packed) + dz);
+    }
+
+    /**
+     * Offsets a packed coordinate by one block in the given direction relative to the structure.
+     * @param packed
+     * @param direction
+     * @return
+     */
+    public static long offset(long packed, BlockSide direction) {
+        switch (direction) {
+            case TOP:
+                return offset(packed, 0, 1, 0);
+            case BOTTOM:
+                return offset(packed, 0, -1, 0);
+            case FRONT:
+                return offset(packed, 0, 0, 1);
+            case BACK:
+                return offset(packed, 0, 0, -1);
+            case LEFT:
+                return offset(packed, 1, 0, 0);
+            case RIGHT:
+                return offset(packed, -1, 0, 0);
+            default:
+                return packed;
+        }
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getZ() {
+        return z;
+    }
+
+    /**
+     * Gets the packed form of the coordinate.
+     * @return
+     */
+    public long pack() {
+        return pack(x, y, z);
+    }
+
+    /**
+     * Gets the sum of this and the given coordinate.
+     * @param b
+     * @return
+     */
+    public Coordinate add(Coordinate b) {
+        if(b == null) return this;
+        return of(x + b.x, y + b.y, z + b.z);
+    }
+
+    /**
+     * Gets the coordinate one block away in the given direction relative to the structure.
+     * @param direction
+     * @return
+     */
+    public Coordinate offset(BlockSide direction) {
+        return fromPacked(offset(pack(), direction));
+    }
+
+    /**
+     * Creates a mutable copy of the coordinate.
+     * @return
+     */
+    public Vec3 toVec3() {
+        return new Vec3(x, y, z);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(obj instanceof Coordinate) {
+            Coordinate c = (Coordinate) obj;
+            return c.x == x && c.y == y && c.z == z;
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(pack());
+    }
+
+    @Override
+    public String toString() {
+        return "x: " + x + " y: " + y + " z: " + z;
+    }
+}
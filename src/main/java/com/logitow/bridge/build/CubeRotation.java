@@ -0,0 +1,267 @@
+package com.logitow.bridge.build;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The 24 rotations of a cube, i.e. every orientation a structure can take using 90 degree turns.
+ * Rotations are referred to by their index in the group, 0 being the identity.
+ * Composition, inversion and the angle conversions are precomputed, so applying a rotation
+ * is a single integer matrix multiplication.
+ *
+ * The axis rotations follow the convention of the structure rotation:
+ * a rotation by angles (x, y, z) turns around the z axis first, then y, then x.
+ */
+public final class CubeRotation {
+    /**
+     * The number of cube rotations.
+     */
+    public static final int COUNT = 24;
+
+    /**
+     * The index of the identity rotation.
+     */
+    public static final int IDENTITY = 0;
+
+    /**
+     * Row major 3x3 matrices of the rotations.
+     */
+    private static final int[][] MATRICES = new int[COUNT][];
+
+    /**
+     * Composition table, COMPOSE[a][b] is the rotation a followed by b.
+     */
+    private static final int[][] COMPOSE = new int[COUNT][COUNT];
+
+    /**
+     * The inverse of every rotation.
+     */
+    private static final int[] INVERSE = new int[COUNT];
+
+    /**
+     * Quarter turns around each axis, AXIS_TURNS[axis][quarters].
+     */
+    private static final int[][] AXIS_TURNS = new int[3][4];
+
+    /**
+     * Angles (x, y, z) producing every rotation, each in 0-270.
+     */
+    private static final int[][] ANGLES = new int[COUNT][];
+
+    static {
+        //Generating the group from the quarter turns around each axis.
+        int[][] generators = {
+                {1,0,0, 0,0,-1, 0,1,0},
+                {0,0,-1, 0,1,0, 1,0,0},
+                {0,-1,0, 1,0,0, 0,0,1}
+        };
+        List<int[]> found = new ArrayList<>();
+        found.add(new int[]{1,0,0, 0,1,0, 0,0,1});
+        for (int i = 0; i < found.size(); i++) {
+            for (int[] generator : generators) {
+                int[] product = multiply(generator, found.get(i));
+                if(indexOf(found, product) < 0) {
+                    found.add(product);
+                }
+            }
+        }
+        found.toArray(MATRICES);
+
+        for (int a = 0; a < COUNT; a++) {
+            for (int b = 0; b < COUNT; b++) {
+                COMPOSE[a][b] = indexOf(found, multiply(MATRICES[b], MATRICES[a]));
+                if(COMPOSE[a][b] == IDENTITY) {
+                    INVERSE[a] = b;
+                }
+            }
+        }
+
+        for (int axis = 0; axis < 3; axis++) {
+            int turn = indexOf(found, generators[axis]);
+            AXIS_TURNS[axis][0] = IDENTITY;
+            for (int quarters = 1; quarters < 4; quarters++) {
+                AXIS_TURNS[axis][quarters] = COMPOSE[AXIS_TURNS[axis][quarters - 1]][turn];
+            }
+        }
+
+        //Preferring the angles with the fewest turns.
+        for (int turns = 0; turns <= 9; turns++) {
+            for (int qx = 0; qx < 4; qx++) {
+                for (int qy = 0; qy < 4; qy++) {
+                    for (int qz = 0; qz < 4; qz++) {
+                        if(qx + qy + qz != turns) continue;
+                        int rotation = fromQuarterTurns(qx, qy, qz);
+                        if(ANGLES[rotation] == null) {
+                            ANGLES[rotation] = new int[]{qx * 90, qy * 90, qz * 90};
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private CubeRotation() {
+    }
+
+    /**
+     * Gets the rotation turning by the given angles, z first, then y, then x.
+     * @param x
+     * @param y
+     * @param z
+     * @return the rotation or -1 if any of the angles isn't a multiple of 90.
+     */
+    public static int fromAngles(int x, int y, int z) {
+        if(x % 90 != 0 || y % 90 != 0 || z % 90 != 0) {
+            return -1;
+        }
+        return fromQuarterTurns(quarters(x), quarters(y), quarters(z));
+    }
+
+    /**
+     * Gets the rotation turning by the given angles, z first, then y, then x.
+     * @param angles
+     * @return the rotation or -1 if any of the angles isn't a multiple of 90.
+     */
+    public static int fromAngles(Vec3 angles) {
+        return fromAngles(angles.getX(), angles.getY(), angles.getZ());
+    }
+
+    /**
+     * Gets the rotation turning around a single axis.
+     * @param axis 0 for x, 1 for y, 2 for z.
+     * @param angle multiple of 90.
+     * @return
+     */
+    public static int fromAxisAngle(int axis, int angle) {
+        return AXIS_TURNS[axis][quarters(angle)];
+    }
+
+    /**
+     * Gets angles producing the given rotation, see fromAngles.
+     * @param rotation
+     * @return
+     */
+    public static Vec3 toAngles(int rotation) {
+        int[] angles = ANGLES[rotation];
+        return new Vec3(angles[0], angles[1], angles[2]);
+    }
+
+    /**
+     * Gets the rotation applying first and then second.
+     * @param first
+     * @param then
+     * @return
+     */
+    public static int compose(int first, int then) {
+        return COMPOSE[first][then];
+    }
+
+    /**
+     * Gets the rotation reverting the given rotation.
+     * @param rotation
+     * @return
+     */
+    public static int inverse(int rotation) {
+        return INVERSE[rotation];
+    }
+
+    /**
+     * Gets an element of the rotation matrix.
+     * @param rotation
+     * @param row
+     * @param column
+     * @return
+     */
+    public static int get(int rotation, int row, int column) {
+        return MATRICES[rotation][row * 3 + column];
+    }
+
+    /**
+     * Rotates a packed coordinate around the origin.
+     * @param rotation
+     * @param packed
+     * @return
+     */
+    public static long apply(int rotation, long packed) {
+        int[] m = MATRICES[rotation];
+        int x = Coordinate.unpackX(packed);
+        int y = Coordinate.unpackY(packed);
+        int z = Coordinate.unpackZ(packed);
+        return Coordinate.pack(
+                m[0] * x + m[1] * y + m[2] * z,
+                m[3] * x + m[4] * y + m[5] * z,
+                m[6] * x + m[7] * y + m[8] * z);
+    }
+
+    /**
+     * Rotates a vector around the origin, in place.
+     * @param rotation
+     * @param v
+     */
+    public static void apply(int rotation, Vec3 v) {
+        if(rotation == IDENTITY) return;
+        int[] m = MATRICES[rotation];
+        int x = v.getX();
+        int y = v.getY();
+        int z = v.getZ();
+        v.set(m[0] * x + m[1] * y + m[2] * z,
+                m[3] * x + m[4] * y + m[5] * z,
+                m[6] * x + m[7] * y + m[8] * z);
+    }
+
+    /**
+     * Gets the rotation turning the given number of quarters around z, then y, then x.
+     * @param qx
+     * @param qy
+     * @param qz
+     * @return
+     */
+    private static int fromQuarterTurns(int qx, int qy, int qz) {
+        return COMPOSE[COMPOSE[AXIS_TURNS[2][qz]][AXIS_TURNS[1][qy]]][AXIS_TURNS[0][qx]];
+    }
+
+    /**
+     * Gets the number of quarter turns of an angle, 0-3.
+     * @param angle
+     * @return
+     */
+    private static int quarters(int angle) {
+        return ((angle / 90) % 4 + 4) % 4;
+    }
+
+    /**
+     * Multiplies two row major 3x3 matrices.
+     * @param a
+     * @param b
+     * @return a * b
+     */
+    private static int[] multiply(int[] a, int[] b) {
+        int[] product = new int[9];
+        for (int row = 0; row < 3; row++) {
+            for (int column = 0; column < 3; column++) {
+                int sum = 0;
+                for (int i = 0; i < 3; i++) {
+                    sum += a[row * 3 + i] * b[i * 3 + column];
+                }
+                product[row * 3 + column] = sum;
+            }
+        }
+        return product;
+    }
+
+    /**
+     * Finds a matrix in the list.
+     * @param matrices
+     * @param matrix
+     * @return the index or -1.
+     */
+    private static int indexOf(List<int[]> matrices, int[] matrix) {
+        for (int i = 0; i < matrices.size(); i++) {
+            if(Arrays.equals(matrices.get(i), matrix)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,26 @@
+package com.logitow.bridge.build;
+
+/**
+ * Bit mixing shared by the fingerprints, the block id filters and the similarity index.
+ */
+public final class Hashing {
+    /**
+     * The golden ratio as a 64 bit fraction, the increment of SplitMix64.
+     */
+    public static final long GAMMA = 0x9E3779B97F4A7C15L;
+
+    private Hashing() {
+    }
+
+    /**
+     * Spreads the bits of a value, the output function of SplitMix64.
+     * A bijection, so distinct values never collide.
+     * @param value
+     * @return
+     */
+    public static long mix(long value) {
+        long hash = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+        return hash ^ (hash >>> 31);
+    }
+}
@@ -1,23 +1,59 @@
 package com.logitow.bridge.build;
 
-import com.google.gson.Gson;
 import com.logitow.bridge.build.block.Block;
+import com.logitow.bridge.build.block.BlockIdMap;
 import com.logitow.bridge.build.block.BlockOperation;
 import com.logitow.bridge.build.block.BlockOperationType;
 import com.logitow.bridge.build.block.BlockSide;
+import com.logitow.bridge.build.block.BlockSnapshot;
+import com.logitow.bridge.build.io.BinaryStructureFormat;
+import com.logitow.bridge.build.io.BlockIdFilter;
+import com.logitow.bridge.build.io.StructureCompression;
+import com.logitow.bridge.build.io.StructureFormat;
+import com.logitow.bridge.build.io.StructureReferenceException;
+import com.logitow.bridge.build.io.StructureMetadata;
+import com.logitow.bridge.build.io.StructurePreview;
+import com.logitow.bridge.build.io.StructureSaveQueue;
+import com.logitow.bridge.build.library.StructureArchive;
+import com.logitow.bridge.build.library.StructureCache;
+import com.logitow.bridge.build.library.StructureCatalog;
+import com.logitow.bridge.build.library.StructureLoadResult;
 import com.logitow.bridge.communication.Device;
 import com.logitow.bridge.event.EventManager;
+import com.logitow.bridge.event.device.block.BlockOperationBatchEvent;
 import com.logitow.bridge.event.device.block.BlockOperationErrorEvent;
 import com.logitow.bridge.event.device.block.BlockOperationEvent;
+import com.logitow.bridge.event.device.block.BlockSubtreeRemovedEvent;
 import com.logitow.bridge.event.structure.StructureLoadEvent;
+import com.logitow.bridge.event.structure.StructureRemoveEvent;
 import com.logitow.bridge.event.structure.StructureSaveEvent;
+import com.logitow.bridge.util.PersistentIntMap;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * Represents a single Logitow structure.
@@ -28,6 +64,16 @@ public class Structure implements Serializable {
      */
     public static Logger logger = LogManager.getLogger(Structure.class);
 
+    /**
+     * Number of blocks from which structure rotations run in parallel.
+     */
+    private static final int PARALLEL_ROTATION_THRESHOLD = 16384;
+
+    /**
+     * The removed ids of an operation which didn't remove any blocks.
+     */
+    private static final int[] NO_REMOVED_BLOCKS = new int[0];
+
     /**
      * Unique id of the structure.
      */
@@ -45,14 +91,128 @@ public class Structure implements Serializable {
 
     /**
      * The current rotation of the structure.
+     * Kept as the angles of the composed rotation, at most one entry.
+     * Older saves may contain the whole rotation history, which is composed on load.
      */
     public ArrayList<Vec3> rotations;
 
+    /**
+     * The composed rotation of the structure, see CubeRotation.
+     */
+    private transient int orientation = CubeRotation.IDENTITY;
+
+    /**
+     * The blocks within this structure indexed by their packed local coords.
+     * Local coords don't change with the structure rotation, so rotating doesn't need to re-key the index.
+     */
+    private transient HashMap<Long, Block> blocksByPosition = new HashMap<>();
+
+    /**
+     * The blocks within this structure indexed by their id.
+     */
+    private transient BlockIdMap blocksById = new BlockIdMap();
+
+    /**
+     * The latest published snapshot of the structure.
+     */
+    private transient volatile StructureSnapshot snapshot;
+
+    /**
+     * The blocks of the next snapshot to publish.
+     */
+    private transient PersistentIntMap<BlockSnapshot> snapshotBlocks = PersistentIntMap.empty();
+
+    /**
+     * Blocks changed since the last published snapshot.
+     */
+    private transient ArrayList<Block> changedBlocks = new ArrayList<>();
+
+    /**
+     * Whether anything changed since the last published snapshot.
+     */
+    private transient boolean snapshotStale;
+
+    /**
+     * Depth of the currently running structure operations, the snapshot is published once it drops to 0.
+     */
+    private transient int operationDepth;
+
+    /**
+     * Blocks removed by the batch being applied, taken out of the block list once the batch ends.
+     * Null unless a batch is being applied.
+     */
+    private transient Set<Block> batchRemovedBlocks;
+
+    /**
+     * The removed ids of every removal of the batch being applied.
+     */
+    private transient ArrayList<int[]> batchRemovedIds;
+
+    /**
+     * The recorded history of the structure, if any.
+     */
+    private transient StructureHistory history;
+
+    /**
+     * Whether the structure is being restored from its history, so the changes aren't recorded again.
+     */
+    private transient boolean restoring;
+
+    /**
+     * The journal of the structure, if any.
+     */
+    private transient StructureJournal journal;
+
     /**
      * The device of the structure.
      */
     public transient Device device;
 
+    /**
+     * The archive structures are saved to instead of the structures directory, if any.
+     */
+    private static StructureArchive archive;
+
+    /**
+     * The save dir of the structure files, created once.
+     */
+    private static File structureSaveDir;
+
+    /**
+     * The catalog of the save dir, opened on first use.
+     */
+    private static volatile StructureCatalog catalog;
+
+    /**
+     * The queue of the background saves, created on first use.
+     */
+    private static StructureSaveQueue saveQueue;
+
+    /**
+     * The cache of the loaded structure files, if any.
+     */
+    private static volatile StructureCache cache = new StructureCache();
+
+    /**
+     * The compression of the saves which don't specify one.
+     */
+    private static volatile StructureCompression compression = StructureCompression.NONE;
+
+    /**
+     * The compression level of the saves which don't specify one.
+     */
+    private static volatile int compressionLevel = StructureCompression.DEFAULT_LEVEL;
+
+    /**
+     * Whether saves of structures with the same blocks as another file of the save dir only reference that file.
+     */
+    private static volatile boolean deduplication;
+
+    /**
+     * The pool reading the files of the bulk loads, created on first use.
+     */
+    private static ForkJoinPool loadPool;
+
     /**
      * Constructs a new structure.
      */
@@ -63,10 +223,11 @@ public class Structure implements Serializable {
         baseBlock.children[2] = -1;
         blocks.add(baseBlock); //Adding the base block.
         Block secondBaseBlock = new Block(-1);
-        secondBaseBlock.localCoords = new Vec3(0,-1,0);
-        secondBaseBlock.coordinate = secondBaseBlock.localCoords.clone();
+        secondBaseBlock.localCoords.set(0,-1,0);
+        secondBaseBlock.coordinate.set(0,-1,0);
         secondBaseBlock.parent = 0;
         blocks.add(secondBaseBlock);
+        rebuildIndexes();
     }
 
     /**
@@ -80,10 +241,11 @@ public class Structure implements Serializable {
         baseBlock.children[2] = -1;
         blocks.add(baseBlock); //Adding the base block.
         Block secondBaseBlock = new Block(-1);
-        secondBaseBlock.localCoords = new Vec3(0,-1,0);
-        secondBaseBlock.coordinate = secondBaseBlock.localCoords.clone();
+        secondBaseBlock.localCoords.set(0,-1,0);
+        secondBaseBlock.coordinate.set(0,-1,0);
         secondBaseBlock.parent = 0;
         blocks.add(secondBaseBlock);
+        rebuildIndexes();
         this.device = device;
     }
 
@@ -91,30 +253,233 @@ public class Structure implements Serializable {
      * Saves a structure to file inside the structure dir of the lib.
      */
     public static void saveToFile(Structure structure) throws IOException {
-        if(structure.customName != null && structure.customName != "") {
-            saveToFile(structure, Paths.get(getStructureSaveDir().getPath(), structure.customName).toString() + ".logitow");
-        } else {
-            saveToFile(structure, Paths.get(getStructureSaveDir().getPath(), structure.uuid.toString()).toString() + ".logitow");
+        if(archive != null) {
+            logger.info("Saving structure: {}, to archive: {}", structure, archive.getFile());
+            archive.put(structure);
+            EventManager.callEvent(new StructureSaveEvent(structure, archive.getFile().getPath()));
+            return;
         }
+        saveToFile(structure, getSavePath(structure));
     }
 
     /**
-     * Saves a structure to file.
+     * Saves a structure to file, in the default format.
      */
     public static void saveToFile(Structure structure, String path) throws IOException {
-        logger.info("Saving structure: {}, to: {}", structure, path);
+        saveToFile(structure, path, StructureFormat.DEFAULT);
+    }
+
+    /**
+     * Saves a structure to file, in the given format, with the default compression.
+     */
+    public static void saveToFile(Structure structure, String path, StructureFormat format) throws IOException {
+        saveToFile(structure, path, format, compression, compressionLevel);
+    }
+
+    /**
+     * Saves a structure to file, in the given format and compression.
+     * @param structure
+     * @param path
+     * @param format
+     * @param compression
+     * @param level the compression level, 0-9 or StructureCompression.DEFAULT_LEVEL.
+     * @throws IOException
+     */
+    public static void saveToFile(Structure structure, String path, StructureFormat format, StructureCompression compression, int level) throws IOException {
+        logger.info("Saving structure: {}, to: {} as {} ({})", structure, path, format, compression);
 
         //Serializing
-        Gson serializer = new Gson();
-        serializer.toJson(structure);
-        try (PrintWriter writer = new PrintWriter(path, "UTF-8")) {
-            writer.print(serializer.toJson(structure));
-        }
+        writeFile(structure, path, format, compression, level, deduplication);
 
         //Calling event.
         EventManager.callEvent(new StructureSaveEvent(structure, path));
     }
 
+    /**
+     * Saves a structure inside the structure dir of the lib, on the background save thread.
+     * Only takes a snapshot of the structure on the calling thread, see saveToFileAsync(Structure, String, StructureFormat).
+     * @param structure
+     * @return future completed once the structure has been written.
+     */
+    public static CompletableFuture<Void> saveToFileAsync(Structure structure) {
+        if(archive != null) {
+            StructureArchive target = archive;
+            return getSaveQueue().submit("archive:" + target.getFile().getPath() + ":" + structure.getSaveName(), structure.saveSnapshot(), copy -> {
+                target.put(copy);
+                EventManager.callEvent(new StructureSaveEvent(structure, target.getFile().getPath()));
+            });
+        }
+        return saveToFileAsync(structure, getSavePath(structure));
+    }
+
+    /**
+     * Saves a structure to file in the default format, on the background save thread.
+     * @param structure
+     * @param path
+     * @return future completed once the structure has been written.
+     */
+    public static CompletableFuture<Void> saveToFileAsync(Structure structure, String path) {
+        return saveToFileAsync(structure, path, StructureFormat.DEFAULT);
+    }
+
+    /**
+     * Saves a structure to file in the given format, on the background save thread.
+     * The structure is saved as it is when the method is called. Saves of the same file still waiting to be written
+     * are replaced by this one, so rapid saves cost a single write. The StructureSaveEvent is called from the save thread.
+     * @param structure
+     * @param path
+     * @param format
+     * @return future completed once the structure has been written.
+     */
+    public static CompletableFuture<Void> saveToFileAsync(Structure structure, String path, StructureFormat format) {
+        logger.info("Queueing save of structure: {}, to: {} as {}", structure, path, format);
+        StructureCompression compression = Structure.compression;
+        int level = compressionLevel;
+        boolean deduplicate = deduplication;
+        return getSaveQueue().submit(new File(path).getAbsolutePath(), structure.saveSnapshot(), copy -> {
+            writeFile(copy, path, format, compression, level, deduplicate);
+            EventManager.callEvent(new StructureSaveEvent(structure, path));
+        });
+    }
+
+    /**
+     * Gets the queue of the background saves.
+     * @return
+     */
+    public static synchronized StructureSaveQueue getSaveQueue() {
+        if(saveQueue == null) {
+            saveQueue = new StructureSaveQueue();
+        }
+        return saveQueue;
+    }
+
+    /**
+     * Writes a structure file, replacing the previous file at once, so it is never left half written.
+     * @param structure
+     * @param path
+     * @param format
+     * @param compression
+     * @param level
+     * @param deduplicate whether to only reference another file of the save dir holding the same blocks, if there is one.
+     * @throws IOException
+     */
+    private static void writeFile(Structure structure, String path, StructureFormat format, StructureCompression compression, int level, boolean deduplicate) throws IOException {
+        Path file = Paths.get(path).toAbsolutePath();
+        detachReferrers(file, structure);
+        String reference = deduplicate && format == StructureFormat.BINARY ? findIdenticalFile(structure, file) : null;
+
+        //A temp file of its own, saves of the same file may run at the same time.
+        Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = compression.compress(new BufferedOutputStream(Files.newOutputStream(temp)), level)) {
+                if(reference != null) {
+                    BinaryStructureFormat.writeReference(structure, reference, out);
+                } else {
+                    format.write(structure, out);
+                }
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        if(catalog != null) {
+            catalog.refresh(file);
+            catalog.indexBlocks(file, BlockIdFilter.idsOf(structure));
+        }
+
+        //Caching what was written.
+        StructureCache cache = Structure.cache;
+        if(cache != null) {
+            cache.put(file.toFile(), structure.saveSnapshot());
+        }
+    }
+
+    /**
+     * Gets the latest snapshot of the structure with its current uuid and custom name.
+     * Both are set directly on the structure and aren't published with the blocks, saves use this instead of snapshot().
+     * @return
+     */
+    private StructureSnapshot saveSnapshot() {
+        StructureSnapshot published = snapshot();
+        if(Objects.equals(published.getUuid(), uuid) && Objects.equals(published.getCustomName(), customName)) {
+            return published;
+        }
+        return new StructureSnapshot(published.getVersion(), uuid, customName, published.getOrientation(), published.getBlocks());
+    }
+
+    /**
+     * Finds another file of the save dir holding the same blocks as a structure.
+     * The files are looked up by fingerprint, the blocks of the candidates are compared to rule out other structures of the same shape.
+     * @param structure
+     * @param file the file the structure is saved to, never returned.
+     * @return the save name of the file or null.
+     * @throws IOException
+     */
+    private static String findIdenticalFile(Structure structure, Path file) throws IOException {
+        StructureCatalog catalog = getCatalog();
+        if(!file.getParent().equals(catalog.getDirectory().toPath())) return null;
+
+        StructureSnapshot snapshot = structure.snapshot();
+        for (StructureCatalog.Entry entry :
+                catalog.getByFingerprint(snapshot.getFingerprint())) {
+            //Referencing the file holding the blocks, never another reference.
+            String target = entry.reference != null ? entry.reference : entry.name;
+            File targetFile = file.resolveSibling(target + StructureCatalog.EXTENSION).toFile();
+            if(targetFile.toPath().equals(file)) continue;
+            try {
+                if(readFile(targetFile, false).snapshot().hasSameBlocks(snapshot)) {
+                    logger.info("Structure: {} has the same blocks as: {}, saving a reference.", structure, target);
+                    return target;
+                }
+            } catch (IOException e) {
+                logger.debug("Couldn't compare structure: {} to: {}", structure, targetFile, e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes out in full the structures referencing the blocks of a file of the save dir, before the file is replaced or removed.
+     * References are only written with deduplication enabled, so the catalog isn't opened just for this while it's disabled.
+     * @param file
+     * @param replacement the structure replacing the file, null if the file is removed.
+     * @throws IOException
+     */
+    private static void detachReferrers(Path file, Structure replacement) throws IOException {
+        StructureCatalog catalog = Structure.catalog;
+        if(catalog == null) {
+            if(!deduplication) return;
+            catalog = getCatalog();
+        }
+        if(!file.getParent().equals(catalog.getDirectory().toPath()) || !Files.exists(file)) return;
+        String fileName = file.getFileName().toString();
+        if(!fileName.endsWith(StructureCatalog.EXTENSION)) return;
+        List<StructureCatalog.Entry> referrers = catalog.getReferrers(fileName.substring(0, fileName.length() - StructureCatalog.EXTENSION.length()));
+        if(referrers.isEmpty()) return;
+
+        //The blocks don't change, the references stay valid.
+        if(replacement != null && readFile(file.toFile(), false).snapshot().hasSameBlocks(replacement.snapshot())) return;
+        for (StructureCatalog.Entry referrer :
+                referrers) {
+            logger.info("Writing out structure: {}, its blocks are in: {} which is being replaced.", referrer.name, file);
+            Structure copy = readFile(referrer.path.toFile());
+            writeFile(copy, referrer.path.toString(), StructureFormat.BINARY, compression, compressionLevel, false);
+        }
+    }
+
+    /**
+     * Gets the path of the file of a structure inside the structure dir of the lib.
+     * @param structure
+     * @return
+     */
+    private static String getSavePath(Structure structure) {
+        return Paths.get(getStructureSaveDir().getPath(), structure.getSaveName()).toString() + ".logitow";
+    }
+
     /**
      * Removes the saved structure file of the given structure.
      * @param structure
@@ -122,18 +487,39 @@ public class Structure implements Serializable {
     public static boolean removeFile(Structure structure) {
         logger.info("Removing file of structure: {}", structure);
 
-        File file = null;
-        if(structure.customName != null && structure.customName != "") {
-            file = new File(Paths.get(getStructureSaveDir().getPath(), structure.customName).toString() + ".logitow");
-        } else {
-            file = new File(Paths.get(getStructureSaveDir().getPath(), structure.uuid.toString()).toString() + ".logitow");
+        if(archive != null) {
+            try {
+                if(!archive.remove(structure)) {
+                    return false;
+                }
+                EventManager.callEvent(new StructureRemoveEvent(structure, archive.getFile().getPath()));
+                return true;
+            } catch (IOException e) {
+                logger.error("Removing structure: {} from archive: {} failed!", structure, archive.getFile(), e);
+                return false;
+            }
         }
-        if(file.exists()) {
-            file.delete();
-            return true;
-        } else {
+
+        File file = new File(getSavePath(structure));
+        try {
+            detachReferrers(file.toPath().toAbsolutePath(), null);
+        } catch (IOException e) {
+            logger.error("Couldn't write out the structures referencing: {}, not removing it!", file, e);
+            return false;
+        }
+        if(!file.delete()) {
             return false;
         }
+        if(catalog != null) {
+            catalog.forget(file.toPath());
+        }
+        if(cache != null) {
+            cache.invalidate(file);
+        }
+
+        //Calling event.
+        EventManager.callEvent(new StructureRemoveEvent(structure, file.getPath()));
+        return true;
     }
 
     /**
@@ -151,22 +537,45 @@ public class Structure implements Serializable {
         Structure.saveToFile(this, path);
     }
 
+    /**
+     * Saves the structure to a file in the structures directory, on the background save thread.
+     * @return future completed once the structure has been written.
+     */
+    public CompletableFuture<Void> saveToFileAsync() {
+        return Structure.saveToFileAsync(this);
+    }
+
     /**
      * Loads a structure from the logitow folder given its uuid.
      * @param name
      * @return
      */
     public static Structure loadByName(String name) throws IOException {
+        if(archive != null) {
+            logger.info("Loading structure: {} from archive: {}", name, archive.getFile());
+            Structure loaded = archive.load(name);
+            if(loaded != null) {
+                EventManager.callEvent(new StructureLoadEvent(loaded, archive.getFile().getPath()));
+            }
+            return loaded;
+        }
+
         logger.info("Loading structure: {} from the structures folder...", name);
 
-        for (File file :
-                getStructureSaveDir().listFiles()) {
-            String fileName = file.getName().split("\\.")[0];
-            if(fileName.equals(name)) {
-                return loadFromFile(file.getPath());
+        StructureCatalog catalog = getCatalog();
+        StructureCatalog.Entry entry = catalog.get(name);
+        if(entry == null) {
+            //Looking for a renamed copy of the structure.
+            try {
+                entry = catalog.get(UUID.fromString(name));
+            } catch (IllegalArgumentException e) {
+                //Not a uuid.
             }
         }
-        return null;
+        if(entry == null) {
+            return null;
+        }
+        return loadFromFile(entry.path.toString());
     }
     /**
      * Loads structure data from file.
@@ -175,112 +584,568 @@ public class Structure implements Serializable {
         logger.info("Loading structure from: {}", path);
 
         //Getting the file.
+        Structure loaded = readFile(new File(path));
+        EventManager.callEvent(new StructureLoadEvent(loaded, path));
+        return loaded;
+    }
+
+    /**
+     * Reads the name, uuid, block count, bounds and block type counts of a saved structure.
+     * Only the header of binary files is read, files of older versions and JSON files are loaded whole.
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public static StructureMetadata readMetadata(String path) throws IOException {
         File file = new File(path);
         if(!file.exists()) {
-            throw new FileNotFoundException();
+            throw new FileNotFoundException(path);
+        }
+        try (InputStream in = StructureCompression.decompress(new BufferedInputStream(new FileInputStream(file), 512))) {
+            return StructureFormat.detect(in).readMetadata(in);
+        }
+    }
+
+    /**
+     * Reads the top, front and side views of a saved structure.
+     * Only the header of binary files is read, files of older versions and JSON files are loaded whole.
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public static StructurePreview readPreview(String path) throws IOException {
+        File file = new File(path);
+        if(!file.exists()) {
+            throw new FileNotFoundException(path);
+        }
+        try (InputStream in = StructureCompression.decompress(new BufferedInputStream(new FileInputStream(file), 2048))) {
+            return StructureFormat.detect(in).readPreview(in);
+        }
+    }
+
+    /**
+     * Loads every structure file of a directory, reading the files in parallel.
+     * The StructureLoadEvents are called on the calling thread, in the order of the file paths.
+     * @param directory
+     * @return the results of the files, in the order of their paths.
+     * @throws IOException if the directory can't be listed.
+     */
+    public static List<StructureLoadResult> loadAll(Path directory) throws IOException {
+        ArrayList<StructureLoadResult> results = new ArrayList<>();
+        loadAll(directory, results::add);
+        return results;
+    }
+
+    /**
+     * Loads every structure file of a directory, reading the files in parallel.
+     * Each result is handed to the consumer on the calling thread once its file and the files before it are loaded,
+     * see streamAll.
+     * @param directory
+     * @param consumer
+     * @throws IOException if the directory can't be listed.
+     */
+    public static void loadAll(Path directory, Consumer<StructureLoadResult> consumer) throws IOException {
+        try (Stream<StructureLoadResult> results = streamAll(directory)) {
+            results.forEach(consumer);
+        }
+    }
+
+    /**
+     * Starts loading every structure file of a directory, reading the files in parallel on the load pool.
+     * The returned stream yields the results in the order of the file paths, waiting for each file only when it's reached,
+     * and calls the StructureLoadEvent of each loaded structure right before yielding it, on the consuming thread.
+     * A file which can't be loaded yields a failed result instead of stopping the others.
+     * Closing the stream cancels the files not read yet.
+     * @param directory
+     * @return
+     * @throws IOException if the directory can't be listed.
+     */
+    public static Stream<StructureLoadResult> streamAll(Path directory) throws IOException {
+        ArrayList<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, "*" + StructureCatalog.EXTENSION)) {
+            for (Path file :
+                    entries) {
+                if(Files.isRegularFile(file)) {
+                    files.add(file);
+                }
+            }
+        }
+        Collections.sort(files);
+        logger.info("Loading {} structures from: {}", files.size(), directory);
+
+        ForkJoinPool pool = getLoadPool();
+        ArrayList<ForkJoinTask<StructureLoadResult>> tasks = new ArrayList<>(files.size());
+        for (Path file :
+                files) {
+            tasks.add(pool.submit(() -> {
+                try {
+                    return StructureLoadResult.loaded(file, readFile(file.toFile()));
+                } catch (IOException | RuntimeException e) {
+                    return StructureLoadResult.failed(file, e);
+                }
+            }));
+        }
+
+        return tasks.stream().map(task -> {
+            StructureLoadResult result = task.join();
+            if(result.isLoaded()) {
+                EventManager.callEvent(new StructureLoadEvent(result.structure, result.path.toString()));
+            } else {
+                logger.warn("Couldn't load structure file: {}", result.path, result.error);
+            }
+            return result;
+        }).onClose(() -> {
+            for (ForkJoinTask<StructureLoadResult> task :
+                    tasks) {
+                task.cancel(false);
+            }
+        });
+    }
+
+    /**
+     * Gets the pool reading the files of the bulk loads, created on first use.
+     * @return
+     */
+    private static synchronized ForkJoinPool getLoadPool() {
+        if(loadPool == null) {
+            loadPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return loadPool;
+    }
+
+    /**
+     * Reads a structure file, or copies its cached structure if the file didn't change since it was read.
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    private static Structure readFile(File file) throws IOException {
+        return readFile(file, true);
+    }
+
+    /**
+     * Reads a structure file, or copies its cached structure if the file didn't change since it was read.
+     * @param file
+     * @param resolveReference whether to read the blocks from the referenced file if the file only references them,
+     *                         see BinaryStructureFormat.writeReference.
+     * @return
+     * @throws IOException
+     */
+    private static Structure readFile(File file, boolean resolveReference) throws IOException {
+        if(!file.exists()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+
+        StructureCache cache = Structure.cache;
+        if(cache != null) {
+            StructureSnapshot cached = cache.get(file);
+            if(cached != null) {
+                return cached.toStructure();
+            }
+        }
+        long lastModified = file.lastModified();
+        long length = file.length();
+
+        //Deserializing, older saves are JSON.
+        Structure loaded;
+        try (InputStream in = StructureCompression.decompress(new BufferedInputStream(new FileInputStream(file)))) {
+            loaded = StructureFormat.detect(in).read(in);
+        } catch (StructureReferenceException e) {
+            if(!resolveReference) throw e;
+            //References are never chained.
+            StructureSnapshot blocks = readFile(new File(file.getParentFile(), e.target + StructureCatalog.EXTENSION), false).snapshot();
+            loaded = new StructureSnapshot(blocks.getVersion(), e.header.uuid, e.header.customName, e.orientation, blocks.getBlocks()).toStructure();
+        }
+        if(cache != null) {
+            cache.put(file, loaded.snapshot(), lastModified, length);
+        }
+        return loaded;
+    }
+
+    /**
+     * Sets the archive structures are saved to, loaded by name from and removed from, instead of the structures directory.
+     * @param archive the archive or null to use the structures directory.
+     */
+    public static void setArchive(StructureArchive archive) {
+        Structure.archive = archive;
+    }
+
+    /**
+     * Gets the archive structures are saved to, if any.
+     * @return
+     */
+    public static StructureArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * Sets the compression of the saves which don't specify one.
+     * Compressed files are recognized when loading, whatever the setting.
+     * @param compression
+     * @param level the compression level, 0-9 or StructureCompression.DEFAULT_LEVEL.
+     */
+    public static void setCompression(StructureCompression compression, int level) {
+        Structure.compression = compression;
+        Structure.compressionLevel = level;
+    }
+
+    /**
+     * Gets the compression of the saves which don't specify one.
+     * @return
+     */
+    public static StructureCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Sets whether saves of structures with the same blocks as another file of the save dir only reference that file.
+     * Only binary saves are deduplicated. Referencing files are written out in full before the file they reference
+     * is replaced with other blocks or removed.
+     * @param deduplication
+     */
+    public static void setDeduplication(boolean deduplication) {
+        Structure.deduplication = deduplication;
+    }
+
+    /**
+     * Checks whether saves are deduplicated, see setDeduplication.
+     * @return
+     */
+    public static boolean isDeduplication() {
+        return deduplication;
+    }
+
+    /**
+     * Gets the saved structure files with the same shape as a structure, see fingerprint.
+     * Only files storing their fingerprint are found.
+     * @param structure
+     * @return
+     * @throws IOException
+     */
+    public static List<StructureCatalog.Entry> findDuplicates(Structure structure) throws IOException {
+        return getCatalog().getByFingerprint(structure.fingerprint());
+    }
+
+    /**
+     * Sets the cache of the loaded structure files.
+     * @param cache the cache or null to read the files every time.
+     */
+    public static void setCache(StructureCache cache) {
+        Structure.cache = cache;
+    }
+
+    /**
+     * Gets the cache of the loaded structure files, if any.
+     * @return
+     */
+    public static StructureCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Gets the save dir of the structure files.
+     * @return
+     */
+    public static synchronized File getStructureSaveDir() {
+        if(structureSaveDir == null) {
+            File directory = new File(new File("").getAbsolutePath() + "/structures/");
+            if(!directory.exists()) {
+                directory.mkdir();
+            }
+            structureSaveDir = directory;
+        }
+        return structureSaveDir;
+    }
+
+    /**
+     * Gets the directory of the structure journals, see StructureJournal.
+     * @return
+     */
+    public static File getJournalDir() {
+        File directory = new File(getStructureSaveDir(), "journal");
+        if(!directory.exists()) {
+            directory.mkdir();
+        }
+        return directory;
+    }
+
+    /**
+     * Gets the catalog of the structure files in the save dir, opening it on first use.
+     * @return
+     * @throws IOException if the save dir can't be read.
+     */
+    public static synchronized StructureCatalog getCatalog() throws IOException {
+        if(catalog == null) {
+            catalog = StructureCatalog.open(getStructureSaveDir());
+        }
+        return catalog;
+    }
+
+    /**
+     * Called when a build operation is received from a connected logitow device.
+     * @param operation
+     */
+    public void onBuildOperation(BlockOperation operation) {
+        int[] removed;
+        beginOperation();
+        try {
+            removed = applyOperation(operation);
+        } finally {
+            endOperation();
+        }
+
+        //Batched operations are reported by the batch event.
+        if(batchRemovedBlocks != null) return;
+
+        if(removed == null) {
+            EventManager.callEvent(new BlockOperationErrorEvent(device, this));
+            return;
+        }
+        EventManager.callEvent(new BlockOperationEvent(device, operation));
+        if(operation.operationType == BlockOperationType.BLOCK_REMOVE) {
+            EventManager.callEvent(new BlockSubtreeRemovedEvent(device, this, operation, removed));
+        }
+    }
+
+    /**
+     * Applies a batch of block operations, e.g. when replaying recorded operations or importing a structure.
+     * The blocks of the operations are looked up by id, so the operations don't need to hold the block instances of this structure.
+     * Invalid operations are skipped. The block list is compacted and the snapshot published once for the whole batch,
+     * and a single BlockOperationBatchEvent is called instead of the events of every operation.
+     * @param operations
+     * @return the operations which couldn't be applied.
+     */
+    public List<BlockOperation> applyAll(Collection<BlockOperation> operations) {
+        if(batchRemovedBlocks != null) {
+            throw new IllegalStateException("A batch is already being applied to structure: " + uuid);
+        }
+        logger.info("Applying {} block operations to structure: {}", operations.size(), uuid);
+
+        ArrayList<BlockOperation> applied = new ArrayList<>(operations.size());
+        ArrayList<BlockOperation> rejected = new ArrayList<>();
+        ArrayList<int[]> removedIds = new ArrayList<>();
+        batchRemovedBlocks = Collections.newSetFromMap(new IdentityHashMap<>());
+        batchRemovedIds = removedIds;
+        beginOperation();
+        try {
+            for (BlockOperation operation :
+                    operations) {
+                BlockOperation resolved = resolveOperation(operation);
+                if(resolved != null && applyOperation(resolved) != null) {
+                    applied.add(resolved);
+                } else {
+                    logger.warn("Skipping invalid block operation: {}", operation);
+                    rejected.add(operation);
+                }
+            }
+        } finally {
+            //Removing every removed block from the list in a single pass.
+            if(!batchRemovedBlocks.isEmpty()) {
+                blocks.removeIf(batchRemovedBlocks::contains);
+            }
+            batchRemovedBlocks = null;
+            batchRemovedIds = null;
+            endOperation();
+        }
+
+        int count = 0;
+        for (int[] ids :
+                removedIds) {
+            count += ids.length;
+        }
+        int[] removed = new int[count];
+        count = 0;
+        for (int[] ids :
+                removedIds) {
+            System.arraycopy(ids, 0, removed, count, ids.length);
+            count += ids.length;
         }
 
-        //Deserializing.
-        FileReader fileReader = new FileReader(path);
-        Gson deserializer = new Gson();
-        Structure loaded = deserializer.fromJson(fileReader, Structure.class);
-        EventManager.callEvent(new StructureLoadEvent(loaded, path));
-        return loaded;
+        EventManager.callEvent(new BlockOperationBatchEvent(device, this, applied, rejected, removed));
+        return rejected;
     }
+
     /**
-     * Gets the save dir of the structure files.
-     * @return
+     * Checks an operation of a batch and copies it, pointing at the blocks of this structure.
+     * The operation itself is left as it is, so it can be applied to other structures too.
+     * @param operation
+     * @return the copy to apply, or null if the operation can't be applied.
      */
-    public static File getStructureSaveDir() {
-        File directory = new File(new File("").getAbsolutePath() + "/structures/");
-        if(!directory.exists()) {
-            directory.mkdir();
+    private BlockOperation resolveOperation(BlockOperation operation) {
+        if(operation == null || operation.operationType == null) return null;
+        Block blockA = operation.blockA == null ? null : getBlockById(operation.blockA.id);
+
+        if(operation.operationType == BlockOperationType.BLOCK_ADD) {
+            if(blockA == null || operation.blockB == null || operation.blockB.id == blockA.id || !blockA.canAttach(operation.blockSide)) {
+                return null;
+            }
+            //The added block always gets its own instance, the caller's may be attached to this or another structure.
+            return new BlockOperation(blockA, operation.blockSide, new Block(operation.blockB.id), operation.operationType);
         }
-        return directory;
+
+        Block blockB = operation.blockB == null ? null : getBlockById(operation.blockB.id);
+        if(blockB == null) {
+            //Finding the block by the side it is attached to.
+            if(blockA == null || operation.blockSide == null) return null;
+            BlockSide relativeSide = blockA.getRelativeDirection(operation.blockSide);
+            if(relativeSide == BlockSide.UNDEFINED) return null;
+            blockB = getBlockById(blockA.children[relativeSide.sideId-1]);
+            if(blockB == null) return null;
+        }
+        blockA = blockA != null && blockA.id == blockB.parent ? blockA : getBlockById(blockB.parent);
+        return new BlockOperation(blockA, operation.blockSide, blockB, operation.operationType);
     }
 
     /**
-     * Called when a build operation is received from a connected logitow device.
+     * Applies a single block operation, without calling any events.
      * @param operation
+     * @return the ids of the removed blocks, or null if the operation failed.
      */
-    public void onBuildOperation(BlockOperation operation) {
+    private int[] applyOperation(BlockOperation operation) {
         if(operation.operationType == BlockOperationType.BLOCK_ADD) {
-            blockAddedHandler(operation);
-        } else {
-            if(operation.blockB == null) {
-                logger.info("Finding Block B...");
-                BlockSide relativeSide = operation.blockA.getRelativeDirection(operation.blockSide);
-                for (int i = 0; i < operation.blockA.children.length; i++) {
-                    if (relativeSide.sideId-1 == i) {
-                        logger.info(" [{}] Found child: {}", i, operation.blockA.children[i]);
-                        operation.blockB = this.getBlockById(operation.blockA.children[i]);
-                        break;
-                    }
+            return blockAddedHandler(operation) ? NO_REMOVED_BLOCKS : null;
+        }
+
+        if(operation.blockB == null) {
+            logger.info("Finding Block B...");
+            BlockSide relativeSide = operation.blockA.getRelativeDirection(operation.blockSide);
+            for (int i = 0; i < operation.blockA.children.length; i++) {
+                if (relativeSide.sideId-1 == i) {
+                    logger.info(" [{}] Found child: {}", i, operation.blockA.children[i]);
+                    operation.blockB = this.getBlockById(operation.blockA.children[i]);
+                    break;
                 }
             }
-            if(operation.blockB  == null) {
-                logger.warn("Block removal failed! Block B not found!");
-                EventManager.callEvent(new BlockOperationErrorEvent(device, this));
-                return;
-            }
-            blockRemovedHandler(operation);
         }
-
-        EventManager.callEvent(new BlockOperationEvent(device, operation));
+        if(operation.blockB  == null) {
+            logger.warn("Block removal failed! Block B not found!");
+            return null;
+        }
+        int[] removed = blockRemovedHandler(operation);
+        if(batchRemovedIds != null) {
+            batchRemovedIds.add(removed);
+        }
+        return removed;
     }
 
     /**
      * Handles adding of a block.
      * @param operation
+     * @return whether the block was added.
      */
-    private void blockAddedHandler(BlockOperation operation) {
+    private boolean blockAddedHandler(BlockOperation operation) {
         logger.info("Handling block: {} addition to structure: {}", operation.blockB, this.uuid);
 
+        //Detaching the block from where it is attached, along with its subtree.
+        Block attached = getBlockById(operation.blockB.id);
+        if(attached != null && attached != operation.blockB) {
+            if(attached == operation.blockA || isAncestor(attached, operation.blockA)) {
+                logger.warn("Can't attach block: {} to block: {}, which is attached through it!", attached.id, operation.blockA.id);
+                return false;
+            }
+            removeBlock(attached);
+        }
+
         //Updating structure info on the block.
-        operation.blockB.calculateCoordinates(this, operation.blockA, operation.blockSide);
+        if(!operation.blockB.calculateCoordinates(this, operation.blockA, operation.blockSide)) {
+            return false;
+        }
+        markChanged(operation.blockA);
 
-        logger.info("Block A children:");
-        for (int child :
-                operation.blockA.children) {
-            logger.info(" {}", child);
+        if(batchRemovedBlocks == null) {
+            logger.info("Block A children:");
+            for (int child :
+                    operation.blockA.children) {
+                logger.info(" {}", child);
+            }
         }
 
         //Rotating the added block.
-        for (Vec3 rotation :
-                rotations) {
-            rotateBlockRelative(operation.blockB, rotation);
-        }
+        CubeRotation.apply(orientation, operation.blockB.coordinate);
 
         //Removing duplicates.
         removeDuplicates(operation.blockB);
 
-        //Adding block to structure.
-        blocks.add(operation.blockB);
+        //Adding block to structure, unless it was removed earlier in the batch and is still listed.
+        if(batchRemovedBlocks == null || !batchRemovedBlocks.remove(operation.blockB)) {
+            blocks.add(operation.blockB);
+        }
+        indexBlock(operation.blockB);
+        return true;
     }
 
     /**
-     * Handles removal of a block.
+     * Handles removal of a block, along with every block attached to it.
+     * The subtree is walked iteratively, visiting every removed block once.
      * @param operation
+     * @return the ids of the removed blocks.
      */
-    private void blockRemovedHandler(BlockOperation operation) {
+    private int[] blockRemovedHandler(BlockOperation operation) {
         logger.info("Handling block: {} removal from the structure: {}", operation.blockB.id, this.uuid);
+        Block root = operation.blockB;
+
+        //Removing reference from parent.
+        Block parent = operation.blockA != null ? operation.blockA : getBlockById(root.parent);
+        if(parent != null) {
+            markChanged(parent);
+            for (int i = 0; i < parent.children.length; i++) {
+                if(parent.children[i] == root.id) {
+                    parent.children[i] = -10;
+                }
+            }
+        }
+        root.parent = -10;
 
-        //Removing the block from the structure.
-        blocks.remove(operation.blockB);
+        //Collecting the subtree, unindexing every block on the way.
+        ArrayList<Block> removed = new ArrayList<>();
+        ArrayDeque<Block> pending = new ArrayDeque<>();
+        unindexBlock(root);
+        removed.add(root);
+        pushChildren(root, pending);
 
-        //Deleting remains on the same coords.
-        removeDuplicates(operation.blockB);
+        //Deleting remains with the same id.
+        Block duplicate = getBlockById(root.id);
+        if(duplicate != null) {
+            logger.info("Removing duplicate of block: {}", root.id);
+            pending.push(duplicate);
+        }
 
-        //Removing reference from parent.
-        if(operation.blockA != null) {
-            operation.blockA.children[operation.blockB.parentAttachSide.sideId-1] = -10;
+        while (!pending.isEmpty()) {
+            Block block = pending.pop();
+            if(!unindexBlock(block)) continue; //Already removed.
+            removed.add(block);
+            pushChildren(block, pending);
         }
-        operation.blockB.parent = -10;
 
-        //Recursively removing children.
-        for (int child : operation.blockB.children) {
-            if(child!=-10) {
-                removeBlock(this.getBlockById(child));
+        //Removing the blocks from the structure.
+        if(batchRemovedBlocks != null) {
+            batchRemovedBlocks.addAll(removed);
+        } else if(removed.size() == 1) {
+            blocks.remove(root);
+        } else {
+            Set<Block> removedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+            removedSet.addAll(removed);
+            blocks.removeIf(removedSet::contains);
+        }
+
+        int[] removedIds = new int[removed.size()];
+        for (int i = 0; i < removedIds.length; i++) {
+            removedIds[i] = removed.get(i).id;
+        }
+        return removedIds;
+    }
+
+    /**
+     * Pushes the blocks attached to the given block onto a stack.
+     * @param block
+     * @param pending
+     */
+    private void pushChildren(Block block, ArrayDeque<Block> pending) {
+        for (int child : block.children) {
+            if(child == -10) continue;
+            Block childBlock = getBlockById(child);
+            if(childBlock != null && childBlock.parent == block.id) {
+                pending.push(childBlock);
             }
         }
     }
@@ -291,7 +1156,7 @@ public class Structure implements Serializable {
      */
     public void removeBlock(Block b) {
         if(b == null) return;
-        onBuildOperation(new BlockOperation(null, b.parentAttachSide, b, BlockOperationType.BLOCK_REMOVE));
+        onBuildOperation(new BlockOperation(getBlockById(b.parent), b.parentAttachSide, b, BlockOperationType.BLOCK_REMOVE));
     }
 
     /**
@@ -299,14 +1164,8 @@ public class Structure implements Serializable {
      * @param position
      */
     public Block getBlockByPosition(Vec3 position) {
-        for (Block b :
-                blocks) {
-            if (b.coordinate == position) {
-                return b;
-            }
-        }
-
-        return null;
+        if(position == null) return null;
+        return blocksByPosition.get(CubeRotation.apply(CubeRotation.inverse(orientation), position.pack()));
     }
 
     /**
@@ -315,13 +1174,7 @@ public class Structure implements Serializable {
      * @return
      */
     public Block getBlockById(int id) {
-        for (Block b :
-                blocks) {
-            if (b.id == id) {
-                return b;
-            }
-        }
-        return null;
+        return blocksById.get(id);
     }
 
     /**
@@ -329,247 +1182,478 @@ public class Structure implements Serializable {
      */
     public void removeDuplicates(Block block) {
         Block duplicate = getBlockByPosition(block.coordinate);
-        if(duplicate != null) {
-            logger.info("Removing duplicate of block: {}", block.id);
-            removeBlock(duplicate);
+        if(duplicate != null && duplicate != block) {
+            if(isAncestor(duplicate, block)) {
+                //Removing the duplicate would detach the block itself.
+                logger.warn("Block: {} overlaps its ancestor: {}", block.id, duplicate.id);
+            } else {
+                logger.info("Removing duplicate of block: {}", block.id);
+                removeBlock(duplicate);
+            }
         }
         duplicate = getBlockById(block.id);
-        if(duplicate != null) {
+        if(duplicate != null && duplicate != block) {
             logger.info("Removing duplicate of block: {}", block.id);
             removeBlock(duplicate);
         }
     }
 
     /**
-     * Rotates the structure by specified angles.
-     * @param angles
+     * Checks whether a block is one of the blocks the given block is attached through.
+     * @param ancestor
+     * @param block
+     * @return
      */
-    public boolean rotate(Vec3 angles) {
-        logger.info("Rotating structure: {} by: {}", uuid, angles);
+    private boolean isAncestor(Block ancestor, Block block) {
+        Block current = getBlockById(block.parent);
+        for (int depth = 0; current != null && depth <= blocksById.size(); depth++) {
+            if(current == ancestor) {
+                return true;
+            }
+            current = getBlockById(current.parent);
+        }
+        return false;
+    }
 
-        //Checking the angles.
-        if(angles.getX() % 90 != 0 || angles.getY() % 90 != 0 || angles.getZ() % 90 != 0) {
-            return false;
+    /**
+     * Replaces the blocks of the structure.
+     * @param blocks
+     */
+    void setBlocks(ArrayList<Block> blocks) {
+        this.blocks = blocks;
+        for (Block b :
+                blocks) {
+            b.structure = this;
         }
+        rebuildIndexes();
+    }
 
-        //Rotating every block.
-        rotateZ(angles.getZ());
-        rotateY(angles.getY());
-        rotateX(angles.getX());
+    /**
+     * Gets the fingerprint of the shape of the structure, the same for every copy of it whatever its block ids, uuid, name or rotation.
+     * Computed once per published snapshot, so it can be used as a cache key.
+     * @return
+     */
+    public StructureFingerprint fingerprint() {
+        return snapshot.getFingerprint();
+    }
+
+    /**
+     * Gets the latest published snapshot of the structure.
+     * Snapshots are immutable, so they can be read from any thread while the structure keeps changing.
+     * Only changes made through the structure methods are published, after modifying the block list
+     * or the blocks directly, call rebuildIndexes.
+     * @return
+     */
+    public StructureSnapshot snapshot() {
+        return snapshot;
+    }
 
-        //Adding the rotation.
-        addRotation(angles);
+    /**
+     * Marks the start of an operation changing the structure.
+     */
+    private void beginOperation() {
+        operationDepth++;
+    }
 
-        return true;
+    /**
+     * Marks the end of an operation changing the structure, publishing a new snapshot once the outermost one ends.
+     */
+    private void endOperation() {
+        if(--operationDepth > 0) return;
+
+        PersistentIntMap<BlockSnapshot> previous = snapshotBlocks;
+        int[] changedIds = null;
+        if(!changedBlocks.isEmpty()) {
+            PersistentIntMap<BlockSnapshot> updated = snapshotBlocks;
+            for (Block changed :
+                    changedBlocks) {
+                Block current = blocksById.get(changed.id);
+                if(current != null) {
+                    updated = updated.put(current.id, BlockSnapshot.of(current));
+                } else {
+                    updated = updated.remove(changed.id);
+                }
+            }
+            if((history != null && !restoring) || journal != null) {
+                changedIds = uniqueIds(changedBlocks);
+            }
+            snapshotBlocks = updated;
+            changedBlocks.clear();
+            snapshotStale = true;
+        }
+        if(snapshotStale) {
+            int previousOrientation = snapshot.getOrientation();
+            publishSnapshot();
+            if(history != null && !restoring) {
+                history.record(changedIds == null ? NO_REMOVED_BLOCKS : changedIds, previous, snapshotBlocks, previousOrientation, orientation);
+            }
+            if(journal != null) {
+                journal.record(changedIds == null ? NO_REMOVED_BLOCKS : changedIds, snapshot);
+            }
+        }
     }
 
     /**
-     * Rotates a block by the specified angle relative to the center of the structure.
-     * @param angles
+     * Gets the distinct ids of the given blocks.
+     * @param blocks
      * @return
      */
-    public boolean rotateBlockRelative(Block a, Vec3 angles) {
-        logger.info("Rotating block: {}, by {}", a.coordinate, angles);
-
-        //Checking the angles.
-        if(angles.getX() % 90 != 0 || angles.getY() % 90 != 0 || angles.getZ() % 90 != 0) {
-            return false;
+    private static int[] uniqueIds(ArrayList<Block> blocks) {
+        int[] ids = new int[blocks.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = blocks.get(i).id;
+        }
+        Arrays.sort(ids);
+        int count = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if(i == 0 || ids[i] != ids[i - 1]) {
+                ids[count++] = ids[i];
+            }
         }
+        return Arrays.copyOf(ids, count);
+    }
 
-        //Rotating on every axis.
-        rotateBlockRelativeZ(a,angles.getZ());
-        rotateBlockRelativeY(a,angles.getY());
-        rotateBlockRelativeX(a,angles.getX());
+    /**
+     * Gets the recorded history of the structure.
+     * @return the history or null if it isn't recorded, see StructureHistory.
+     */
+    public StructureHistory getHistory() {
+        return history;
+    }
 
-        return true;
+    /**
+     * Sets the history recording the changes of the structure.
+     * @param history
+     */
+    void setHistory(StructureHistory history) {
+        this.history = history;
     }
 
     /**
-     * Rotates the structure along x axis.
+     * Gets the journal of the structure.
+     * @return the journal or null if the structure isn't journaled, see StructureJournal.
      */
-    private void rotateX(int theta) {
-        if(theta == 0) return;
+    public StructureJournal getJournal() {
+        return journal;
+    }
 
-        double sinTheta = Math.sin(Math.toRadians(theta));
-        double cosTheta = Math.cos(Math.toRadians(theta));
+    /**
+     * Sets the journal logging the changes of the structure.
+     * @param journal
+     */
+    void setJournal(StructureJournal journal) {
+        this.journal = journal;
+    }
 
-        for (Block b:
-                blocks) {
-            if(b==null)continue;
-            int y = b.coordinate.getY();
-            int z = b.coordinate.getZ();
+    /**
+     * Sets the given blocks to their recorded states, without recording the change.
+     * @param ids the ids of the blocks.
+     * @param states the states of the blocks, null for blocks which shouldn't exist.
+     * @param orientation the rotation of the structure.
+     */
+    void restoreBlocks(int[] ids, BlockSnapshot[] states, int orientation) {
+        restoring = true;
+        beginOperation();
+        try {
+            if(orientation != this.orientation) {
+                rotateBlocks(CubeRotation.compose(CubeRotation.inverse(this.orientation), orientation));
+                setOrientation(orientation);
+            }
 
-            b.coordinate.setY((int)Math.round(y*cosTheta-z*sinTheta));
-            b.coordinate.setZ((int)Math.round(z*cosTheta+y*sinTheta));
+            //Unindexing every block first, so the restored blocks can take each other's positions.
+            Block[] current = new Block[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                current[i] = blocksById.get(ids[i]);
+                if(current[i] != null) {
+                    unindexBlock(current[i]);
+                }
+            }
+            for (int i = 0; i < ids.length; i++) {
+                Block block = current[i];
+                if(states[i] == null) {
+                    if(block != null) {
+                        removeFromList(block);
+                    }
+                    continue;
+                }
+                if(block == null) {
+                    block = states[i].toBlock(orientation);
+                    block.structure = this;
+                    blocks.add(block);
+                } else {
+                    states[i].applyTo(block, orientation);
+                }
+                indexBlock(block);
+            }
+        } finally {
+            endOperation();
+            restoring = false;
         }
     }
+
     /**
-     * Rotates the structure along x axis.
+     * Replaces the state of the structure with a snapshot, without recording the change.
+     * @param keyframe
      */
-    private void rotateY(int theta) {
-        if(theta == 0) return;
-
-        double sinTheta = Math.sin(Math.toRadians(theta));
-        double cosTheta = Math.cos(Math.toRadians(theta));
+    void restoreSnapshot(StructureSnapshot keyframe) {
+        restoring = true;
+        try {
+            rotations = new ArrayList<>();
+            if(keyframe.getOrientation() != CubeRotation.IDENTITY) {
+                rotations.add(CubeRotation.toAngles(keyframe.getOrientation()));
+            }
+            ArrayList<Block> restored = new ArrayList<>(keyframe.size());
+            for (BlockSnapshot b :
+                    keyframe) {
+                restored.add(b.toBlock(keyframe.getOrientation()));
+            }
+            setBlocks(restored);
+        } finally {
+            restoring = false;
+        }
+    }
 
-        for (Block b:
-                blocks) {
-            if(b==null)continue;
-            int x = b.coordinate.getX();
-            int z = b.coordinate.getZ();
+    /**
+     * Removes a block from the block list.
+     * Searches from the end, where recently added blocks are.
+     * @param block
+     */
+    private void removeFromList(Block block) {
+        for (int i = blocks.size() - 1; i >= 0; i--) {
+            if(blocks.get(i) == block) {
+                blocks.remove(i);
+                return;
+            }
+        }
+    }
 
-            b.coordinate.setX((int)Math.round(x*cosTheta-z*sinTheta));
-            b.coordinate.setZ((int)Math.round(z*cosTheta+x*sinTheta));
+    /**
+     * Marks a block as changed since the last published snapshot.
+     * @param block
+     */
+    private void markChanged(Block block) {
+        if(block != null) {
+            changedBlocks.add(block);
         }
     }
+
+    /**
+     * Publishes a snapshot of the current state.
+     */
+    private void publishSnapshot() {
+        long version = snapshot == null ? 1 : snapshot.getVersion() + 1;
+        snapshot = new StructureSnapshot(version, uuid, customName, orientation, snapshotBlocks);
+        snapshotStale = false;
+    }
+
     /**
-     * Rotates the structure along x axis.
+     * Rebuilds the lookup indexes and the composed rotation of the structure from the block and rotation lists.
+     * Needs to be called whenever the lists are replaced, e.g. after deserialization.
      */
-    private void rotateZ(int theta) {
-        if(theta == 0) return;
+    public void rebuildIndexes() {
+        //Composing the rotation history of older saves.
+        if(rotations == null) {
+            rotations = new ArrayList<>();
+        }
+        orientation = CubeRotation.IDENTITY;
+        for (Vec3 rotation :
+                rotations) {
+            int r = rotation == null ? -1 : CubeRotation.fromAngles(rotation);
+            if(r < 0) {
+                logger.warn("Ignoring invalid rotation: {} of structure: {}", rotation, uuid);
+                continue;
+            }
+            orientation = CubeRotation.compose(orientation, r);
+        }
+        setOrientation(orientation);
 
-        double sinTheta = Math.sin(Math.toRadians(theta));
-        double cosTheta = Math.cos(Math.toRadians(theta));
+        if(blocksById == null) {
+            blocksById = new BlockIdMap(blocks.size());
+        } else {
+            blocksById.clear();
+        }
+        for (Block b :
+                blocks) {
+            if(b == null) continue;
+            blocksById.put(b);
+        }
+        rebuildPositionIndex();
 
-        for (Block b:
-             blocks) {
-            if(b==null)continue;
-            int x = b.coordinate.getX();
-            int y = b.coordinate.getY();
+        //Republishing every block.
+        PersistentIntMap<BlockSnapshot> rebuilt = PersistentIntMap.empty();
+        for (Block b :
+                blocks) {
+            if(b == null || blocksById.get(b.id) != b) continue;
+            rebuilt = rebuilt.put(b.id, BlockSnapshot.of(b));
+        }
+        snapshotBlocks = rebuilt;
+        changedBlocks.clear();
+        publishSnapshot();
 
-            b.coordinate.setX((int)Math.round(x*cosTheta-y*sinTheta));
-            b.coordinate.setY((int)Math.round(y*cosTheta+x*sinTheta));
+        //The changes can't be told apart from a replaced block list, starting the history over.
+        if(history != null && !restoring) {
+            history.clear();
+        }
+        if(journal != null) {
+            journal.checkpoint();
         }
     }
 
-
     /**
-     * Rotates the structure along x axis.
+     * Rebuilds the position index from the current block local coords.
      */
-    private void rotateBlockRelativeX(Block b, int theta) {
-        if(theta == 0) return;
-        if(b==null) return;
+    private void rebuildPositionIndex() {
+        if(blocksByPosition == null) {
+            blocksByPosition = new HashMap<>(blocks.size() * 2);
+        } else {
+            blocksByPosition.clear();
+        }
+        for (Block b :
+                blocks) {
+            if(b == null || b.localCoords == null) continue;
+            blocksByPosition.put(b.localCoords.pack(), b);
+        }
+    }
 
-        double sinTheta = Math.sin(Math.toRadians(theta));
-        double cosTheta = Math.cos(Math.toRadians(theta));
+    /**
+     * Adds a block to the lookup indexes.
+     * @param block
+     */
+    private void indexBlock(Block block) {
+        markChanged(block);
+        blocksById.put(block);
+        //Keeping an overlapped ancestor indexed, the block goes away with it anyway.
+        blocksByPosition.putIfAbsent(block.localCoords.pack(), block);
+    }
 
-        int y = b.coordinate.getY();
-        int z = b.coordinate.getZ();
+    /**
+     * Removes a block from the lookup indexes.
+     * @param block
+     * @return whether the block was indexed.
+     */
+    private boolean unindexBlock(Block block) {
+        markChanged(block);
+        boolean indexed = blocksById.remove(block.id, block);
+        return unindexPosition(block) || indexed;
+    }
 
-        b.coordinate.setY((int)Math.round(y*cosTheta-z*sinTheta));
-        b.coordinate.setZ((int)Math.round(z*cosTheta+y*sinTheta));
+    /**
+     * Removes a block from the position index, if it is the one indexed at its coordinate.
+     * @param block
+     * @return whether the block was indexed.
+     */
+    private boolean unindexPosition(Block block) {
+        if(block == null || block.localCoords == null) return false;
+        return blocksByPosition.remove(block.localCoords.pack(), block);
     }
+
     /**
-     * Rotates the structure along x axis.
+     * Rotates the structure by specified angles.
+     * @param angles
      */
-    private void rotateBlockRelativeY(Block b, int theta) {
-        if(theta == 0) return;
-        if(b==null) return;
+    public boolean rotate(Vec3 angles) {
+        logger.info("Rotating structure: {} by: {}", uuid, angles);
+
+        //Checking the angles.
+        int rotation = CubeRotation.fromAngles(angles);
+        if(rotation < 0) {
+            return false;
+        }
 
-        double sinTheta = Math.sin(Math.toRadians(theta));
-        double cosTheta = Math.cos(Math.toRadians(theta));
+        beginOperation();
+        try {
+            //Rotating every block.
+            rotateBlocks(rotation);
 
-        int x = b.coordinate.getX();
-        int z = b.coordinate.getZ();
+            //Adding the rotation.
+            addRotation(rotation);
+        } finally {
+            endOperation();
+        }
 
-        b.coordinate.setX((int)Math.round(x*cosTheta-z*sinTheta));
-        b.coordinate.setZ((int)Math.round(z*cosTheta+x*sinTheta));
+        return true;
     }
+
     /**
-     * Rotates the structure along x axis.
+     * Rotates a block by the specified angle relative to the center of the structure.
+     * @param angles
+     * @return
      */
-    private void rotateBlockRelativeZ(Block b, int theta) {
-        if(theta == 0) return;
-        if(b==null)return;
+    public boolean rotateBlockRelative(Block a, Vec3 angles) {
+        logger.info("Rotating block: {}, by {}", a.coordinate, angles);
 
-        double sinTheta = Math.sin(Math.toRadians(theta));
-        double cosTheta = Math.cos(Math.toRadians(theta));
+        //Checking the angles.
+        int rotation = CubeRotation.fromAngles(angles);
+        if(rotation < 0) {
+            return false;
+        }
 
-        int x = b.coordinate.getX();
-        int y = b.coordinate.getY();
+        //Rotating the block, keeping its local coords in line with the structure rotation.
+        beginOperation();
+        try {
+            boolean indexed = unindexPosition(a);
+            CubeRotation.apply(rotation, a.coordinate);
+            CubeRotation.apply(CubeRotation.compose(CubeRotation.compose(orientation, rotation), CubeRotation.inverse(orientation)), a.localCoords);
+            if(indexed) {
+                blocksByPosition.putIfAbsent(a.localCoords.pack(), a);
+                markChanged(a);
+            }
+        } finally {
+            endOperation();
+        }
 
-        b.coordinate.setX((int)Math.round(x*cosTheta-y*sinTheta));
-        b.coordinate.setY((int)Math.round(y*cosTheta+x*sinTheta));
+        return true;
     }
 
     /**
-     * Adds rotation to the structure.
+     * Rotates the coordinates of every block.
+     * Large structures are split across the common fork-join pool.
      * @param rotation
      */
-    private void addRotation(Vec3 rotation) {
-        int rotAxisA = 0; //0 = no rotation; 4 = more than 1 axis.
-        if(rotation.getX() != 0) {
-            rotAxisA = 1;
-        }
-        if(rotation.getY() != 0) {
-            if(rotAxisA > 0) {
-                rotAxisA = 4;
-            } else {
-                rotAxisA = 2;
-            }
-        }
-        if(rotation.getZ() != 0) {
-            if(rotAxisA > 0) {
-                rotAxisA = 4;
-            } else {
-                rotAxisA = 3;
+    private void rotateBlocks(int rotation) {
+        if(rotation == CubeRotation.IDENTITY) return;
+
+        if(blocks.size() >= PARALLEL_ROTATION_THRESHOLD) {
+            blocks.parallelStream().forEach(b -> {
+                if(b != null) CubeRotation.apply(rotation, b.coordinate);
+            });
+        } else {
+            for (Block b :
+                    blocks) {
+                if(b == null) continue;
+                CubeRotation.apply(rotation, b.coordinate);
             }
         }
+    }
 
-        Vec3 lastRot = null;
-        if(rotations.size() > 0) {
-            lastRot = this.rotations.get(rotations.size()-1);
-        }
-        if(lastRot == null) {
-            //No previous records, adding a new one.
-            this.rotations.add(rotation);
-            return;
-        }
+    /**
+     * Adds rotation to the structure.
+     * @param rotation
+     */
+    private void addRotation(int rotation) {
+        setOrientation(CubeRotation.compose(orientation, rotation));
+    }
 
-        int rotAxisB = 0; //0 = no rotation; 4 = more than 1 axis.
-        if(lastRot.getX() != 0) {
-            rotAxisB = 1;
-        }
-        if(lastRot.getY() != 0) {
-            if(rotAxisB > 0) {
-                rotAxisB = 4;
-            } else {
-                rotAxisB = 2;
-            }
-        }
-        if(lastRot.getZ() != 0) {
-            if(rotAxisB > 0) {
-                rotAxisB = 4;
-            } else {
-                rotAxisB = 3;
-            }
+    /**
+     * Sets the composed rotation of the structure and its persisted angles.
+     * Doesn't move any blocks.
+     * @param orientation
+     */
+    private void setOrientation(int orientation) {
+        this.orientation = orientation;
+        snapshotStale = true;
+        rotations.clear();
+        if(orientation != CubeRotation.IDENTITY) {
+            rotations.add(CubeRotation.toAngles(orientation));
         }
+    }
 
-        //Adding up.
-        if(rotAxisA == 0) return; //Nothing to add.
-        if(rotAxisA == 4 || rotAxisB == 4) {
-            //Just adding another record.
-            this.rotations.add(rotation);
-            return;
-        }
-        if(rotAxisA == rotAxisB) {
-            //Same axis rotated, combining rotations.
-            this.rotations.remove(rotations.size()-1);
-            Vec3 sum = lastRot.add(rotation);
-            if(sum.getX() >= 360) {
-                sum.setX(sum.getX() % 360);
-            }
-            if(sum.getY() >= 360) {
-                sum.setY(sum.getY() % 360);
-            }
-            if(sum.getZ() >= 360) {
-                sum.setZ(sum.getZ() % 360);
-            }
-            this.rotations.add(lastRot.add(rotation));
-        } else {
-            //Different axis rotated, adding another record.
-            this.rotations.add(rotation);
-        }
+    /**
+     * Gets the composed rotation of the structure, see CubeRotation.
+     * @return
+     */
+    public int getOrientation() {
+        return orientation;
     }
 
     /**
@@ -602,6 +1686,18 @@ public class Structure implements Serializable {
         }
     }
 
+    /**
+     * Gets the name the structure is saved under, its custom name or its uuid.
+     * @return
+     */
+    public String getSaveName() {
+        if(this.customName != null && !this.customName.isEmpty()) {
+            return this.customName;
+        } else {
+            return this.uuid.toString();
+        }
+    }
+
     /**
      * Gets the formatted name of the structure.
      * @return
@@ -0,0 +1,145 @@
+package com.logitow.bridge.build;
+
+import com.logitow.bridge.build.block.BlockSnapshot;
+
+/**
+ * 128 bit fingerprint of the shape of a structure: the positions and types of its blocks.
+ * Independent of the block ids, the position of the structure and its rotation, so copies of a build
+ * saved under other names, uuids or rotated by any of the 24 cube rotations share the fingerprint.
+ *
+ * Every block is hashed with its position relative to the bounding box, the hashes are summed so their order doesn't matter,
+ * and the smallest sum over the 24 rotations of the blocks is kept.
+ */
+public final class StructureFingerprint {
+    /**
+     * The number of hex digits of the string form.
+     */
+    private static final int HEX_LENGTH = 32;
+
+    /**
+     * The high 64 bits.
+     */
+    private final long high;
+
+    /**
+     * The low 64 bits.
+     */
+    private final long low;
+
+    public StructureFingerprint(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * Computes the fingerprint of a structure snapshot.
+     * @param snapshot
+     * @return
+     */
+    public static StructureFingerprint of(StructureSnapshot snapshot) {
+        int count = snapshot.size();
+        int[] xs = new int[count], ys = new int[count], zs = new int[count], types = new int[count];
+        int[] min = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE};
+        int[] max = {Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+        int i = 0;
+        for (BlockSnapshot block :
+                snapshot) {
+            long local = block.getPackedLocalCoords();
+            xs[i] = Coordinate.unpackX(local);
+            ys[i] = Coordinate.unpackY(local);
+            zs[i] = Coordinate.unpackZ(local);
+            types[i] = block.getBlockType().ordinal();
+            min[0] = Math.min(min[0], xs[i]);
+            min[1] = Math.min(min[1], ys[i]);
+            min[2] = Math.min(min[2], zs[i]);
+            max[0] = Math.max(max[0], xs[i]);
+            max[1] = Math.max(max[1], ys[i]);
+            max[2] = Math.max(max[2], zs[i]);
+            i++;
+        }
+
+        long bestHigh = 0, bestLow = 0;
+        int[] offset = new int[3];
+        for (int rotation = 0; rotation < CubeRotation.COUNT; rotation++) {
+            //The rotations only swap and negate axes, the rotated bounding box is known without rotating the blocks.
+            for (int row = 0; row < 3; row++) {
+                for (int column = 0; column < 3; column++) {
+                    int sign = CubeRotation.get(rotation, row, column);
+                    if(sign > 0) offset[row] = -min[column];
+                    else if(sign < 0) offset[row] = max[column];
+                }
+            }
+
+            int m00 = CubeRotation.get(rotation, 0, 0), m01 = CubeRotation.get(rotation, 0, 1), m02 = CubeRotation.get(rotation, 0, 2);
+            int m10 = CubeRotation.get(rotation, 1, 0), m11 = CubeRotation.get(rotation, 1, 1), m12 = CubeRotation.get(rotation, 1, 2);
+            int m20 = CubeRotation.get(rotation, 2, 0), m21 = CubeRotation.get(rotation, 2, 1), m22 = CubeRotation.get(rotation, 2, 2);
+            long sumHigh = 0, sumLow = 0;
+            for (int b = 0; b < count; b++) {
+                int x = m00 * xs[b] + m01 * ys[b] + m02 * zs[b] + offset[0];
+                int y = m10 * xs[b] + m11 * ys[b] + m12 * zs[b] + offset[1];
+                int z = m20 * xs[b] + m21 * ys[b] + m22 * zs[b] + offset[2];
+                long cell = Coordinate.pack(x, y, z) * 31 + types[b];
+                sumHigh += Hashing.mix(cell ^ 0x5851F42D4C957F2DL);
+                sumLow += Hashing.mix(cell);
+            }
+            if(rotation == 0 || Long.compareUnsigned(sumHigh, bestHigh) < 0
+                    || (sumHigh == bestHigh && Long.compareUnsigned(sumLow, bestLow) < 0)) {
+                bestHigh = sumHigh;
+                bestLow = sumLow;
+            }
+        }
+        return new StructureFingerprint(bestHigh, bestLow);
+    }
+
+    /**
+     * Parses the string form of a fingerprint, see toString.
+     * @param hex
+     * @return
+     * @throws IllegalArgumentException if the string isn't a fingerprint.
+     */
+    public static StructureFingerprint fromString(String hex) {
+        if(hex.length() != HEX_LENGTH) {
+            throw new IllegalArgumentException("Invalid structure fingerprint: " + hex);
+        }
+        try {
+            return new StructureFingerprint(Long.parseUnsignedLong(hex.substring(0, 16), 16), Long.parseUnsignedLong(hex.substring(16), 16));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid structure fingerprint: " + hex, e);
+        }
+    }
+
+    public long getHigh() {
+        return high;
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) return true;
+        if(!(o instanceof StructureFingerprint)) return false;
+        StructureFingerprint other = (StructureFingerprint) o;
+        return high == other.high && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(high ^ low);
+    }
+
+    /**
+     * Gets the fingerprint as 32 hex digits.
+     * @return
+     */
+    @Override
+    public String toString() {
+        String highHex = Long.toHexString(high), lowHex = Long.toHexString(low);
+        StringBuilder builder = new StringBuilder(HEX_LENGTH);
+        for (int i = highHex.length(); i < 16; i++) builder.append('0');
+        builder.append(highHex);
+        for (int i = lowHex.length(); i < 16; i++) builder.append('0');
+        return builder.append(lowHex).toString();
+    }
+}
@@ -0,0 +1,216 @@
+package com.logitow.bridge.build;
+
+import com.logitow.bridge.build.block.BlockSnapshot;
+import com.logitow.bridge.util.PersistentIntMap;
+
+import java.util.ArrayList;
+
+/**
+ * Operation history of a structure.
+ * Every published change is stored as the states of the changed blocks before and after it,
+ * so undoing or redoing a step only touches the blocks changed by it.
+ * Every few changes the snapshot of the structure is kept as a keyframe,
+ * so seeking far away restores the nearest keyframe and replays the changes after it.
+ */
+public class StructureHistory {
+    /**
+     * The default number of changes between keyframes.
+     */
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 64;
+
+    /**
+     * The structure of the history.
+     */
+    private final Structure structure;
+
+    /**
+     * The number of changes between keyframes.
+     */
+    private final int keyframeInterval;
+
+    /**
+     * The recorded changes, in order.
+     */
+    private final ArrayList<Change> changes = new ArrayList<>();
+
+    /**
+     * Snapshots of the structure, keyframes.get(i) being the state after i * keyframeInterval changes.
+     */
+    private final ArrayList<StructureSnapshot> keyframes = new ArrayList<>();
+
+    /**
+     * The number of changes currently applied to the structure.
+     */
+    private int position;
+
+    /**
+     * Starts recording the history of a structure.
+     * @param structure
+     */
+    public StructureHistory(Structure structure) {
+        this(structure, DEFAULT_KEYFRAME_INTERVAL);
+    }
+
+    /**
+     * Starts recording the history of a structure.
+     * @param structure
+     * @param keyframeInterval the number of changes between keyframes.
+     */
+    public StructureHistory(Structure structure, int keyframeInterval) {
+        if(keyframeInterval < 1) {
+            throw new IllegalArgumentException("Keyframe interval must be positive!");
+        }
+        this.structure = structure;
+        this.keyframeInterval = keyframeInterval;
+        keyframes.add(structure.snapshot());
+        structure.setHistory(this);
+    }
+
+    /**
+     * Gets the structure of the history.
+     * @return
+     */
+    public Structure getStructure() {
+        return structure;
+    }
+
+    /**
+     * Gets the number of recorded changes.
+     * @return
+     */
+    public int size() {
+        return changes.size();
+    }
+
+    /**
+     * Gets the number of changes currently applied to the structure.
+     * @return
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    public boolean canUndo() {
+        return position > 0;
+    }
+
+    public boolean canRedo() {
+        return position < changes.size();
+    }
+
+    /**
+     * Reverts the last applied change.
+     * @return whether there was a change to revert.
+     */
+    public boolean undo() {
+        if(!canUndo()) return false;
+        Change change = changes.get(position - 1);
+        structure.restoreBlocks(change.ids, change.before, change.orientationBefore);
+        position--;
+        return true;
+    }
+
+    /**
+     * Reapplies the last reverted change.
+     * @return whether there was a change to reapply.
+     */
+    public boolean redo() {
+        if(!canRedo()) return false;
+        Change change = changes.get(position);
+        structure.restoreBlocks(change.ids, change.after, change.orientationAfter);
+        position++;
+        return true;
+    }
+
+    /**
+     * Moves the structure to the state after the given number of changes.
+     * @param target
+     */
+    public void seek(int target) {
+        if(target < 0 || target > changes.size()) {
+            throw new IndexOutOfBoundsException("Position: " + target + ", size: " + changes.size());
+        }
+
+        //Restoring the nearest keyframe, unless stepping there is cheaper.
+        int keyframe = Math.min(target / keyframeInterval, keyframes.size() - 1);
+        int fromKeyframe = target - keyframe * keyframeInterval;
+        if(Math.abs(target - position) > fromKeyframe) {
+            structure.restoreSnapshot(keyframes.get(keyframe));
+            position = keyframe * keyframeInterval;
+        }
+
+        while (position < target) {
+            redo();
+        }
+        while (position > target) {
+            undo();
+        }
+    }
+
+    /**
+     * Drops the recorded changes, keeping the current state as the start of the history.
+     */
+    public void clear() {
+        changes.clear();
+        keyframes.clear();
+        keyframes.add(structure.snapshot());
+        position = 0;
+    }
+
+    /**
+     * Stops recording the history of the structure.
+     */
+    public void detach() {
+        structure.setHistory(null);
+    }
+
+    /**
+     * Records a published change of the structure, dropping any reverted changes.
+     * @param ids the ids of the changed blocks.
+     * @param before the blocks before the change.
+     * @param after the blocks after the change.
+     * @param orientationBefore
+     * @param orientationAfter
+     */
+    void record(int[] ids, PersistentIntMap<BlockSnapshot> before, PersistentIntMap<BlockSnapshot> after, int orientationBefore, int orientationAfter) {
+        if(ids.length == 0 && orientationBefore == orientationAfter) return;
+
+        //Dropping the reverted changes.
+        if(position < changes.size()) {
+            changes.subList(position, changes.size()).clear();
+            keyframes.subList(position / keyframeInterval + 1, keyframes.size()).clear();
+        }
+
+        BlockSnapshot[] beforeStates = new BlockSnapshot[ids.length];
+        BlockSnapshot[] afterStates = new BlockSnapshot[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            beforeStates[i] = before.get(ids[i]);
+            afterStates[i] = after.get(ids[i]);
+        }
+        changes.add(new Change(ids, beforeStates, afterStates, orientationBefore, orientationAfter));
+        position++;
+
+        if(position % keyframeInterval == 0) {
+            keyframes.add(structure.snapshot());
+        }
+    }
+
+    /**
+     * A single recorded change.
+     */
+    private static final class Change {
+        final int[] ids;
+        final BlockSnapshot[] before;
+        final BlockSnapshot[] after;
+        final int orientationBefore;
+        final int orientationAfter;
+
+        Change(int[] ids, BlockSnapshot[] before, BlockSnapshot[] after, int orientationBefore, int orientationAfter) {
+            this.ids = ids;
+            this.before = before;
+            this.after = after;
+            this.orientationBefore = orientationBefore;
+            this.orientationAfter = orientationAfter;
+        }
+    }
+}
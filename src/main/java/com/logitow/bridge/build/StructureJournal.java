@@ -0,0 +1,630 @@
+package com.logitow.bridge.build;
+
+import com.logitow.bridge.build.block.Block;
+import com.logitow.bridge.build.block.BlockPacking;
+import com.logitow.bridge.build.block.BlockSnapshot;
+import com.logitow.bridge.build.io.BinaryStructureFormat;
+import com.logitow.bridge.build.io.VarInt;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the changes of a structure, so the structure survives the bridge going down mid-session.
+ * Every published change is appended as the states of the changed blocks after it, so writing it costs as much as
+ * the change itself rather than the whole structure. The changes are written and synced on a background thread,
+ * all the changes queued up while the previous sync ran being committed by a single sync.
+ * Once the log outgrows the last checkpoint, a checkpoint of the structure is written and the log starts over,
+ * recovering reads the checkpoint and replays the log behind it.
+ *
+ * Files:
+ * - the log: "LGTJ" magic, version byte, id of the checkpoint the log follows as a long,
+ *   then the changes, each as its length and CRC32 as ints followed by the change.
+ * - the checkpoint, the log path with CHECKPOINT_EXTENSION appended: "LGTC" magic, version byte, its id as a long,
+ *   then the structure in the binary format.
+ */
+public class StructureJournal implements Closeable {
+    /**
+     * The logger of the class.
+     */
+    public static Logger logger = LogManager.getLogger(StructureJournal.class);
+
+    /**
+     * The extension of journal files.
+     */
+    public static final String EXTENSION = ".journal";
+
+    /**
+     * Appended to the path of the log to get the path of its checkpoint.
+     */
+    public static final String CHECKPOINT_EXTENSION = ".checkpoint";
+
+    /**
+     * The log size below which no checkpoint is written, in bytes.
+     */
+    public static final long MIN_CHECKPOINT_LOG_SIZE = 64 * 1024;
+
+    /**
+     * The current version of the files.
+     */
+    private static final int VERSION = 1;
+
+    private static final byte[] LOG_MAGIC = {'L', 'G', 'T', 'J'};
+    private static final byte[] CHECKPOINT_MAGIC = {'L', 'G', 'T', 'C'};
+
+    /**
+     * The size of the file headers: magic, version and checkpoint id.
+     */
+    private static final int HEADER_SIZE = 4 + 1 + 8;
+
+    /**
+     * Flag set when a change renames the structure.
+     */
+    private static final int FLAG_NAME = 1;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * The journaled structure.
+     */
+    private final Structure structure;
+
+    /**
+     * The path of the log.
+     */
+    private final Path logFile;
+
+    /**
+     * The path of the checkpoint.
+     */
+    private final Path checkpointFile;
+
+    /**
+     * The log, only written by the writer thread once it's started.
+     */
+    private final FileChannel log;
+
+    /**
+     * The changes and checkpoints waiting to be written, guarding the counters below.
+     */
+    private final ArrayDeque<Object> queue = new ArrayDeque<>();
+
+    /**
+     * Writes the queue.
+     */
+    private final Thread writer;
+
+    /**
+     * The number of changes and checkpoints queued and written so far.
+     */
+    private long queued, written;
+
+    /**
+     * Whether the journal is closed.
+     */
+    private boolean closed;
+
+    /**
+     * The error which stopped the journal, if any.
+     */
+    private volatile Throwable failure;
+
+    //The state of the writer thread.
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream change = new ByteArrayOutputStream();
+    private final CRC32 crc = new CRC32();
+    private long checkpointSize;
+    private String journaledName;
+
+    private StructureJournal(Structure structure, Path logFile) throws IOException {
+        this.structure = structure;
+        this.logFile = logFile;
+        this.checkpointFile = checkpointOf(logFile);
+        this.log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.writer = new Thread(this::write, "Structure journal writer: " + logFile.getFileName());
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Starts journaling a structure, replacing any journal at the given path.
+     * The current state of the structure is written as the first checkpoint.
+     * @param structure
+     * @param file the log, the checkpoint is written next to it.
+     * @return
+     * @throws IOException
+     */
+    public static StructureJournal open(Structure structure, File file) throws IOException {
+        if(structure.getJournal() != null) {
+            throw new IllegalStateException("Structure: " + structure.uuid + " is already journaled!");
+        }
+        Path logFile = file.toPath().toAbsolutePath();
+        Files.createDirectories(logFile.getParent());
+
+        StructureJournal journal = new StructureJournal(structure, logFile);
+        try {
+            journal.writeCheckpoint(structure.snapshot());
+        } catch (IOException e) {
+            journal.log.close();
+            throw e;
+        }
+        structure.setJournal(journal);
+        journal.writer.start();
+        logger.info("Journaling structure: {} to: {}", structure.uuid, logFile);
+        return journal;
+    }
+
+    /**
+     * Recovers a journaled structure, reading its checkpoint and replaying the changes logged after it.
+     * A change torn by a crash ends the replay, every change before it is recovered.
+     * @param file the log.
+     * @return the structure or null if there is no journal at the path.
+     * @throws IOException if the checkpoint can't be read.
+     */
+    public static Structure recover(File file) throws IOException {
+        Path logFile = file.toPath().toAbsolutePath();
+        Path checkpointFile = checkpointOf(logFile);
+        if(!Files.exists(checkpointFile)) {
+            return null;
+        }
+
+        Structure structure;
+        long checkpointId;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(checkpointFile)))) {
+            checkpointId = readHeader(in, CHECKPOINT_MAGIC);
+            structure = BinaryStructureFormat.read(in);
+        }
+
+        int replayed = 0;
+        if(Files.exists(logFile)) {
+            long size = Files.size(logFile);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile)))) {
+                if(size >= HEADER_SIZE && readHeader(in, LOG_MAGIC) == checkpointId) {
+                    replayed = replay(structure, in, size - HEADER_SIZE);
+                } else {
+                    //Crashed while starting the log over, the checkpoint already holds every logged change.
+                    logger.warn("Ignoring journal log: {} not following its checkpoint.", logFile);
+                }
+            }
+        }
+        logger.info("Recovered structure: {} from: {}, replayed {} changes.", structure.uuid, logFile, replayed);
+        return structure;
+    }
+
+    /**
+     * Gets the journaled structure.
+     * @return
+     */
+    public Structure getStructure() {
+        return structure;
+    }
+
+    /**
+     * Gets the log file of the journal.
+     * @return
+     */
+    public File getFile() {
+        return logFile.toFile();
+    }
+
+    /**
+     * Writes a checkpoint of the current state of the structure, starting the log over.
+     * Called whenever the block list of the structure is replaced, as the change can't be logged.
+     */
+    public void checkpoint() {
+        enqueue(structure.snapshot());
+    }
+
+    /**
+     * Waits until every change published so far is synced to the disk.
+     * @throws IOException if the journal failed.
+     */
+    public void sync() throws IOException {
+        synchronized (queue) {
+            long target = queued;
+            while (written < target && failure == null && writer.isAlive()) {
+                try {
+                    queue.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while syncing journal: " + logFile);
+                }
+            }
+        }
+        if(failure != null) {
+            throw new IOException("Journal: " + logFile + " failed!", failure);
+        }
+    }
+
+    /**
+     * Stops journaling the structure, writing the queued changes first.
+     * The journal files are kept, so the structure can still be recovered.
+     * @throws IOException if the journal failed.
+     */
+    @Override
+    public void close() throws IOException {
+        if(structure.getJournal() == this) {
+            structure.setJournal(null);
+        }
+        synchronized (queue) {
+            closed = true;
+            queue.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing journal: " + logFile);
+        } finally {
+            if(!writer.isAlive()) {
+                log.close();
+            }
+        }
+        if(failure != null) {
+            throw new IOException("Journal: " + logFile + " failed!", failure);
+        }
+    }
+
+    /**
+     * Stops journaling the structure and deletes the journal files, e.g. once the structure has been saved.
+     * @throws IOException
+     */
+    public void delete() throws IOException {
+        try {
+            close();
+        } finally {
+            Files.deleteIfExists(checkpointFile);
+            Files.deleteIfExists(logFile);
+        }
+    }
+
+    /**
+     * Queues a published change of the structure.
+     * @param ids the ids of the changed blocks.
+     * @param snapshot the snapshot published by the change.
+     */
+    void record(int[] ids, StructureSnapshot snapshot) {
+        enqueue(new Change(ids, snapshot));
+    }
+
+    /**
+     * Queues a change or a checkpoint for the writer thread.
+     * @param item
+     */
+    private void enqueue(Object item) {
+        synchronized (queue) {
+            if(closed) return;
+            queue.add(item);
+            queued++;
+            queue.notifyAll();
+        }
+    }
+
+    /**
+     * Writes the queue until the journal is closed.
+     */
+    private void write() {
+        ArrayList<Object> batch = new ArrayList<>();
+        while (true) {
+            synchronized (queue) {
+                try {
+                    while (queue.isEmpty() && !closed) {
+                        queue.wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if(queue.isEmpty()) return;
+                batch.addAll(queue);
+                queue.clear();
+            }
+
+            if(failure == null) {
+                try {
+                    writeBatch(batch);
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Journal: {} failed, structure: {} is no longer journaled!", logFile, structure.uuid, e);
+                    failure = e;
+                }
+            }
+
+            synchronized (queue) {
+                written += batch.size();
+                queue.notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Writes the changes queued up together with a single sync.
+     * @param batch
+     * @throws IOException
+     */
+    private void writeBatch(ArrayList<Object> batch) throws IOException {
+        StructureSnapshot latest = null;
+        for (Object item :
+                batch) {
+            if(item instanceof Change) {
+                Change c = (Change) item;
+                encode(c);
+                latest = c.snapshot;
+            } else {
+                //The checkpoint holds the changes before it, they don't need to be logged.
+                pending.reset();
+                writeCheckpoint((StructureSnapshot) item);
+                latest = null;
+            }
+        }
+        if(pending.size() == 0) return;
+
+        ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+        pending.reset();
+        while (buffer.hasRemaining()) {
+            log.write(buffer);
+        }
+        log.force(false);
+
+        //Starting over once replaying the log would cost more than reading a checkpoint.
+        if(latest != null && log.size() > Math.max(MIN_CHECKPOINT_LOG_SIZE, checkpointSize)) {
+            writeCheckpoint(latest);
+        }
+    }
+
+    /**
+     * Appends a change to the pending bytes of the log.
+     * @param c
+     * @throws IOException
+     */
+    private void encode(Change c) throws IOException {
+        change.reset();
+        DataOutputStream data = new DataOutputStream(change);
+        String name = c.snapshot.getCustomName();
+        boolean renamed = !Objects.equals(name, journaledName);
+        data.write(renamed ? FLAG_NAME : 0);
+        data.write(c.snapshot.getOrientation());
+        if(renamed) {
+            if(name == null) {
+                VarInt.writeUnsigned(data, 0);
+            } else {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                VarInt.writeUnsigned(data, bytes.length + 1);
+                data.write(bytes);
+            }
+            journaledName = name;
+        }
+
+        VarInt.writeUnsigned(data, c.ids.length);
+        for (int id :
+                c.ids) {
+            VarInt.writeSigned(data, id);
+            BlockSnapshot state = c.snapshot.getBlock(id);
+            if(state == null) {
+                data.write(0);
+                continue;
+            }
+            data.write(1);
+            VarInt.writeSigned(data, state.getParent());
+            long local = state.getPackedLocalCoords();
+            VarInt.writeSigned(data, Coordinate.unpackX(local));
+            VarInt.writeSigned(data, Coordinate.unpackY(local));
+            VarInt.writeSigned(data, Coordinate.unpackZ(local));
+            int orientation = state.getOrientation();
+            data.write(orientation >>> 16);
+            data.write(orientation >>> 8);
+            data.write(orientation);
+            int mask = 0;
+            int slots = Math.min(state.getChildCount(), BlockPacking.CHILD_SLOTS);
+            for (int i = 0; i < slots; i++) {
+                if(state.getChild(i) != BlockPacking.NO_BLOCK) mask |= 1 << i;
+            }
+            data.write(mask);
+            for (int i = 0; i < slots; i++) {
+                if(state.getChild(i) != BlockPacking.NO_BLOCK) VarInt.writeSigned(data, state.getChild(i));
+            }
+        }
+        data.flush();
+
+        crc.reset();
+        crc.update(change.toByteArray(), 0, change.size());
+        DataOutputStream out = new DataOutputStream(pending);
+        out.writeInt(change.size());
+        out.writeInt((int) crc.getValue());
+        change.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * Replays the logged changes onto a structure.
+     * @param structure
+     * @param in the log, after its header.
+     * @param length the length of the logged changes.
+     * @return the number of replayed changes.
+     * @throws IOException
+     */
+    private static int replay(Structure structure, DataInputStream in, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        int replayed = 0;
+        long remaining = length;
+        while (remaining >= 8) {
+            int size = in.readInt();
+            int checksum = in.readInt();
+            remaining -= 8;
+            if(size < 0 || size > remaining) break;
+            byte[] bytes = new byte[size];
+            in.readFully(bytes);
+            remaining -= size;
+            crc.reset();
+            crc.update(bytes, 0, size);
+            if((int) crc.getValue() != checksum) break;
+
+            try {
+                applyChange(structure, new DataInputStream(new ByteArrayInputStream(bytes)));
+            } catch (EOFException e) {
+                break;
+            }
+            replayed++;
+        }
+        return replayed;
+    }
+
+    /**
+     * Applies a logged change to a structure.
+     * @param structure
+     * @param data
+     * @throws IOException
+     */
+    private static void applyChange(Structure structure, DataInputStream data) throws IOException {
+        int flags = data.readUnsignedByte();
+        int orientation = data.readUnsignedByte();
+        if(orientation >= CubeRotation.COUNT) {
+            throw new IOException("Invalid structure rotation: " + orientation);
+        }
+        if((flags & FLAG_NAME) != 0) {
+            int length = VarInt.readUnsigned(data);
+            if(length == 0) {
+                structure.customName = null;
+            } else {
+                byte[] bytes = new byte[length - 1];
+                data.readFully(bytes);
+                structure.customName = new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+
+        int count = VarInt.readUnsigned(data);
+        int[] ids = new int[count];
+        BlockSnapshot[] states = new BlockSnapshot[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = VarInt.readSigned(data);
+            if(data.readUnsignedByte() == 0) continue;
+
+            Block block = new Block(ids[i]);
+            block.parent = VarInt.readSigned(data);
+            block.localCoords.set(VarInt.readSigned(data), VarInt.readSigned(data), VarInt.readSigned(data));
+            BlockPacking.unpackOrientation(data.readUnsignedByte() << 16 | data.readUnsignedByte() << 8 | data.readUnsignedByte(), block);
+            int mask = data.readUnsignedByte();
+            for (int slot = 0; slot < BlockPacking.CHILD_SLOTS; slot++) {
+                if((mask & (1 << slot)) != 0) block.children[slot] = VarInt.readSigned(data);
+            }
+            states[i] = BlockSnapshot.of(block);
+        }
+        structure.restoreBlocks(ids, states, orientation);
+    }
+
+    /**
+     * Writes a checkpoint of the given state and starts the log over.
+     * @param snapshot
+     * @throws IOException
+     */
+    private void writeCheckpoint(StructureSnapshot snapshot) throws IOException {
+        long id = random.nextLong();
+        Path temp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            writeHeader(data, CHECKPOINT_MAGIC, id);
+            BinaryStructureFormat.write(snapshot.toStructure(), data);
+            data.flush();
+            channel.force(true);
+            checkpointSize = channel.size();
+        }
+        try {
+            Files.move(temp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, checkpointFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        //Emptying the log before pointing it at the new checkpoint, so a crash in between can't replay old changes.
+        log.truncate(0);
+        log.force(true);
+        ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_SIZE);
+        writeHeader(new DataOutputStream(header), LOG_MAGIC, id);
+        ByteBuffer buffer = ByteBuffer.wrap(header.toByteArray());
+        log.position(0);
+        while (buffer.hasRemaining()) {
+            log.write(buffer);
+        }
+        log.force(true);
+        journaledName = snapshot.getCustomName();
+    }
+
+    /**
+     * Writes the header of a journal file.
+     * @param data
+     * @param magic
+     * @param checkpointId
+     * @throws IOException
+     */
+    private static void writeHeader(DataOutputStream data, byte[] magic, long checkpointId) throws IOException {
+        data.write(magic);
+        data.write(VERSION);
+        data.writeLong(checkpointId);
+        data.flush();
+    }
+
+    /**
+     * Reads the header of a journal file.
+     * @param data
+     * @param magic
+     * @return the checkpoint id.
+     * @throws IOException if the file isn't a supported journal file.
+     */
+    private static long readHeader(DataInputStream data, byte[] magic) throws IOException {
+        byte[] read = new byte[magic.length];
+        data.readFully(read);
+        if(!Arrays.equals(read, magic)) {
+            throw new IOException("Not a structure journal file!");
+        }
+        int version = data.readUnsignedByte();
+        if(version != VERSION) {
+            throw new IOException("Unsupported journal version: " + version);
+        }
+        return data.readLong();
+    }
+
+    /**
+     * Gets the path of the checkpoint of a log.
+     * @param logFile
+     * @return
+     */
+    private static Path checkpointOf(Path logFile) {
+        return logFile.resolveSibling(logFile.getFileName() + CHECKPOINT_EXTENSION);
+    }
+
+    /**
+     * A published change waiting to be written.
+     */
+    private static final class Change {
+        final int[] ids;
+        final StructureSnapshot snapshot;
+
+        Change(int[] ids, StructureSnapshot snapshot) {
+            this.ids = ids;
+            this.snapshot = snapshot;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.logitow.bridge.build;
+
+import com.logitow.bridge.build.block.Block;
+import com.logitow.bridge.build.block.BlockSnapshot;
+import com.logitow.bridge.util.PersistentIntMap;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.UUID;
+
+/**
+ * Immutable, versioned view of a structure.
+ * Snapshots share unchanged blocks with each other, so a structure can publish one after every operation,
+ * and readers on other threads can hold on to one without locking.
+ */
+public final class StructureSnapshot implements Iterable<BlockSnapshot> {
+    /**
+     * The version of the snapshot, incremented with every published change of the structure.
+     */
+    private final long version;
+
+    /**
+     * Unique id of the structure.
+     */
+    private final UUID uuid;
+
+    /**
+     * Custom name of the structure.
+     */
+    private final String customName;
+
+    /**
+     * The rotation of the structure, see CubeRotation.
+     */
+    private final int orientation;
+
+    /**
+     * The blocks of the structure, by id.
+     */
+    private final PersistentIntMap<BlockSnapshot> blocks;
+
+    /**
+     * The fingerprint of the blocks, computed on first use.
+     */
+    private volatile StructureFingerprint fingerprint;
+
+    StructureSnapshot(long version, UUID uuid, String customName, int orientation, PersistentIntMap<BlockSnapshot> blocks) {
+        this.version = version;
+        this.uuid = uuid;
+        this.customName = customName;
+        this.orientation = orientation;
+        this.blocks = blocks;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public String getCustomName() {
+        return customName;
+    }
+
+    /**
+     * Gets the rotation of the structure, see CubeRotation.
+     * @return
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * Gets the blocks of the structure, by id.
+     * @return
+     */
+    public PersistentIntMap<BlockSnapshot> getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Gets the number of blocks.
+     * @return
+     */
+    public int size() {
+        return blocks.size();
+    }
+
+    /**
+     * Gets a block by id.
+     * @param id
+     * @return the block or null.
+     */
+    public BlockSnapshot getBlock(int id) {
+        return blocks.get(id);
+    }
+
+    /**
+     * Gets the fingerprint of the shape of the blocks, see StructureFingerprint.
+     * Computed once per snapshot.
+     * @return
+     */
+    public StructureFingerprint getFingerprint() {
+        StructureFingerprint computed = fingerprint;
+        if(computed == null) {
+            computed = StructureFingerprint.of(this);
+            fingerprint = computed;
+        }
+        return computed;
+    }
+
+    /**
+     * Checks whether another snapshot has the same blocks, regardless of the rotation, uuid and name of the structures.
+     * @param other
+     * @return
+     */
+    public boolean hasSameBlocks(StructureSnapshot other) {
+        if(other.size() != size()) return false;
+        for (BlockSnapshot block :
+                blocks) {
+            if(!block.equals(other.getBlock(block.getId()))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the coordinate of a block within the structure.
+     * @param block
+     * @return
+     */
+    public Coordinate getCoordinate(BlockSnapshot block) {
+        return block.getCoordinate(orientation);
+    }
+
+    /**
+     * Iterates over the blocks, in no particular order.
+     * @return
+     */
+    @Override
+    public Iterator<BlockSnapshot> iterator() {
+        return blocks.iterator();
+    }
+
+    /**
+     * Creates a mutable structure with the state of the snapshot.
+     * @return
+     */
+    public Structure toStructure() {
+        Structure structure = new Structure();
+        structure.uuid = uuid;
+        structure.customName = customName;
+        ArrayList<Block> blockList = new ArrayList<>(blocks.size());
+        for (BlockSnapshot b :
+                blocks) {
+            blockList.add(b.toBlock(orientation));
+        }
+        structure.rotations = new ArrayList<>();
+        if(orientation != CubeRotation.IDENTITY) {
+            structure.rotations.add(CubeRotation.toAngles(orientation));
+        }
+        structure.setBlocks(blockList);
+        return structure;
+    }
+
+    @Override
+    public String toString() {
+        return "Snapshot:{" + (customName != null && !customName.isEmpty() ? customName : uuid) + ", v" + version + "}";
+    }
+}
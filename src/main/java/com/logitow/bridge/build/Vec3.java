@@ -61,6 +61,59 @@ public class Vec3 implements Cloneable, Serializable {
 
 
 
+    /**
+     * Creates a vector from a packed coordinate.
+     * @param packed
+     * @return
+     */
+    public static Vec3 fromPacked(long packed) {
+        return new Vec3(Coordinate.unpackX(packed), Coordinate.unpackY(packed), Coordinate.unpackZ(packed));
+    }
+
+    /**
+     * Gets the packed coordinate form of the vector.
+     * @return
+     */
+    public long pack() {
+        return Coordinate.pack(x, y, z);
+    }
+
+    /**
+     * Gets an immutable coordinate with the values of the vector.
+     * @return
+     */
+    public Coordinate toCoordinate() {
+        return Coordinate.of(x, y, z);
+    }
+
+    /**
+     * Sets all the values of the vector.
+     * @param x
+     * @param y
+     * @param z
+     */
+    public void set(int x, int y, int z) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
+    /**
+     * Sets all the values of the vector to the values of another vector.
+     * @param b
+     */
+    public void set(Vec3 b) {
+        set(b.x, b.y, b.z);
+    }
+
+    /**
+     * Sets all the values of the vector from a packed coordinate.
+     * @param packed
+     */
+    public void setPacked(long packed) {
+        set(Coordinate.unpackX(packed), Coordinate.unpackY(packed), Coordinate.unpackZ(packed));
+    }
+
     @Override
     public boolean equals(Object obj) {
         if(obj instanceof Vec3) {
@@ -75,6 +128,11 @@ public class Vec3 implements Cloneable, Serializable {
         }
     }
 
+    @Override
+    public int hashCode() {
+        return Long.hashCode(pack());
+    }
+
     public int getX() {
         return x;
     }
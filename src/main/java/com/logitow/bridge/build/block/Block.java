@@ -1,5 +1,6 @@
 package com.logitow.bridge.build.block;
 
+import com.logitow.bridge.build.Coordinate;
 import com.logitow.bridge.build.Structure;
 import com.logitow.bridge.build.Vec3;
 import org.apache.logging.log4j.LogManager;
@@ -156,14 +157,20 @@ public class Block implements Serializable{
      * @param structure the structure this block is a part of.
      * @param attachedTo the block to which this block is attached.
      * @param attachedSide the side to which the block is attached.
+     * @return false if the side isn't a side of the parent block, the block isn't attached then.
      */
-    public void calculateCoordinates(Structure structure, Block attachedTo, BlockSide attachedSide) {
+    public boolean calculateCoordinates(Structure structure, Block attachedTo, BlockSide attachedSide) {
+        //Getting the relative attach direction.
+        BlockSide attachDirection = attachedTo.getRelativeDirection(attachedSide);
+        if(attachDirection == BlockSide.UNDEFINED) {
+            Structure.logger.warn("Can't attach block: {} to side: {} of block: {}, the side is undefined!", this.id, attachedSide, attachedTo.id);
+            return false;
+        }
+
         //Setting variables.
         this.parent = attachedTo.id;
         this.structure = structure;
-
-        //Getting the relative attach direction.
-        parentAttachSide = attachedTo.getRelativeDirection(attachedSide);
+        parentAttachSide = attachDirection;
 
         //Checking whether a block has already been attached to the same direction.
         if(attachedTo.children[parentAttachSide.sideId-1] != -10) {
@@ -176,29 +183,11 @@ public class Block implements Serializable{
 
         //Getting the coords.
         this.relativeAttachDir = sideDirectionMapping[parentAttachSide.sideId-1];
-        switch(this.relativeAttachDir) {
-            case TOP:
-                this.coordinate = new Vec3(attachedTo.localCoords.getX(),attachedTo.localCoords.getY() + 1,attachedTo.localCoords.getZ());
-                break;
-            case BOTTOM:
-                this.coordinate = new Vec3(attachedTo.localCoords.getX(),attachedTo.localCoords.getY() - 1,attachedTo.localCoords.getZ());
-                break;
-            case FRONT:
-                this.coordinate = new Vec3(attachedTo.localCoords.getX(),attachedTo.localCoords.getY(),attachedTo.localCoords.getZ() + 1);
-                break;
-            case BACK:
-                this.coordinate = new Vec3(attachedTo.localCoords.getX(),attachedTo.localCoords.getY(),attachedTo.localCoords.getZ() - 1);
-                break;
-            case LEFT:
-                this.coordinate = new Vec3(attachedTo.localCoords.getX()+1,attachedTo.localCoords.getY(),attachedTo.localCoords.getZ());
-                break;
-            case RIGHT:
-                this.coordinate = new Vec3(attachedTo.localCoords.getX()-1,attachedTo.localCoords.getY(),attachedTo.localCoords.getZ());
-                break;
-            default:
-                System.out.println("UNDEFINED side!");
-                break;
+        long packedCoords = Coordinate.offset(attachedTo.localCoords.pack(), this.relativeAttachDir);
+        if(this.coordinate == null) {
+            this.coordinate = Vec3.zero();
         }
+        this.coordinate.setPacked(packedCoords);
 
         //Assigning the child face ids, based on the attachment face.
         for (int parentFaceID = 0; parentFaceID < 6; parentFaceID++) {
@@ -214,7 +203,11 @@ public class Block implements Serializable{
             }
         }
 
-        this.localCoords = this.coordinate.clone();
+        if(this.localCoords == null) {
+            this.localCoords = Vec3.zero();
+        }
+        this.localCoords.setPacked(packedCoords);
+        return true;
     }
 
     /**
@@ -231,6 +224,18 @@ public class Block implements Serializable{
         return BlockSide.UNDEFINED;
     }
 
+    /**
+     * Checks whether a block can be attached to the given side of this block.
+     * @param attachSide
+     * @return
+     */
+    public boolean canAttach(BlockSide attachSide) {
+        if(attachSide == null || attachSide == BlockSide.UNDEFINED || firstChildFaces[attachSide.sideId-1][0] == 0) {
+            return false;
+        }
+        return getRelativeDirection(attachSide) != BlockSide.UNDEFINED;
+    }
+
     @Override
     public String toString() {
         return this.id + "";
@@ -0,0 +1,254 @@
+package com.logitow.bridge.build.block;
+
+import java.util.Arrays;
+
+/**
+ * Maps block ids to blocks.
+ * Uses open addressing with linear probing over primitive keys, so lookups don't box the ids.
+ */
+public class BlockIdMap {
+    /**
+     * The smallest table capacity.
+     */
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * The keys of the table.
+     */
+    private int[] keys;
+
+    /**
+     * The values of the table. A null value marks a free slot.
+     */
+    private Block[] values;
+
+    /**
+     * The number of mapped blocks.
+     */
+    private int size;
+
+    /**
+     * Mask used to wrap slot indexes, always capacity - 1.
+     */
+    private int mask;
+
+    /**
+     * Creates an empty map.
+     */
+    public BlockIdMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Creates an empty map able to hold the given number of blocks without resizing.
+     * @param expectedSize
+     */
+    public BlockIdMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    /**
+     * Gets the block with the given id.
+     * @param id
+     * @return the block or null if no block with the id is mapped.
+     */
+    public Block get(int id) {
+        int slot = hash(id) & mask;
+        Block value;
+        while ((value = values[slot]) != null) {
+            if(keys[slot] == id) {
+                return value;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether a block with the given id is mapped.
+     * @param id
+     * @return
+     */
+    public boolean containsKey(int id) {
+        return get(id) != null;
+    }
+
+    /**
+     * Maps a block by its id, replacing any block previously mapped to the same id.
+     * @param block
+     * @return the previously mapped block or null.
+     */
+    public Block put(Block block) {
+        return put(block.id, block);
+    }
+
+    /**
+     * Maps a block to the given id, replacing any block previously mapped to the same id.
+     * @param id
+     * @param block
+     * @return the previously mapped block or null.
+     */
+    public Block put(int id, Block block) {
+        if(block == null) {
+            throw new IllegalArgumentException("Can't map a null block!");
+        }
+        int slot = hash(id) & mask;
+        Block value;
+        while ((value = values[slot]) != null) {
+            if(keys[slot] == id) {
+                values[slot] = block;
+                return value;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = id;
+        values[slot] = block;
+        if(++size > (mask + 1) * 3 / 4) {
+            resize((mask + 1) * 2);
+        }
+        return null;
+    }
+
+    /**
+     * Removes the mapping of the given id.
+     * @param id
+     * @return the removed block or null.
+     */
+    public Block remove(int id) {
+        int slot = hash(id) & mask;
+        Block value;
+        while ((value = values[slot]) != null) {
+            if(keys[slot] == id) {
+                shiftBack(slot);
+                size--;
+                return value;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Removes the mapping of the given id, only if it is mapped to the given block.
+     * @param id
+     * @param block
+     * @return whether the mapping was removed.
+     */
+    public boolean remove(int id, Block block) {
+        int slot = hash(id) & mask;
+        Block value;
+        while ((value = values[slot]) != null) {
+            if(keys[slot] == id) {
+                if(value != block) {
+                    return false;
+                }
+                shiftBack(slot);
+                size--;
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Removes every mapping.
+     */
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Gets the number of mapped blocks.
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks whether the map is empty.
+     * @return
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Fills the slot freed at the given index by moving back the entries of its probe chain.
+     * Keeps lookups correct without leaving tombstones behind.
+     * @param free
+     */
+    private void shiftBack(int free) {
+        int slot = free;
+        while (true) {
+            slot = (slot + 1) & mask;
+            Block value = values[slot];
+            if(value == null) {
+                break;
+            }
+            int home = hash(keys[slot]) & mask;
+            //Moving the entry only if its home slot doesn't lie cyclically within (free, slot].
+            if(((slot - home) & mask) >= ((slot - free) & mask)) {
+                keys[free] = keys[slot];
+                values[free] = value;
+                free = slot;
+            }
+        }
+        values[free] = null;
+    }
+
+    /**
+     * Rehashes the table into the given capacity.
+     * @param capacity
+     */
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Block[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if(oldValues[i] == null) continue;
+            int slot = hash(oldKeys[i]) & mask;
+            while (values[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    /**
+     * Allocates empty tables of the given capacity.
+     * @param capacity
+     */
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new Block[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Gets the power of two capacity fitting the given size under the load factor.
+     * @param size
+     * @return
+     */
+    private static int capacityFor(int size) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < size) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Spreads the bits of a block id.
+     * Block ids share their upper bits within a color range, so they need mixing before masking.
+     * @param id
+     * @return
+     */
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
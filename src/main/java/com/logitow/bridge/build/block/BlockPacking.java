@@ -0,0 +1,80 @@
+package com.logitow.bridge.build.block;
+
+/**
+ * Packing of the block fields stored by the compact structure encodings, the binary format, the journal and the snapshots.
+ */
+public final class BlockPacking {
+    /**
+     * Number of child slots of every block.
+     */
+    public static final int CHILD_SLOTS = 7;
+
+    /**
+     * Number of sides of every block.
+     */
+    public static final int SIDES = 6;
+
+    /**
+     * The value of an empty child slot or a missing parent.
+     */
+    public static final int NO_BLOCK = -10;
+
+    /**
+     * The packed orientation value of a missing side.
+     */
+    private static final int NULL_SIDE = 7;
+
+    private BlockPacking() {
+    }
+
+    /**
+     * Packs the side mappings and attach sides of a block into a single int.
+     * Bits 0-17 hold the 6 side mappings, bits 18-20 the relative attach direction
+     * and bits 21-23 the parent attach side, 3 bits each.
+     * @param sides
+     * @param relativeAttachDir
+     * @param parentAttachSide
+     * @return
+     */
+    public static int packOrientation(BlockSide[] sides, BlockSide relativeAttachDir, BlockSide parentAttachSide) {
+        int packed = 0;
+        for (int i = 0; i < SIDES; i++) {
+            packed |= packSide(sides == null || i >= sides.length ? null : sides[i]) << (i * 3);
+        }
+        packed |= packSide(relativeAttachDir) << 18;
+        packed |= packSide(parentAttachSide) << 21;
+        return packed;
+    }
+
+    /**
+     * Sets the side mappings and attach sides of a block from their packed form, see packOrientation.
+     * @param packed
+     * @param block
+     */
+    public static void unpackOrientation(int packed, Block block) {
+        for (int i = 0; i < SIDES; i++) {
+            block.sides[i] = unpackSide(packed >>> (i * 3));
+        }
+        block.relativeAttachDir = unpackSide(packed >>> 18);
+        block.parentAttachSide = unpackSide(packed >>> 21);
+    }
+
+    /**
+     * Packs a block side into 3 bits.
+     * @param side
+     * @return
+     */
+    private static int packSide(BlockSide side) {
+        return side == null ? NULL_SIDE : side.sideId;
+    }
+
+    /**
+     * Unpacks a block side from the lowest 3 bits of the value.
+     * @param packed
+     * @return
+     */
+    static BlockSide unpackSide(int packed) {
+        packed &= 7;
+        return packed == NULL_SIDE ? null : BlockSide.getBlockSide(packed);
+    }
+}
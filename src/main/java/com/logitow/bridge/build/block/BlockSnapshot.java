@@ -0,0 +1,187 @@
+package com.logitow.bridge.build.block;
+
+import com.logitow.bridge.build.Coordinate;
+import com.logitow.bridge.build.CubeRotation;
+import com.logitow.bridge.build.Vec3;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Immutable copy of the state of a block.
+ * The coordinate is kept without the structure rotation, so rotating a structure doesn't change its block snapshots.
+ */
+public final class BlockSnapshot implements Serializable {
+    /**
+     * The id of the block.
+     */
+    private final int id;
+
+    /**
+     * The id of the block that this block is attached to.
+     */
+    private final int parent;
+
+    /**
+     * Packed coordinate without the structure rotation.
+     */
+    private final long localCoords;
+
+    /**
+     * Packed side mappings and attach sides, see BlockPacking.packOrientation.
+     */
+    private final int orientation;
+
+    /**
+     * The ids of blocks attached to this block.
+     */
+    private final int[] children;
+
+    private BlockSnapshot(int id, int parent, long localCoords, int orientation, int[] children) {
+        this.id = id;
+        this.parent = parent;
+        this.localCoords = localCoords;
+        this.orientation = orientation;
+        this.children = children;
+    }
+
+    /**
+     * Creates a snapshot of the current state of a block.
+     * @param block
+     * @return
+     */
+    public static BlockSnapshot of(Block block) {
+        long local = block.localCoords == null ? 0 : block.localCoords.pack();
+        return new BlockSnapshot(block.id, block.parent, local,
+                BlockPacking.packOrientation(block.sides, block.relativeAttachDir, block.parentAttachSide),
+                block.children == null ? new int[0] : block.children.clone());
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getParent() {
+        return parent;
+    }
+
+    /**
+     * Gets the packed coordinate of the block without the structure rotation.
+     * @return
+     */
+    public long getPackedLocalCoords() {
+        return localCoords;
+    }
+
+    /**
+     * Gets the coordinate of the block without the structure rotation.
+     * @return
+     */
+    public Coordinate getLocalCoords() {
+        return Coordinate.fromPacked(localCoords);
+    }
+
+    /**
+     * Gets the coordinate of the block within a structure with the given rotation.
+     * @param structureOrientation see CubeRotation.
+     * @return
+     */
+    public Coordinate getCoordinate(int structureOrientation) {
+        return Coordinate.fromPacked(CubeRotation.apply(structureOrientation, localCoords));
+    }
+
+    /**
+     * Gets the packed side mappings and attach sides of the block.
+     * @return
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * Gets the number of child slots.
+     * @return
+     */
+    public int getChildCount() {
+        return children.length;
+    }
+
+    /**
+     * Gets the id of the child attached in the given child slot.
+     * @param childSlot
+     * @return
+     */
+    public int getChild(int childSlot) {
+        return children[childSlot];
+    }
+
+    /**
+     * Gets the side mapped to the given direction.
+     * @param direction index of the direction, 0-5.
+     * @return
+     */
+    public BlockSide getSide(int direction) {
+        return BlockPacking.unpackSide(orientation >>> (direction * 3));
+    }
+
+    public BlockSide getRelativeAttachDir() {
+        return BlockPacking.unpackSide(orientation >>> 18);
+    }
+
+    public BlockSide getParentAttachSide() {
+        return BlockPacking.unpackSide(orientation >>> 21);
+    }
+
+    public BlockType getBlockType() {
+        return Block.getBlockType(id);
+    }
+
+    /**
+     * Creates a mutable block with the state of the snapshot.
+     * @param structureOrientation the rotation of the structure the block is placed in, see CubeRotation.
+     * @return
+     */
+    public Block toBlock(int structureOrientation) {
+        Block block = new Block(id);
+        applyTo(block, structureOrientation);
+        return block;
+    }
+
+    /**
+     * Sets the state of a block with the same id to the state of the snapshot.
+     * @param block
+     * @param structureOrientation the rotation of the structure the block is placed in, see CubeRotation.
+     */
+    public void applyTo(Block block, int structureOrientation) {
+        block.parent = parent;
+        if(block.localCoords == null) {
+            block.localCoords = Vec3.zero();
+        }
+        block.localCoords.setPacked(localCoords);
+        if(block.coordinate == null) {
+            block.coordinate = Vec3.zero();
+        }
+        block.coordinate.setPacked(CubeRotation.apply(structureOrientation, localCoords));
+        System.arraycopy(children, 0, block.children, 0, Math.min(children.length, block.children.length));
+        BlockPacking.unpackOrientation(orientation, block);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) return true;
+        if(!(o instanceof BlockSnapshot)) return false;
+        BlockSnapshot other = (BlockSnapshot) o;
+        return id == other.id && parent == other.parent && localCoords == other.localCoords
+                && orientation == other.orientation && Arrays.equals(children, other.children);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * id + Long.hashCode(localCoords)) + orientation;
+    }
+
+    @Override
+    public String toString() {
+        return id + "";
+    }
+}
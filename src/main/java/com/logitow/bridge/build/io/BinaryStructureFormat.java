@@ -0,0 +1,630 @@
+package com.logitow.bridge.build.io;
+
+import com.logitow.bridge.build.Coordinate;
+import com.logitow.bridge.build.CubeRotation;
+import com.logitow.bridge.build.Structure;
+import com.logitow.bridge.build.StructureFingerprint;
+import com.logitow.bridge.build.block.Block;
+import com.logitow.bridge.build.block.BlockPacking;
+import com.logitow.bridge.build.block.BlockType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The binary structure file format.
+ *
+ * Layout, version 2:
+ * - "LGTW" magic, version byte, flags byte.
+ * - uuid as two big endian longs, then the custom name as a varint length and UTF-8 bytes if the name flag is set.
+ * - the structure rotation byte, see CubeRotation.
+ * - sections, each a varint tag, a varint length and its data, ending with a 0 tag.
+ *   Readers skip the sections they don't know, so sections can be added without a new version.
+ *   SECTION_METADATA holds the varint block count, the zigzag varint smallest and largest block coordinates,
+ *   a varint number of block type counts, each a type ordinal byte and a varint count,
+ *   and the StructureFingerprint as two big endian longs.
+ *   SECTION_PREVIEW holds the top, front and side views of StructurePreview.
+ *   SECTION_BLOCK_FILTER holds the BlockIdFilter of the block ids.
+ *   SECTION_BLOCK_IDS holds the varint number of distinct block ids, the zigzag varint smallest id
+ *   and the varint differences of the following ids, sorted.
+ *   SECTION_REFERENCE holds the UTF-8 save name of the file holding the blocks, the block count is then 0, see writeReference.
+ *   Fields may be added at the end of a section.
+ * - varint block count, followed by the blocks:
+ *   zigzag varint id and parent, zigzag varint local coords as the difference from the previous block,
+ *   3 bytes of packed orientation (see BlockPacking.packOrientation),
+ *   a bitmask of the occupied child slots followed by the zigzag varint ids of those children.
+ *
+ * The rotated coordinates aren't stored, they are computed from the local coords and the structure rotation.
+ * Version 1 is version 2 without the sections.
+ */
+public final class BinaryStructureFormat {
+    /**
+     * The magic bytes every binary structure file starts with.
+     */
+    public static final byte[] MAGIC = {'L', 'G', 'T', 'W'};
+
+    /**
+     * The current version of the format.
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * The tag ending the sections.
+     */
+    public static final int SECTION_END = 0;
+
+    /**
+     * The tag of the metadata section, see StructureMetadata.
+     */
+    public static final int SECTION_METADATA = 1;
+
+    /**
+     * The tag of the preview section, see StructurePreview.
+     */
+    public static final int SECTION_PREVIEW = 2;
+
+    /**
+     * The tag of the block id filter section, see BlockIdFilter.
+     */
+    public static final int SECTION_BLOCK_FILTER = 3;
+
+    /**
+     * The tag of the block ids section.
+     */
+    public static final int SECTION_BLOCK_IDS = 4;
+
+    /**
+     * The tag of the reference section, see writeReference.
+     */
+    public static final int SECTION_REFERENCE = 5;
+
+    /**
+     * Flag set when the structure has a custom name.
+     */
+    private static final int FLAG_CUSTOM_NAME = 1;
+
+    /**
+     * The largest length of a section, in bytes.
+     * Far above the sections of the largest structures, keeps a corrupt length from allocating gigabytes.
+     */
+    private static final int MAX_SECTION_LENGTH = 1 << 26;
+
+    /**
+     * The largest length of a custom name, in bytes.
+     */
+    private static final int MAX_NAME_LENGTH = 1 << 16;
+
+    private BinaryStructureFormat() {
+    }
+
+    /**
+     * Checks whether the given bytes start with the magic of the format.
+     * @param header
+     * @return
+     */
+    public static boolean hasMagic(byte[] header) {
+        return header.length >= MAGIC.length && Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC);
+    }
+
+    /**
+     * Writes a structure.
+     * The stream should be buffered, the blocks are written a few bytes at a time.
+     * @param structure
+     * @param out
+     * @throws IOException
+     */
+    public static void write(Structure structure, OutputStream out) throws IOException {
+        write(structure, null, out);
+    }
+
+    /**
+     * Writes a structure without its blocks, only referencing another file of the same directory holding the same blocks.
+     * The header, the rotation and the sections are written as usual, so the structure can be listed without the other file.
+     * Reading the structure throws a StructureReferenceException, the blocks have to be read from the referenced file.
+     * @param structure
+     * @param target the save name of the referenced file.
+     * @param out
+     * @throws IOException
+     */
+    public static void writeReference(Structure structure, String target, OutputStream out) throws IOException {
+        write(structure, target, out);
+    }
+
+    /**
+     * Writes a structure, or only a reference to its blocks if the target is set.
+     * @param structure
+     * @param target
+     * @param out
+     * @throws IOException
+     */
+    private static void write(Structure structure, String target, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+
+        //Header.
+        data.write(MAGIC);
+        data.write(VERSION);
+        data.write(structure.customName != null ? FLAG_CUSTOM_NAME : 0);
+        data.writeLong(structure.uuid.getMostSignificantBits());
+        data.writeLong(structure.uuid.getLeastSignificantBits());
+        if(structure.customName != null) {
+            byte[] name = structure.customName.getBytes(StandardCharsets.UTF_8);
+            VarInt.writeUnsigned(data, name.length);
+            data.write(name);
+        }
+        data.write(structure.getOrientation());
+
+        //Sections.
+        StructureMetadata metadata = StructureMetadata.of(structure);
+        writeSection(data, SECTION_METADATA, encodeMetadata(metadata));
+        ByteArrayOutputStream preview = new ByteArrayOutputStream(256);
+        StructurePreview.of(structure).write(preview);
+        writeSection(data, SECTION_PREVIEW, preview.toByteArray());
+        int[] ids = BlockIdFilter.idsOf(structure);
+        ByteArrayOutputStream filter = new ByteArrayOutputStream(ids.length * BlockIdFilter.BITS_PER_ID / 8 + 16);
+        BlockIdFilter.of(ids).write(filter);
+        writeSection(data, SECTION_BLOCK_FILTER, filter.toByteArray());
+        writeSection(data, SECTION_BLOCK_IDS, encodeBlockIds(ids));
+        if(target != null) {
+            writeSection(data, SECTION_REFERENCE, target.getBytes(StandardCharsets.UTF_8));
+            VarInt.writeUnsigned(data, SECTION_END);
+            VarInt.writeUnsigned(data, 0);
+            data.flush();
+            return;
+        }
+        VarInt.writeUnsigned(data, SECTION_END);
+
+        //Blocks.
+        VarInt.writeUnsigned(data, metadata.blockCount);
+        int previousX = 0, previousY = 0, previousZ = 0;
+        for (Block block :
+                structure.blocks) {
+            if(block == null) continue;
+            VarInt.writeSigned(data, block.id);
+            VarInt.writeSigned(data, block.parent);
+
+            int x = block.localCoords == null ? 0 : block.localCoords.getX();
+            int y = block.localCoords == null ? 0 : block.localCoords.getY();
+            int z = block.localCoords == null ? 0 : block.localCoords.getZ();
+            VarInt.writeSigned(data, x - previousX);
+            VarInt.writeSigned(data, y - previousY);
+            VarInt.writeSigned(data, z - previousZ);
+            previousX = x;
+            previousY = y;
+            previousZ = z;
+
+            int orientation = BlockPacking.packOrientation(block.sides, block.relativeAttachDir, block.parentAttachSide);
+            data.write(orientation >>> 16);
+            data.write(orientation >>> 8);
+            data.write(orientation);
+
+            int mask = 0;
+            int slots = block.children == null ? 0 : Math.min(block.children.length, BlockPacking.CHILD_SLOTS);
+            for (int i = 0; i < slots; i++) {
+                if(block.children[i] != BlockPacking.NO_BLOCK) mask |= 1 << i;
+            }
+            data.write(mask);
+            for (int i = 0; i < slots; i++) {
+                if(block.children[i] != BlockPacking.NO_BLOCK) VarInt.writeSigned(data, block.children[i]);
+            }
+        }
+        data.flush();
+    }
+
+    /**
+     * Reads the uuid and name of a structure, without reading its blocks.
+     * @param in
+     * @return
+     * @throws IOException if the data isn't a supported binary structure.
+     */
+    public static StructureHeader readHeader(InputStream in) throws IOException {
+        DataInputStream data = in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+        readVersion(data);
+        return readHeaderFields(data);
+    }
+
+    /**
+     * Reads the magic and the version of the format.
+     * @param data
+     * @return the version.
+     * @throws IOException if the data isn't a supported binary structure.
+     */
+    private static int readVersion(DataInputStream data) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        data.readFully(magic);
+        if(!hasMagic(magic)) {
+            throw new IOException("Not a binary logitow structure!");
+        }
+        int version = data.readUnsignedByte();
+        if(version < 1 || version > VERSION) {
+            throw new IOException("Unsupported structure format version: " + version);
+        }
+        return version;
+    }
+
+    /**
+     * Reads the flags, uuid and name following the version.
+     * @param data
+     * @return
+     * @throws IOException
+     */
+    private static StructureHeader readHeaderFields(DataInputStream data) throws IOException {
+        int flags = data.readUnsignedByte();
+
+        UUID uuid = new UUID(data.readLong(), data.readLong());
+        String customName = null;
+        if((flags & FLAG_CUSTOM_NAME) != 0) {
+            int length = VarInt.readUnsigned(data);
+            if(length < 0 || length > MAX_NAME_LENGTH) {
+                throw new IOException("Invalid custom name length: " + length);
+            }
+            byte[] name = new byte[length];
+            data.readFully(name);
+            customName = new String(name, StandardCharsets.UTF_8);
+        }
+        return new StructureHeader(uuid, customName);
+    }
+
+    /**
+     * Reads the metadata of a structure, without reading its blocks.
+     * Structures saved before the metadata was stored are read whole to compute it.
+     * @param in
+     * @return
+     * @throws IOException if the data isn't a supported binary structure.
+     */
+    public static StructureMetadata readMetadata(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        Preamble preamble = readPreamble(data, SECTION_METADATA, SECTION_REFERENCE);
+        if(preamble.get(SECTION_METADATA) != null) {
+            return decodeMetadata(preamble.header, preamble.get(SECTION_METADATA), preamble.get(SECTION_REFERENCE));
+        }
+        return StructureMetadata.of(readBlocks(data, preamble));
+    }
+
+    /**
+     * Reads the metadata of a structure if it's stored, otherwise only its header, never reading its blocks.
+     * @param in
+     * @return the metadata, or the header for structures saved before the metadata was stored.
+     * @throws IOException if the data isn't a supported binary structure.
+     */
+    public static StructureHeader readStoredMetadata(InputStream in) throws IOException {
+        Preamble preamble = readPreamble(new DataInputStream(in), SECTION_METADATA, SECTION_REFERENCE);
+        if(preamble.get(SECTION_METADATA) != null) {
+            return decodeMetadata(preamble.header, preamble.get(SECTION_METADATA), preamble.get(SECTION_REFERENCE));
+        }
+        return preamble.header;
+    }
+
+    /**
+     * Reads the preview of a structure, without reading its blocks.
+     * Structures saved before the preview was stored are read whole to compute it.
+     * @param in
+     * @return
+     * @throws IOException if the data isn't a supported binary structure.
+     */
+    public static StructurePreview readPreview(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        Preamble preamble = readPreamble(data, SECTION_PREVIEW);
+        if(preamble.get(SECTION_PREVIEW) != null) {
+            return StructurePreview.read(new ByteArrayInputStream(preamble.get(SECTION_PREVIEW)));
+        }
+        return StructurePreview.of(readBlocks(data, preamble));
+    }
+
+    /**
+     * Reads the block id filter of a structure, without reading its blocks.
+     * Structures saved before the filter was stored are read whole to compute it.
+     * @param in
+     * @return
+     * @throws IOException if the data isn't a supported binary structure.
+     */
+    public static BlockIdFilter readBlockFilter(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        Preamble preamble = readPreamble(data, SECTION_BLOCK_FILTER);
+        if(preamble.get(SECTION_BLOCK_FILTER) != null) {
+            return BlockIdFilter.read(new ByteArrayInputStream(preamble.get(SECTION_BLOCK_FILTER)));
+        }
+        return BlockIdFilter.of(readBlocks(data, preamble));
+    }
+
+    /**
+     * Reads the distinct block ids of a structure, sorted, without reading its blocks.
+     * Structures saved before the ids were stored are read whole to get them.
+     * @param in
+     * @return
+     * @throws IOException if the data isn't a supported binary structure.
+     */
+    public static int[] readBlockIds(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        Preamble preamble = readPreamble(data, SECTION_BLOCK_IDS);
+        if(preamble.get(SECTION_BLOCK_IDS) != null) {
+            return decodeBlockIds(preamble.get(SECTION_BLOCK_IDS));
+        }
+        return BlockIdFilter.idsOf(readBlocks(data, preamble));
+    }
+
+    /**
+     * Reads a structure.
+     * @param in
+     * @return the structure, with its indexes built.
+     * @throws StructureReferenceException if the structure only references the file holding its blocks.
+     * @throws IOException if the data isn't a supported binary structure.
+     */
+    public static Structure read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        Preamble preamble = readPreamble(data, SECTION_REFERENCE);
+        if(preamble.get(SECTION_REFERENCE) != null) {
+            throw new StructureReferenceException(preamble.header, preamble.rotation,
+                    new String(preamble.get(SECTION_REFERENCE), StandardCharsets.UTF_8));
+        }
+        return readBlocks(data, preamble);
+    }
+
+    /**
+     * Reads everything before the blocks.
+     * @param data
+     * @param wantedSections the tags of the sections to keep.
+     * @return
+     * @throws IOException
+     */
+    private static Preamble readPreamble(DataInputStream data, int... wantedSections) throws IOException {
+        int version = readVersion(data);
+        StructureHeader header = readHeaderFields(data);
+        int rotation = data.readUnsignedByte();
+        if(rotation >= CubeRotation.COUNT) {
+            throw new IOException("Invalid structure rotation: " + rotation);
+        }
+
+        //Sections, version 1 has none.
+        byte[][] sections = new byte[wantedSections.length][];
+        if(version >= 2) {
+            int tag;
+            while ((tag = VarInt.readUnsigned(data)) != SECTION_END) {
+                int length = VarInt.readUnsigned(data);
+                if(length < 0 || length > MAX_SECTION_LENGTH) {
+                    throw new IOException("Invalid length: " + length + " of section: " + tag);
+                }
+                int wanted = indexOf(wantedSections, tag);
+                if(wanted >= 0) {
+                    sections[wanted] = new byte[length];
+                    data.readFully(sections[wanted]);
+                } else {
+                    skipFully(data, length);
+                }
+            }
+        }
+        return new Preamble(header, rotation, wantedSections, sections);
+    }
+
+    /**
+     * Reads the blocks of a structure.
+     * @param data
+     * @param preamble
+     * @return the structure, with its indexes built.
+     * @throws IOException
+     */
+    private static Structure readBlocks(DataInputStream data, Preamble preamble) throws IOException {
+        Structure structure = new Structure();
+        structure.uuid = preamble.header.uuid;
+        structure.customName = preamble.header.customName;
+        int rotation = preamble.rotation;
+
+        //Blocks.
+        int count = VarInt.readUnsigned(data);
+        ArrayList<Block> blocks = new ArrayList<>(Math.min(count, 1 << 16));
+        int x = 0, y = 0, z = 0;
+        for (int i = 0; i < count; i++) {
+            Block block = new Block(VarInt.readSigned(data));
+            block.parent = VarInt.readSigned(data);
+
+            x += VarInt.readSigned(data);
+            y += VarInt.readSigned(data);
+            z += VarInt.readSigned(data);
+            block.localCoords.set(x, y, z);
+            block.coordinate.setPacked(CubeRotation.apply(rotation, block.localCoords.pack()));
+
+            int orientation = data.readUnsignedByte() << 16 | data.readUnsignedByte() << 8 | data.readUnsignedByte();
+            BlockPacking.unpackOrientation(orientation, block);
+
+            int mask = data.readUnsignedByte();
+            for (int slot = 0; slot < BlockPacking.CHILD_SLOTS; slot++) {
+                if((mask & (1 << slot)) != 0) block.children[slot] = VarInt.readSigned(data);
+            }
+
+            block.structure = structure;
+            blocks.add(block);
+        }
+
+        structure.blocks = blocks;
+        structure.rotations = new ArrayList<>();
+        if(rotation != CubeRotation.IDENTITY) {
+            structure.rotations.add(CubeRotation.toAngles(rotation));
+        }
+        structure.rebuildIndexes();
+        return structure;
+    }
+
+    /**
+     * Writes a section.
+     * @param data
+     * @param tag
+     * @param section
+     * @throws IOException
+     */
+    private static void writeSection(DataOutputStream data, int tag, byte[] section) throws IOException {
+        VarInt.writeUnsigned(data, tag);
+        VarInt.writeUnsigned(data, section.length);
+        data.write(section);
+    }
+
+    /**
+     * Gets the index of a tag among the wanted tags.
+     * @param tags
+     * @param tag
+     * @return the index or -1.
+     */
+    private static int indexOf(int[] tags, int tag) {
+        for (int i = 0; i < tags.length; i++) {
+            if(tags[i] == tag) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Encodes the metadata section.
+     * @param metadata
+     * @return
+     * @throws IOException
+     */
+    private static byte[] encodeMetadata(StructureMetadata metadata) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        VarInt.writeUnsigned(bytes, metadata.blockCount);
+        VarInt.writeSigned(bytes, metadata.min.getX());
+        VarInt.writeSigned(bytes, metadata.min.getY());
+        VarInt.writeSigned(bytes, metadata.min.getZ());
+        VarInt.writeSigned(bytes, metadata.max.getX());
+        VarInt.writeSigned(bytes, metadata.max.getY());
+        VarInt.writeSigned(bytes, metadata.max.getZ());
+        VarInt.writeUnsigned(bytes, metadata.colorCounts.size());
+        for (Map.Entry<BlockType, Integer> count :
+                metadata.colorCounts.entrySet()) {
+            bytes.write(count.getKey().ordinal());
+            VarInt.writeUnsigned(bytes, count.getValue());
+        }
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeLong(metadata.fingerprint.getHigh());
+        data.writeLong(metadata.fingerprint.getLow());
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes the metadata section.
+     * @param header
+     * @param section
+     * @param reference the reference section or null.
+     * @return
+     * @throws IOException
+     */
+    private static StructureMetadata decodeMetadata(StructureHeader header, byte[] section, byte[] reference) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(section);
+        int blockCount = VarInt.readUnsigned(in);
+        Coordinate min = Coordinate.of(VarInt.readSigned(in), VarInt.readSigned(in), VarInt.readSigned(in));
+        Coordinate max = Coordinate.of(VarInt.readSigned(in), VarInt.readSigned(in), VarInt.readSigned(in));
+        int types = VarInt.readUnsigned(in);
+        BlockType[] values = BlockType.values();
+        EnumMap<BlockType, Integer> colorCounts = new EnumMap<>(BlockType.class);
+        for (int i = 0; i < types; i++) {
+            int ordinal = in.read();
+            int count = VarInt.readUnsigned(in);
+            if(ordinal < 0) {
+                throw new EOFException();
+            }
+            //Skipping types added after this version.
+            if(ordinal < values.length) {
+                colorCounts.put(values[ordinal], count);
+            }
+        }
+        //Stored since the fingerprint was added.
+        StructureFingerprint fingerprint = null;
+        if(in.available() >= 16) {
+            DataInputStream data = new DataInputStream(in);
+            fingerprint = new StructureFingerprint(data.readLong(), data.readLong());
+        }
+        return new StructureMetadata(header.uuid, header.customName, blockCount, min, max, colorCounts, fingerprint,
+                reference == null ? null : new String(reference, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encodes the block ids section.
+     * @param ids the distinct ids, sorted.
+     * @return
+     * @throws IOException
+     */
+    private static byte[] encodeBlockIds(int[] ids) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(ids.length * 2 + 8);
+        VarInt.writeUnsigned(bytes, ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            if(i == 0) {
+                VarInt.writeSigned(bytes, ids[0]);
+            } else {
+                VarInt.writeUnsigned(bytes, ids[i] - ids[i - 1]);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes the block ids section.
+     * @param section
+     * @return
+     * @throws IOException
+     */
+    private static int[] decodeBlockIds(byte[] section) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(section);
+        int count = VarInt.readUnsigned(in);
+        //Every id takes at least a byte.
+        if(count > section.length) {
+            throw new IOException("Invalid block id count: " + count);
+        }
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = i == 0 ? VarInt.readSigned(in) : ids[i - 1] + VarInt.readUnsigned(in);
+        }
+        return ids;
+    }
+
+    /**
+     * Skips the given number of bytes.
+     * @param data
+     * @param length
+     * @throws IOException
+     */
+    private static void skipFully(DataInputStream data, int length) throws IOException {
+        while (length > 0) {
+            int skipped = data.skipBytes(length);
+            if(skipped <= 0) {
+                if(data.read() < 0) throw new EOFException();
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    /**
+     * Everything before the blocks.
+     */
+    private static final class Preamble {
+        final StructureHeader header;
+        final int rotation;
+        final int[] tags;
+        final byte[][] sections;
+
+        Preamble(StructureHeader header, int rotation, int[] tags, byte[][] sections) {
+            this.header = header;
+            this.rotation = rotation;
+            this.tags = tags;
+            this.sections = sections;
+        }
+
+        /**
+         * Gets a kept section.
+         * @param tag
+         * @return the section or null if the structure doesn't have it.
+         */
+        byte[] get(int tag) {
+            int index = indexOf(tags, tag);
+            return index < 0 ? null : sections[index];
+        }
+    }
+}
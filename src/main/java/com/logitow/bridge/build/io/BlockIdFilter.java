@@ -0,0 +1,173 @@
+package com.logitow.bridge.build.io;
+
+import com.logitow.bridge.build.Hashing;
+import com.logitow.bridge.build.Structure;
+import com.logitow.bridge.build.block.Block;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Bloom filter of the block ids of a structure.
+ * Stored in binary structure files ahead of the block ids, so files which can't contain a block are ruled out
+ * reading a few bytes per block, with about 1% false positives.
+ */
+public class BlockIdFilter {
+    /**
+     * The number of filter bits per block id.
+     */
+    public static final int BITS_PER_ID = 10;
+
+    /**
+     * The number of bits set per block id, optimal for BITS_PER_ID.
+     */
+    public static final int HASHES = 7;
+
+    /**
+     * The largest number of hashes a stored filter may use.
+     */
+    private static final int MAX_HASHES = 32;
+
+    /**
+     * The largest number of words a stored filter may use.
+     */
+    private static final int MAX_WORDS = 1 << 24;
+
+    /**
+     * The bits of the filter.
+     */
+    private final long[] words;
+
+    /**
+     * The number of bits set per block id.
+     */
+    private final int hashes;
+
+    private BlockIdFilter(long[] words, int hashes) {
+        this.words = words;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Creates the filter of the given block ids.
+     * @param ids
+     * @return
+     */
+    public static BlockIdFilter of(int[] ids) {
+        long bits = Math.max(64, (long) ids.length * BITS_PER_ID);
+        BlockIdFilter filter = new BlockIdFilter(new long[(int) Math.min(MAX_WORDS, (bits + 63) / 64)], HASHES);
+        for (int id : ids) {
+            filter.add(id);
+        }
+        return filter;
+    }
+
+    /**
+     * Creates the filter of the block ids of a structure.
+     * @param structure
+     * @return
+     */
+    public static BlockIdFilter of(Structure structure) {
+        return of(idsOf(structure));
+    }
+
+    /**
+     * Gets the distinct block ids of a structure, sorted.
+     * @param structure
+     * @return
+     */
+    public static int[] idsOf(Structure structure) {
+        int[] ids = new int[structure.blocks.size()];
+        int count = 0;
+        for (Block block :
+                structure.blocks) {
+            if(block == null) continue;
+            ids[count++] = block.id;
+        }
+        Arrays.sort(ids, 0, count);
+
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if(distinct == 0 || ids[i] != ids[distinct - 1]) ids[distinct++] = ids[i];
+        }
+        return Arrays.copyOf(ids, distinct);
+    }
+
+    /**
+     * Checks whether the structure might contain a block.
+     * @param id
+     * @return false if the structure certainly doesn't contain the block.
+     */
+    public boolean mightContain(int id) {
+        long hash = Hashing.mix(id * Hashing.GAMMA);
+        long bits = (long) words.length * 64;
+        int first = (int) hash;
+        int second = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Math.floorMod(first + i * second, bits);
+            if((words[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the size of the filter in bytes.
+     * @return
+     */
+    public int getSize() {
+        return words.length * 8;
+    }
+
+    /**
+     * Adds a block id.
+     */
+    private void add(int id) {
+        long hash = Hashing.mix(id * Hashing.GAMMA);
+        long bits = (long) words.length * 64;
+        int first = (int) hash;
+        int second = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Math.floorMod(first + i * second, bits);
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Writes the filter: varint number of hashes, varint number of words and the big endian words.
+     * @param out
+     * @throws IOException
+     */
+    void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        VarInt.writeUnsigned(data, hashes);
+        VarInt.writeUnsigned(data, words.length);
+        for (long word : words) {
+            data.writeLong(word);
+        }
+        data.flush();
+    }
+
+    /**
+     * Reads a filter.
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    static BlockIdFilter read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int hashes = VarInt.readUnsigned(data);
+        int length = VarInt.readUnsigned(data);
+        if(hashes < 1 || hashes > MAX_HASHES || length < 1 || length > MAX_WORDS) {
+            throw new IOException("Invalid block id filter: " + hashes + " hashes, " + length + " words");
+        }
+        long[] words = new long[length];
+        for (int i = 0; i < length; i++) {
+            words[i] = data.readLong();
+        }
+        return new BlockIdFilter(words, hashes);
+    }
+}
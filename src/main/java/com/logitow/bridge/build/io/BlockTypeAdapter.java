@@ -0,0 +1,164 @@
+package com.logitow.bridge.build.io;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.logitow.bridge.build.block.Block;
+import com.logitow.bridge.build.block.BlockSide;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Streaming JSON adapter of Block, writing the same fields as the reflective Gson adapter.
+ * Fields missing from the JSON keep the defaults of a new block.
+ */
+public class BlockTypeAdapter extends TypeAdapter<Block> {
+    /**
+     * The adapter of the block coordinates.
+     */
+    private final Vec3TypeAdapter vec3Adapter = new Vec3TypeAdapter();
+
+    @Override
+    public void write(JsonWriter out, Block value) throws IOException {
+        if(value == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("id").value(value.id);
+        if(value.coordinate != null) {
+            out.name("coordinate");
+            vec3Adapter.write(out, value.coordinate);
+        }
+        if(value.localCoords != null) {
+            out.name("localCoords");
+            vec3Adapter.write(out, value.localCoords);
+        }
+        if(value.relativeAttachDir != null) {
+            out.name("relativeAttachDir").value(value.relativeAttachDir.name());
+        }
+        if(value.parentAttachSide != null) {
+            out.name("parentAttachSide").value(value.parentAttachSide.name());
+        }
+        out.name("parent").value(value.parent);
+        if(value.children != null) {
+            out.name("children").beginArray();
+            for (int child : value.children) {
+                out.value(child);
+            }
+            out.endArray();
+        }
+        if(value.sides != null) {
+            out.name("sides").beginArray();
+            for (BlockSide side : value.sides) {
+                if(side == null) {
+                    out.nullValue();
+                } else {
+                    out.value(side.name());
+                }
+            }
+            out.endArray();
+        }
+        out.endObject();
+    }
+
+    @Override
+    public Block read(JsonReader in) throws IOException {
+        if(in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        Block block = new Block(0);
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "id":
+                    block.id = in.nextInt();
+                    break;
+                case "coordinate":
+                    block.coordinate = vec3Adapter.read(in);
+                    break;
+                case "localCoords":
+                    block.localCoords = vec3Adapter.read(in);
+                    break;
+                case "relativeAttachDir":
+                    block.relativeAttachDir = readSide(in);
+                    break;
+                case "parentAttachSide":
+                    block.parentAttachSide = readSide(in);
+                    break;
+                case "parent":
+                    block.parent = in.nextInt();
+                    break;
+                case "children":
+                    block.children = readChildren(in);
+                    break;
+                case "sides":
+                    block.sides = readSides(in);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return block;
+    }
+
+    /**
+     * Reads a block side name.
+     * @param in
+     * @return the side, or null if it is null or unknown.
+     * @throws IOException
+     */
+    private static BlockSide readSide(JsonReader in) throws IOException {
+        if(in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        String name = in.nextString();
+        for (BlockSide side : BlockSide.values()) {
+            if(side.name().equals(name)) {
+                return side;
+            }
+        }
+        return null;
+    }
+
+    private static int[] readChildren(JsonReader in) throws IOException {
+        if(in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        int[] children = new int[7];
+        int count = 0;
+        in.beginArray();
+        while (in.hasNext()) {
+            if(count == children.length) {
+                children = Arrays.copyOf(children, count * 2);
+            }
+            children[count++] = in.nextInt();
+        }
+        in.endArray();
+        return count == children.length ? children : Arrays.copyOf(children, count);
+    }
+
+    private static BlockSide[] readSides(JsonReader in) throws IOException {
+        if(in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        BlockSide[] sides = new BlockSide[6];
+        int count = 0;
+        in.beginArray();
+        while (in.hasNext()) {
+            if(count == sides.length) {
+                sides = Arrays.copyOf(sides, count * 2);
+            }
+            sides[count++] = readSide(in);
+        }
+        in.endArray();
+        return count == sides.length ? sides : Arrays.copyOf(sides, count);
+    }
+}
@@ -0,0 +1,67 @@
+package com.logitow.bridge.build.io;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Input stream reading the remaining bytes of a byte buffer, e.g. a memory mapped region of a file.
+ * The buffer isn't copied, reading advances its position.
+ */
+public class ByteBufferInputStream extends InputStream {
+    /**
+     * The buffer being read.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * Position marked by mark.
+     */
+    private int mark = -1;
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if(len == 0) return 0;
+        if(!buffer.hasRemaining()) return -1;
+        len = Math.min(len, buffer.remaining());
+        buffer.get(b, off, len);
+        return len;
+    }
+
+    @Override
+    public long skip(long n) {
+        int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        mark = buffer.position();
+    }
+
+    @Override
+    public synchronized void reset() {
+        if(mark >= 0) {
+            buffer.position(mark);
+        }
+    }
+}
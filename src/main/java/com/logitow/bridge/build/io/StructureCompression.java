@@ -0,0 +1,138 @@
+package com.logitow.bridge.build.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The compressions structure files can be written with.
+ * Compressed files are recognized by their header when loading, so any structure format can be compressed.
+ * The data is compressed and decompressed as it streams through, never held in memory whole.
+ */
+public enum StructureCompression {
+    /**
+     * Not compressed.
+     */
+    NONE {
+        @Override
+        public OutputStream compress(OutputStream out, int level) {
+            return out;
+        }
+    },
+
+    /**
+     * Deflate data in the zlib wrapper.
+     */
+    DEFLATE {
+        @Override
+        public OutputStream compress(OutputStream out, int level) {
+            Deflater deflater = new Deflater(level);
+            return new BufferedOutputStream(new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            }, BUFFER_SIZE);
+        }
+    },
+
+    /**
+     * Gzip data, so the files can be unpacked with common tools.
+     */
+    GZIP {
+        @Override
+        public OutputStream compress(OutputStream out, int level) throws IOException {
+            return new BufferedOutputStream(new GZIPOutputStream(out, BUFFER_SIZE) {
+                {
+                    def.setLevel(level);
+                }
+            }, BUFFER_SIZE);
+        }
+    };
+
+    /**
+     * The default compression level, see Deflater.
+     */
+    public static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * The size of the compression buffers.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Wraps a stream, compressing the data written to it.
+     * The returned stream has to be closed to finish the compressed data, which closes the wrapped stream too.
+     * @param out
+     * @param level the compression level, 0-9 or DEFAULT_LEVEL.
+     * @return
+     * @throws IOException
+     */
+    public abstract OutputStream compress(OutputStream out, int level) throws IOException;
+
+    /**
+     * Detects the compression of a stream, without consuming it.
+     * @param in stream supporting mark, e.g. a BufferedInputStream.
+     * @return
+     * @throws IOException
+     */
+    public static StructureCompression detect(InputStream in) throws IOException {
+        if(!in.markSupported()) {
+            throw new IllegalArgumentException("The stream has to support mark!");
+        }
+        in.mark(2);
+        int first = in.read();
+        int second = in.read();
+        in.reset();
+        if(first < 0 || second < 0) {
+            return NONE;
+        }
+        if(first == 0x1F && second == 0x8B) {
+            return GZIP;
+        }
+        //zlib header: deflate method, the check bits making the header a multiple of 31.
+        if((first & 0x0F) == 8 && (first >>> 4) <= 7 && ((first << 8) | second) % 31 == 0) {
+            return DEFLATE;
+        }
+        return NONE;
+    }
+
+    /**
+     * Wraps a stream, decompressing it if it's compressed.
+     * @param in stream supporting mark, e.g. a BufferedInputStream.
+     * @return a stream of the decompressed data, supporting mark.
+     * @throws IOException
+     */
+    public static InputStream decompress(InputStream in) throws IOException {
+        switch (detect(in)) {
+            case GZIP:
+                return new BufferedInputStream(new GZIPInputStream(in, BUFFER_SIZE), BUFFER_SIZE);
+            case DEFLATE:
+                Inflater inflater = new Inflater();
+                return new BufferedInputStream(new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            inflater.end();
+                        }
+                    }
+                }, BUFFER_SIZE);
+            default:
+                return in;
+        }
+    }
+}
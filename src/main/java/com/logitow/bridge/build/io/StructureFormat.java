@@ -0,0 +1,232 @@
+package com.logitow.bridge.build.io;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.logitow.bridge.build.Structure;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The formats structures can be saved in.
+ */
+public enum StructureFormat {
+    /**
+     * The compact binary format, see BinaryStructureFormat.
+     */
+    BINARY {
+        @Override
+        public void write(Structure structure, OutputStream out) throws IOException {
+            BinaryStructureFormat.write(structure, out);
+        }
+
+        @Override
+        public Structure read(InputStream in) throws IOException {
+            return BinaryStructureFormat.read(in);
+        }
+
+        @Override
+        public StructureHeader readHeader(InputStream in) throws IOException {
+            return BinaryStructureFormat.readHeader(in);
+        }
+
+        @Override
+        public StructureMetadata readMetadata(InputStream in) throws IOException {
+            return BinaryStructureFormat.readMetadata(in);
+        }
+
+        @Override
+        public StructureHeader readStoredMetadata(InputStream in) throws IOException {
+            return BinaryStructureFormat.readStoredMetadata(in);
+        }
+
+        @Override
+        public StructurePreview readPreview(InputStream in) throws IOException {
+            return BinaryStructureFormat.readPreview(in);
+        }
+
+        @Override
+        public BlockIdFilter readBlockFilter(InputStream in) throws IOException {
+            return BinaryStructureFormat.readBlockFilter(in);
+        }
+
+        @Override
+        public int[] readBlockIds(InputStream in) throws IOException {
+            return BinaryStructureFormat.readBlockIds(in);
+        }
+    },
+
+    /**
+     * The JSON format of the older saves, see StructureTypeAdapter.
+     */
+    JSON {
+        @Override
+        public void write(Structure structure, OutputStream out) throws IOException {
+            JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+            JSON_ADAPTER.write(writer, structure);
+            writer.flush();
+        }
+
+        @Override
+        public Structure read(InputStream in) throws IOException {
+            JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            Structure structure;
+            try {
+                structure = JSON_ADAPTER.read(reader);
+            } catch (JsonParseException | IllegalStateException | NumberFormatException e) {
+                throw new IOException("Invalid structure JSON!", e);
+            }
+            if(structure == null) {
+                throw new IOException("Empty structure file!");
+            }
+            return structure;
+        }
+
+        @Override
+        public StructureHeader readHeader(InputStream in) throws IOException {
+            JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            StructureHeader header;
+            try {
+                header = JSON_ADAPTER.readHeader(reader);
+            } catch (JsonParseException | IllegalStateException | NumberFormatException e) {
+                throw new IOException("Invalid structure JSON!", e);
+            }
+            if(header == null) {
+                throw new IOException("Empty structure file!");
+            }
+            return header;
+        }
+
+        @Override
+        public StructureMetadata readMetadata(InputStream in) throws IOException {
+            //Not stored in JSON.
+            return StructureMetadata.of(read(in));
+        }
+
+        @Override
+        public StructureHeader readStoredMetadata(InputStream in) throws IOException {
+            //Not stored in JSON.
+            return readHeader(in);
+        }
+
+        @Override
+        public StructurePreview readPreview(InputStream in) throws IOException {
+            //Not stored in JSON.
+            return StructurePreview.of(read(in));
+        }
+
+        @Override
+        public BlockIdFilter readBlockFilter(InputStream in) throws IOException {
+            //Not stored in JSON.
+            return BlockIdFilter.of(read(in));
+        }
+
+        @Override
+        public int[] readBlockIds(InputStream in) throws IOException {
+            //Not stored in JSON.
+            return BlockIdFilter.idsOf(read(in));
+        }
+    };
+
+    /**
+     * The adapter of the JSON format.
+     */
+    private static final StructureTypeAdapter JSON_ADAPTER = new StructureTypeAdapter();
+
+    /**
+     * The format new saves are written in.
+     */
+    public static final StructureFormat DEFAULT = BINARY;
+
+    /**
+     * Writes a structure.
+     * @param structure
+     * @param out
+     * @throws IOException
+     */
+    public abstract void write(Structure structure, OutputStream out) throws IOException;
+
+    /**
+     * Reads a structure.
+     * @param in
+     * @return the structure, with its indexes built.
+     * @throws IOException
+     */
+    public abstract Structure read(InputStream in) throws IOException;
+
+    /**
+     * Reads the uuid and name of a structure, without loading its blocks.
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public abstract StructureHeader readHeader(InputStream in) throws IOException;
+
+    /**
+     * Reads the metadata of a structure, without loading its blocks if the format stores the metadata.
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public abstract StructureMetadata readMetadata(InputStream in) throws IOException;
+
+    /**
+     * Reads the metadata of a structure if the format stores it, otherwise only the header, never loading its blocks.
+     * @param in
+     * @return a StructureMetadata, or a StructureHeader if the metadata isn't stored.
+     * @throws IOException
+     */
+    public abstract StructureHeader readStoredMetadata(InputStream in) throws IOException;
+
+    /**
+     * Reads the preview of a structure, without loading its blocks if the format stores the preview.
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public abstract StructurePreview readPreview(InputStream in) throws IOException;
+
+    /**
+     * Reads the block id filter of a structure, without loading its blocks if the format stores the filter.
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public abstract BlockIdFilter readBlockFilter(InputStream in) throws IOException;
+
+    /**
+     * Reads the distinct block ids of a structure, sorted, without loading its blocks if the format stores the ids.
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public abstract int[] readBlockIds(InputStream in) throws IOException;
+
+    /**
+     * Detects the format of a structure stream, without consuming it.
+     * @param in stream supporting mark, e.g. a BufferedInputStream.
+     * @return
+     * @throws IOException
+     */
+    public static StructureFormat detect(InputStream in) throws IOException {
+        if(!in.markSupported()) {
+            throw new IllegalArgumentException("The stream has to support mark!");
+        }
+        byte[] header = new byte[BinaryStructureFormat.MAGIC.length];
+        in.mark(header.length);
+        int read = 0;
+        while (read < header.length) {
+            int n = in.read(header, read, header.length - read);
+            if(n < 0) break;
+            read += n;
+        }
+        in.reset();
+        return BinaryStructureFormat.hasMagic(header) ? BINARY : JSON;
+    }
+}
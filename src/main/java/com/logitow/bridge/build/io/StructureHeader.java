@@ -0,0 +1,23 @@
+package com.logitow.bridge.build.io;
+
+import java.util.UUID;
+
+/**
+ * The identifying fields of a saved structure, readable without loading its blocks.
+ */
+public class StructureHeader {
+    /**
+     * Unique id of the structure, null if the file doesn't have one.
+     */
+    public final UUID uuid;
+
+    /**
+     * Custom name of the structure.
+     */
+    public final String customName;
+
+    public StructureHeader(UUID uuid, String customName) {
+        this.uuid = uuid;
+        this.customName = customName;
+    }
+}
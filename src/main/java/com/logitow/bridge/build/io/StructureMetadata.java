@@ -0,0 +1,119 @@
+package com.logitow.bridge.build.io;
+
+import com.logitow.bridge.build.Coordinate;
+import com.logitow.bridge.build.Structure;
+import com.logitow.bridge.build.StructureFingerprint;
+import com.logitow.bridge.build.block.Block;
+import com.logitow.bridge.build.block.BlockType;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Summary of a saved structure, stored in the header of binary structure files so it can be listed without loading its blocks.
+ */
+public class StructureMetadata extends StructureHeader {
+    /**
+     * The number of blocks of the structure, including the base blocks.
+     */
+    public final int blockCount;
+
+    /**
+     * The smallest coordinates of the blocks, with the structure rotation.
+     */
+    public final Coordinate min;
+
+    /**
+     * The largest coordinates of the blocks, with the structure rotation.
+     */
+    public final Coordinate max;
+
+    /**
+     * The number of blocks of each type, types without blocks are left out.
+     */
+    public final Map<BlockType, Integer> colorCounts;
+
+    /**
+     * The fingerprint of the shape of the structure, null for files saved before it was stored.
+     */
+    public final StructureFingerprint fingerprint;
+
+    /**
+     * The save name of the file holding the blocks of the structure, null if they are stored with the structure.
+     * See BinaryStructureFormat.writeReference.
+     */
+    public final String reference;
+
+    public StructureMetadata(UUID uuid, String customName, int blockCount, Coordinate min, Coordinate max, Map<BlockType, Integer> colorCounts) {
+        this(uuid, customName, blockCount, min, max, colorCounts, null, null);
+    }
+
+    public StructureMetadata(UUID uuid, String customName, int blockCount, Coordinate min, Coordinate max, Map<BlockType, Integer> colorCounts,
+                             StructureFingerprint fingerprint, String reference) {
+        super(uuid, customName);
+        this.blockCount = blockCount;
+        this.min = min;
+        this.max = max;
+        this.colorCounts = Collections.unmodifiableMap(colorCounts.isEmpty() ? new EnumMap<>(BlockType.class) : new EnumMap<>(colorCounts));
+        this.fingerprint = fingerprint;
+        this.reference = reference;
+    }
+
+    /**
+     * Computes the metadata of a structure.
+     * @param structure
+     * @return
+     */
+    public static StructureMetadata of(Structure structure) {
+        int count = 0;
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+        int[] counts = new int[BlockType.values().length];
+        for (Block block :
+                structure.blocks) {
+            if(block == null) continue;
+            count++;
+            counts[block.getBlockType().ordinal()]++;
+            if(block.coordinate == null) continue;
+            minX = Math.min(minX, block.coordinate.getX());
+            minY = Math.min(minY, block.coordinate.getY());
+            minZ = Math.min(minZ, block.coordinate.getZ());
+            maxX = Math.max(maxX, block.coordinate.getX());
+            maxY = Math.max(maxY, block.coordinate.getY());
+            maxZ = Math.max(maxZ, block.coordinate.getZ());
+        }
+
+        EnumMap<BlockType, Integer> colorCounts = new EnumMap<>(BlockType.class);
+        for (BlockType type :
+                BlockType.values()) {
+            if(counts[type.ordinal()] > 0) {
+                colorCounts.put(type, counts[type.ordinal()]);
+            }
+        }
+        if(minX > maxX) {
+            return new StructureMetadata(structure.uuid, structure.customName, count, Coordinate.ZERO, Coordinate.ZERO, colorCounts,
+                    structure.fingerprint(), null);
+        }
+        return new StructureMetadata(structure.uuid, structure.customName, count,
+                Coordinate.of(minX, minY, minZ), Coordinate.of(maxX, maxY, maxZ), colorCounts, structure.fingerprint(), null);
+    }
+
+    /**
+     * Gets the number of blocks of the given type.
+     * @param type
+     * @return
+     */
+    public int getCount(BlockType type) {
+        Integer count = colorCounts.get(type);
+        return count == null ? 0 : count;
+    }
+
+    @Override
+    public String toString() {
+        return "StructureMetadata:{" + (customName != null ? customName : uuid) + ", blocks: " + blockCount
+                + ", bounds: " + min + " - " + max + ", colors: " + colorCounts + ", fingerprint: " + fingerprint
+                + (reference != null ? ", reference: " + reference : "") + "}";
+    }
+}
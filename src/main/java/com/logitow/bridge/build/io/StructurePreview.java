@@ -0,0 +1,281 @@
+package com.logitow.bridge.build.io;
+
+import com.logitow.bridge.build.Structure;
+import com.logitow.bridge.build.block.Block;
+import com.logitow.bridge.build.block.BlockType;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Precomputed preview of a structure: the structure seen from the top, the front and the side.
+ * Every view is a heightmap, holding for each cell the type of the block nearest to the viewer and how far it sticks out.
+ * Previews are stored in binary structure files, so they can be drawn without loading the structure.
+ */
+public class StructurePreview {
+    /**
+     * The largest width or height of a view, larger structures are scaled down.
+     */
+    public static final int MAX_SIZE = 64;
+
+    /**
+     * The directions a structure is seen from, all using the coordinates with the structure rotation.
+     */
+    public enum View {
+        /**
+         * Looking down, columns along x and rows along z, heights along y.
+         */
+        TOP,
+        /**
+         * Looking towards +z, columns along x and rows along y from the bottom, heights along -z.
+         */
+        FRONT,
+        /**
+         * Looking towards +x, columns along z and rows along y from the bottom, heights along -x.
+         */
+        SIDE
+    }
+
+    /**
+     * The views of the structure.
+     */
+    private final EnumMap<View, Projection> projections;
+
+    private StructurePreview(EnumMap<View, Projection> projections) {
+        this.projections = projections;
+    }
+
+    /**
+     * Computes the preview of a structure.
+     * @param structure
+     * @return
+     */
+    public static StructurePreview of(Structure structure) {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+        for (Block block :
+                structure.blocks) {
+            if(block == null || block.coordinate == null) continue;
+            minX = Math.min(minX, block.coordinate.getX());
+            minY = Math.min(minY, block.coordinate.getY());
+            minZ = Math.min(minZ, block.coordinate.getZ());
+            maxX = Math.max(maxX, block.coordinate.getX());
+            maxY = Math.max(maxY, block.coordinate.getY());
+            maxZ = Math.max(maxZ, block.coordinate.getZ());
+        }
+
+        EnumMap<View, Projection> projections = new EnumMap<>(View.class);
+        if(minX > maxX) {
+            for (View view :
+                    View.values()) {
+                projections.put(view, new Projection(0, 0, 1, new byte[0], new int[0]));
+            }
+            return new StructurePreview(projections);
+        }
+
+        Projection top = Projection.create(maxX - minX + 1, maxZ - minZ + 1);
+        Projection front = Projection.create(maxX - minX + 1, maxY - minY + 1);
+        Projection side = Projection.create(maxZ - minZ + 1, maxY - minY + 1);
+        for (Block block :
+                structure.blocks) {
+            if(block == null || block.coordinate == null) continue;
+            int x = block.coordinate.getX() - minX;
+            int y = block.coordinate.getY() - minY;
+            int z = block.coordinate.getZ() - minZ;
+            int type = block.getBlockType().ordinal() + 1;
+            top.project(x, z, y, type);
+            front.project(x, y, maxZ - minZ - z, type);
+            side.project(z, y, maxX - minX - x, type);
+        }
+        projections.put(View.TOP, top);
+        projections.put(View.FRONT, front);
+        projections.put(View.SIDE, side);
+        return new StructurePreview(projections);
+    }
+
+    /**
+     * Gets a view of the structure.
+     * @param view
+     * @return
+     */
+    public Projection get(View view) {
+        return projections.get(view);
+    }
+
+    /**
+     * Writes the preview.
+     * @param out
+     * @throws IOException
+     */
+    void write(OutputStream out) throws IOException {
+        for (View view :
+                View.values()) {
+            projections.get(view).write(out);
+        }
+    }
+
+    /**
+     * Reads a preview.
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    static StructurePreview read(InputStream in) throws IOException {
+        EnumMap<View, Projection> projections = new EnumMap<>(View.class);
+        for (View view :
+                View.values()) {
+            projections.put(view, Projection.read(in));
+        }
+        return new StructurePreview(projections);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("StructurePreview:{");
+        for (Map.Entry<View, Projection> projection :
+                projections.entrySet()) {
+            builder.append(projection.getKey()).append(": ").append(projection.getValue().width).append("x").append(projection.getValue().height).append(" ");
+        }
+        return builder.append("}").toString();
+    }
+
+    /**
+     * The heightmap of a single view.
+     */
+    public static class Projection {
+        /**
+         * The number of columns.
+         */
+        public final int width;
+
+        /**
+         * The number of rows.
+         */
+        public final int height;
+
+        /**
+         * The number of blocks a cell spans along each axis.
+         */
+        public final int scale;
+
+        /**
+         * The block type ordinal + 1 of each cell, 0 for empty cells.
+         */
+        private final byte[] types;
+
+        /**
+         * The height of each cell, the distance of its nearest block from the far side of the structure.
+         */
+        private final int[] heights;
+
+        private Projection(int width, int height, int scale, byte[] types, int[] heights) {
+            this.width = width;
+            this.height = height;
+            this.scale = scale;
+            this.types = types;
+            this.heights = heights;
+        }
+
+        /**
+         * Creates an empty projection of the given size in blocks, scaled down to MAX_SIZE.
+         */
+        private static Projection create(int columns, int rows) {
+            int scale = Math.max(1, (Math.max(columns, rows) + MAX_SIZE - 1) / MAX_SIZE);
+            int width = (columns + scale - 1) / scale;
+            int height = (rows + scale - 1) / scale;
+            return new Projection(width, height, scale, new byte[width * height], new int[width * height]);
+        }
+
+        /**
+         * Adds a block, keeping it if it's the nearest to the viewer of its cell.
+         */
+        private void project(int column, int row, int blockHeight, int type) {
+            int cell = (row / scale) * width + column / scale;
+            if(types[cell] == 0 || blockHeight > heights[cell]) {
+                types[cell] = (byte) type;
+                heights[cell] = blockHeight;
+            }
+        }
+
+        /**
+         * Gets the type of the block seen in a cell.
+         * @param column
+         * @param row
+         * @return the type or null if the cell is empty.
+         */
+        public BlockType getType(int column, int row) {
+            int type = types[row * width + column];
+            return type == 0 ? null : BlockType.values()[type - 1];
+        }
+
+        /**
+         * Gets the height of a cell, the distance of the block seen in it from the far side of the structure.
+         * @param column
+         * @param row
+         * @return the height or -1 if the cell is empty.
+         */
+        public int getHeight(int column, int row) {
+            int cell = row * width + column;
+            return types[cell] == 0 ? -1 : heights[cell];
+        }
+
+        /**
+         * Writes the size, then the cells as runs of equal cells: varint run length, type byte and varint height if not empty.
+         */
+        private void write(OutputStream out) throws IOException {
+            VarInt.writeUnsigned(out, width);
+            VarInt.writeUnsigned(out, height);
+            VarInt.writeUnsigned(out, scale);
+            int cell = 0;
+            while (cell < types.length) {
+                int end = cell + 1;
+                while (end < types.length && types[end] == types[cell] && (types[cell] == 0 || heights[end] == heights[cell])) {
+                    end++;
+                }
+                VarInt.writeUnsigned(out, end - cell);
+                out.write(types[cell]);
+                if(types[cell] != 0) {
+                    VarInt.writeUnsigned(out, heights[cell]);
+                }
+                cell = end;
+            }
+        }
+
+        private static Projection read(InputStream in) throws IOException {
+            int width = VarInt.readUnsigned(in);
+            int height = VarInt.readUnsigned(in);
+            int scale = VarInt.readUnsigned(in);
+            if(width > MAX_SIZE || height > MAX_SIZE || scale < 1) {
+                throw new IOException("Invalid structure preview size: " + width + "x" + height);
+            }
+            byte[] types = new byte[width * height];
+            int[] heights = new int[width * height];
+            int cell = 0;
+            while (cell < types.length) {
+                int run = VarInt.readUnsigned(in);
+                int type = in.read();
+                if(type < 0) {
+                    throw new EOFException();
+                }
+                if(type > BlockType.values().length) {
+                    //Unknown type, shown as the default one.
+                    type = BlockType.WHITE.ordinal() + 1;
+                }
+                int cellHeight = type == 0 ? 0 : VarInt.readUnsigned(in);
+                if(run < 1 || run > types.length - cell) {
+                    throw new IOException("Invalid structure preview run: " + run);
+                }
+                for (int i = cell; i < cell + run; i++) {
+                    types[i] = (byte) type;
+                    heights[i] = cellHeight;
+                }
+                cell += run;
+            }
+            return new Projection(width, height, scale, types, heights);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.logitow.bridge.build.io;
+
+import java.io.IOException;
+
+/**
+ * Thrown when reading a structure file which only stores a reference to the file holding its blocks,
+ * see BinaryStructureFormat.writeReference. The referenced file has to be read instead.
+ */
+public class StructureReferenceException extends IOException {
+    /**
+     * The uuid and name of the referencing structure.
+     */
+    public final StructureHeader header;
+
+    /**
+     * The rotation of the referencing structure, see CubeRotation.
+     */
+    public final int orientation;
+
+    /**
+     * The save name of the referenced file, within the same directory.
+     */
+    public final String target;
+
+    public StructureReferenceException(StructureHeader header, int orientation, String target) {
+        super("Structure: " + header.uuid + " references the blocks of: " + target);
+        this.header = header;
+        this.orientation = orientation;
+        this.target = target;
+    }
+}
@@ -0,0 +1,151 @@
+package com.logitow.bridge.build.io;
+
+import com.logitow.bridge.build.Structure;
+import com.logitow.bridge.build.StructureSnapshot;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write behind queue of structure saves.
+ * Saves are written on a background thread from the snapshot taken when they were submitted,
+ * so submitting only costs taking the snapshot. Saves submitted for the same target while an earlier
+ * one is still waiting are merged into a single write of the latest snapshot.
+ */
+public class StructureSaveQueue {
+    /**
+     * The logger of the class.
+     */
+    public static Logger logger = LogManager.getLogger(StructureSaveQueue.class);
+
+    /**
+     * How long the pending saves are waited for when the JVM exits, in seconds.
+     */
+    private static final int SHUTDOWN_TIMEOUT = 10;
+
+    /**
+     * Writes the saves, one at a time in submission order.
+     */
+    private final ExecutorService writer;
+
+    /**
+     * The saves waiting to be written, by target.
+     */
+    private final HashMap<String, PendingSave> pending = new HashMap<>();
+
+    /**
+     * Creates a queue with its own writer thread, writing the pending saves before the JVM exits.
+     */
+    public StructureSaveQueue() {
+        writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "Structure save queue");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                flush().get(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                logger.warn("Couldn't finish the pending structure saves!", e);
+            }
+        }, "Structure save queue shutdown"));
+    }
+
+    /**
+     * Submits a save.
+     * @param target identifies where the save is written, saves with the same target are merged.
+     * @param snapshot the state to save.
+     * @param task writes the state, given a copy of the structure made from the snapshot.
+     * @return future completed once the latest submitted state of the target has been written.
+     */
+    public CompletableFuture<Void> submit(String target, StructureSnapshot snapshot, SaveTask task) {
+        synchronized (pending) {
+            PendingSave save = pending.get(target);
+            if(save != null) {
+                //Not written yet, writing the newer state instead.
+                save.snapshot = snapshot;
+                save.task = task;
+                return save.future;
+            }
+            PendingSave newSave = new PendingSave(target, snapshot, task);
+            pending.put(target, newSave);
+            writer.execute(() -> write(newSave));
+            return newSave.future;
+        }
+    }
+
+    /**
+     * Gets a future completed once every save submitted so far has been written.
+     * @return
+     */
+    public CompletableFuture<Void> flush() {
+        CompletableFuture<Void> flushed = new CompletableFuture<>();
+        writer.execute(() -> flushed.complete(null));
+        return flushed;
+    }
+
+    /**
+     * Gets the number of saves waiting to be written.
+     * @return
+     */
+    public int getPendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Writes a save, taking it off the pending saves first so newer saves of the target queue up behind it.
+     * @param save
+     */
+    private void write(PendingSave save) {
+        StructureSnapshot snapshot;
+        SaveTask task;
+        synchronized (pending) {
+            pending.remove(save.target);
+            snapshot = save.snapshot;
+            task = save.task;
+        }
+        try {
+            task.save(snapshot.toStructure());
+            save.future.complete(null);
+        } catch (Throwable e) {
+            logger.error("Saving structure to: {} failed!", save.target, e);
+            save.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Writes a saved structure.
+     */
+    public interface SaveTask {
+        /**
+         * Writes the structure.
+         * @param structure copy of the structure with the state to save.
+         * @throws IOException
+         */
+        void save(Structure structure) throws IOException;
+    }
+
+    /**
+     * A save waiting to be written.
+     */
+    private static final class PendingSave {
+        final String target;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        StructureSnapshot snapshot;
+        SaveTask task;
+
+        PendingSave(String target, StructureSnapshot snapshot, SaveTask task) {
+            this.target = target;
+            this.snapshot = snapshot;
+            this.task = task;
+        }
+    }
+}
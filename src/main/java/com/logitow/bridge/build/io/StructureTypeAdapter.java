@@ -0,0 +1,177 @@
+package com.logitow.bridge.build.io;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.logitow.bridge.build.Structure;
+import com.logitow.bridge.build.Vec3;
+import com.logitow.bridge.build.block.Block;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.UUID;
+
+/**
+ * Streaming JSON adapter of Structure, writing the same fields as the reflective Gson adapter.
+ * Blocks are written and read one at a time, without building the whole document.
+ */
+public class StructureTypeAdapter extends TypeAdapter<Structure> {
+    /**
+     * The adapter of the blocks.
+     */
+    private final BlockTypeAdapter blockAdapter = new BlockTypeAdapter();
+
+    /**
+     * The adapter of the rotations.
+     */
+    private final Vec3TypeAdapter vec3Adapter = new Vec3TypeAdapter();
+
+    @Override
+    public void write(JsonWriter out, Structure value) throws IOException {
+        if(value == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        if(value.uuid != null) {
+            out.name("uuid").value(value.uuid.toString());
+        }
+        if(value.customName != null) {
+            out.name("customName").value(value.customName);
+        }
+        if(value.blocks != null) {
+            out.name("blocks").beginArray();
+            for (Block block : value.blocks) {
+                blockAdapter.write(out, block);
+            }
+            out.endArray();
+        }
+        if(value.rotations != null) {
+            out.name("rotations").beginArray();
+            for (Vec3 rotation : value.rotations) {
+                vec3Adapter.write(out, rotation);
+            }
+            out.endArray();
+        }
+        out.endObject();
+    }
+
+    /**
+     * Reads a structure.
+     * @param in
+     * @return the structure, with its indexes built.
+     * @throws IOException
+     */
+    @Override
+    public Structure read(JsonReader in) throws IOException {
+        if(in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        Structure structure = new Structure();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "uuid":
+                    structure.uuid = readUuid(in);
+                    break;
+                case "customName":
+                    if(in.peek() == JsonToken.NULL) {
+                        in.nextNull();
+                        structure.customName = null;
+                    } else {
+                        structure.customName = in.nextString();
+                    }
+                    break;
+                case "blocks":
+                    structure.blocks = readBlocks(in, structure);
+                    break;
+                case "rotations":
+                    structure.rotations = readRotations(in);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        structure.rebuildIndexes();
+        return structure;
+    }
+
+    /**
+     * Reads the uuid and name of a structure, skipping the blocks if they come after both.
+     * @param in
+     * @return the header or null if the structure is null.
+     * @throws IOException
+     */
+    public StructureHeader readHeader(JsonReader in) throws IOException {
+        if(in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        UUID uuid = null;
+        String customName = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if(name.equals("uuid")) {
+                uuid = readUuid(in);
+            } else if(name.equals("customName") && in.peek() != JsonToken.NULL) {
+                customName = in.nextString();
+            } else if(name.equals("blocks") && uuid != null) {
+                //The fields are written before the blocks.
+                break;
+            } else {
+                in.skipValue();
+            }
+        }
+        return new StructureHeader(uuid, customName);
+    }
+
+    private static UUID readUuid(JsonReader in) throws IOException {
+        if(in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        String uuid = in.nextString();
+        try {
+            return UUID.fromString(uuid);
+        } catch (IllegalArgumentException e) {
+            throw new JsonSyntaxException("Invalid structure uuid: " + uuid, e);
+        }
+    }
+
+    private ArrayList<Block> readBlocks(JsonReader in, Structure structure) throws IOException {
+        ArrayList<Block> blocks = new ArrayList<>();
+        if(in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return blocks;
+        }
+        in.beginArray();
+        while (in.hasNext()) {
+            Block block = blockAdapter.read(in);
+            if(block != null) {
+                block.structure = structure;
+            }
+            blocks.add(block);
+        }
+        in.endArray();
+        return blocks;
+    }
+
+    private ArrayList<Vec3> readRotations(JsonReader in) throws IOException {
+        ArrayList<Vec3> rotations = new ArrayList<>();
+        if(in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return rotations;
+        }
+        in.beginArray();
+        while (in.hasNext()) {
+            rotations.add(vec3Adapter.read(in));
+        }
+        in.endArray();
+        return rotations;
+    }
+}
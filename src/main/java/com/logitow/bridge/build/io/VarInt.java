@@ -0,0 +1,107 @@
+package com.logitow.bridge.build.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Variable length integer encoding used by the binary structure files.
+ * Values are written 7 bits per byte, lowest bits first, the high bit marking that another byte follows.
+ * Signed values are zigzag encoded first, so small negative values stay short too.
+ */
+public final class VarInt {
+    private VarInt() {
+    }
+
+    /**
+     * Writes an unsigned variable length int.
+     * @param out
+     * @param value
+     * @throws IOException
+     */
+    public static void writeUnsigned(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Writes a signed variable length int.
+     * @param out
+     * @param value
+     * @throws IOException
+     */
+    public static void writeSigned(OutputStream out, int value) throws IOException {
+        writeUnsigned(out, (value << 1) ^ (value >> 31));
+    }
+
+    /**
+     * Writes an unsigned variable length long.
+     * @param out
+     * @param value
+     * @throws IOException
+     */
+    public static void writeUnsignedLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Reads an unsigned variable length int.
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static int readUnsigned(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if(b < 0) {
+                throw new EOFException();
+            }
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length int!");
+    }
+
+    /**
+     * Reads a signed variable length int.
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static int readSigned(InputStream in) throws IOException {
+        int value = readUnsigned(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Reads an unsigned variable length long.
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static long readUnsignedLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = in.read();
+            if(b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length long!");
+    }
+}
@@ -0,0 +1,54 @@
+package com.logitow.bridge.build.io;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.logitow.bridge.build.Vec3;
+
+import java.io.IOException;
+
+/**
+ * Streaming JSON adapter of Vec3, writing the same fields as the reflective Gson adapter.
+ */
+public class Vec3TypeAdapter extends TypeAdapter<Vec3> {
+    @Override
+    public void write(JsonWriter out, Vec3 value) throws IOException {
+        if(value == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("x").value(value.getX());
+        out.name("y").value(value.getY());
+        out.name("z").value(value.getZ());
+        out.endObject();
+    }
+
+    @Override
+    public Vec3 read(JsonReader in) throws IOException {
+        if(in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        int x = 0, y = 0, z = 0;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "x":
+                    x = in.nextInt();
+                    break;
+                case "y":
+                    y = in.nextInt();
+                    break;
+                case "z":
+                    z = in.nextInt();
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return new Vec3(x, y, z);
+    }
+}
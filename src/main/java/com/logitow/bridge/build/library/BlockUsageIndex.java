@@ -0,0 +1,134 @@
+package com.logitow.bridge.build.library;
+
+import com.logitow.bridge.build.io.BlockIdFilter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Inverted index from block id to the catalogued structure files containing the block.
+ * Files are indexed lazily: the ids of a file are only read once its block id filter says it might contain a looked up block,
+ * files saved through Structure are indexed right away.
+ * Kept current by its StructureCatalog, not thread safe on its own.
+ */
+class BlockUsageIndex {
+    /**
+     * The indexed files by block id.
+     */
+    private final HashMap<Integer, List<StructureCatalog.Entry>> postings = new HashMap<>();
+
+    /**
+     * The block ids of the indexed files.
+     */
+    private final HashMap<StructureCatalog.Entry, int[]> indexed = new HashMap<>();
+
+    /**
+     * The files which aren't indexed yet.
+     */
+    private final LinkedHashSet<StructureCatalog.Entry> pending = new LinkedHashSet<>();
+
+    /**
+     * The block id filters of the pending files which have been read.
+     */
+    private final HashMap<StructureCatalog.Entry, BlockIdFilter> filters = new HashMap<>();
+
+    /**
+     * Adds a file, to be indexed when needed.
+     * @param entry
+     */
+    void add(StructureCatalog.Entry entry) {
+        pending.add(entry);
+    }
+
+    /**
+     * Adds a file with known block ids.
+     * Ignored if the file isn't catalogued anymore.
+     * @param entry
+     * @param ids the distinct block ids of the file.
+     */
+    void put(StructureCatalog.Entry entry, int[] ids) {
+        if(!pending.remove(entry)) return;
+        filters.remove(entry);
+        indexed.put(entry, ids);
+        for (int id : ids) {
+            postings.computeIfAbsent(id, k -> new ArrayList<>(1)).add(entry);
+        }
+    }
+
+    /**
+     * Keeps the block id filter of a pending file.
+     * Ignored if the file isn't pending anymore.
+     * @param entry
+     * @param filter
+     */
+    void putFilter(StructureCatalog.Entry entry, BlockIdFilter filter) {
+        if(pending.contains(entry)) filters.put(entry, filter);
+    }
+
+    /**
+     * Removes a file.
+     * @param entry
+     */
+    void remove(StructureCatalog.Entry entry) {
+        pending.remove(entry);
+        filters.remove(entry);
+        int[] ids = indexed.remove(entry);
+        if(ids == null) return;
+        for (int id : ids) {
+            List<StructureCatalog.Entry> entries = postings.get(id);
+            if(entries == null) continue;
+            entries.remove(entry);
+            if(entries.isEmpty()) postings.remove(id);
+        }
+    }
+
+    /**
+     * Removes every file.
+     */
+    void clear() {
+        postings.clear();
+        indexed.clear();
+        pending.clear();
+        filters.clear();
+    }
+
+    /**
+     * Gets the pending files whose block id filter hasn't been read yet.
+     * @return
+     */
+    List<StructureCatalog.Entry> getUnfiltered() {
+        List<StructureCatalog.Entry> unfiltered = new ArrayList<>();
+        for (StructureCatalog.Entry entry :
+                pending) {
+            if(!filters.containsKey(entry)) unfiltered.add(entry);
+        }
+        return unfiltered;
+    }
+
+    /**
+     * Gets the pending files which might contain a block, those without a read filter included.
+     * @param id
+     * @return
+     */
+    List<StructureCatalog.Entry> getCandidates(int id) {
+        List<StructureCatalog.Entry> candidates = new ArrayList<>();
+        for (StructureCatalog.Entry entry :
+                pending) {
+            BlockIdFilter filter = filters.get(entry);
+            if(filter == null || filter.mightContain(id)) candidates.add(entry);
+        }
+        return candidates;
+    }
+
+    /**
+     * Gets the indexed files containing a block.
+     * @param id
+     * @return
+     */
+    List<StructureCatalog.Entry> get(int id) {
+        List<StructureCatalog.Entry> entries = postings.get(id);
+        return entries == null ? new ArrayList<>() : new ArrayList<>(entries);
+    }
+}
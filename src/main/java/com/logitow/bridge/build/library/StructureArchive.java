@@ -0,0 +1,652 @@
+package com.logitow.bridge.build.library;
+
+import com.logitow.bridge.build.Structure;
+import com.logitow.bridge.build.io.BinaryStructureFormat;
+import com.logitow.bridge.build.io.ByteBufferInputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Library of structures kept in a single append only file.
+ * Saving a structure appends its binary form, removing one appends a removal record,
+ * and an in-memory index of the save names and uuids points at the latest record of every structure.
+ * Records are read straight from a memory mapping of the file.
+ * The space of replaced and removed structures is reclaimed by compaction, which runs in the background
+ * once most of the file is unused.
+ *
+ * Layout: "LGTA" magic, version byte and 3 reserved bytes, followed by the records:
+ * type byte, uuid, int name length, int data length, int CRC32 of the data, the UTF-8 name and the data.
+ */
+public class StructureArchive implements Closeable {
+    /**
+     * The logger of the class.
+     */
+    public static Logger logger = LogManager.getLogger(StructureArchive.class);
+
+    /**
+     * The magic bytes the archive starts with.
+     */
+    private static final byte[] MAGIC = {'L', 'G', 'T', 'A'};
+
+    /**
+     * The current version of the archive layout.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Size of the archive header.
+     */
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * Size of the fixed part of a record.
+     */
+    private static final int RECORD_HEADER_SIZE = 1 + 16 + 4 + 4 + 4;
+
+    /**
+     * Record type of a saved structure.
+     */
+    private static final int RECORD_STRUCTURE = 1;
+
+    /**
+     * Record type of a removed structure.
+     */
+    private static final int RECORD_REMOVAL = 2;
+
+    /**
+     * Unused bytes from which compaction starts on its own, when they make up most of the file.
+     */
+    private static final long AUTO_COMPACTION_MIN_GARBAGE = 1 << 20;
+
+    /**
+     * Runs the background compactions.
+     */
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Structure archive compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The archive file.
+     */
+    private final Path path;
+
+    /**
+     * Guards the file and the index, loads share the read lock.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * The channel of the archive file.
+     */
+    private FileChannel channel;
+
+    /**
+     * Read only mapping of the whole file, remapped once records are appended past it.
+     * Volatile as readers use it without taking the lock of the archive.
+     */
+    private volatile ByteBuffer mapped;
+
+    /**
+     * The end of the last record.
+     */
+    private long end;
+
+    /**
+     * The latest record of every structure, by save name.
+     */
+    private HashMap<String, Entry> byName = new HashMap<>();
+
+    /**
+     * The latest record of every structure, by uuid.
+     */
+    private HashMap<UUID, Entry> byUuid = new HashMap<>();
+
+    /**
+     * Bytes of records no longer in the index.
+     */
+    private long garbage;
+
+    /**
+     * The running background compaction, if any.
+     */
+    private CompletableFuture<Void> compaction;
+
+    /**
+     * Held while compacting, so only one compaction runs at a time.
+     */
+    private final Object compactionMonitor = new Object();
+
+    private StructureArchive(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Opens an archive, creating it if it doesn't exist.
+     * @param file
+     * @return
+     * @throws IOException if the file isn't a structure archive.
+     */
+    public static StructureArchive open(File file) throws IOException {
+        StructureArchive archive = new StructureArchive(file.toPath());
+        archive.open();
+        return archive;
+    }
+
+    /**
+     * Saves a structure under its save name, replacing any structure with the same name.
+     * @param structure
+     * @throws IOException
+     */
+    public void put(Structure structure) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        BinaryStructureFormat.write(structure, data);
+        byte[] bytes = data.toByteArray();
+
+        lock.writeLock().lock();
+        try {
+            Entry entry = append(RECORD_STRUCTURE, structure.uuid, structure.getSaveName(), bytes);
+            index(entry);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        scheduleCompaction();
+    }
+
+    /**
+     * Loads a structure by its save name.
+     * @param name
+     * @return the structure or null if there is none with the name.
+     * @throws IOException
+     */
+    public Structure load(String name) throws IOException {
+        lock.readLock().lock();
+        try {
+            return read(byName.get(name));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Loads a structure by its uuid.
+     * @param uuid
+     * @return the structure or null if there is none with the uuid.
+     * @throws IOException
+     */
+    public Structure load(UUID uuid) throws IOException {
+        lock.readLock().lock();
+        try {
+            return read(byUuid.get(uuid));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a structure by its save name.
+     * @param name
+     * @return whether the structure was in the archive.
+     * @throws IOException
+     */
+    public boolean remove(String name) throws IOException {
+        lock.writeLock().lock();
+        try {
+            Entry entry = byName.get(name);
+            if(entry == null) return false;
+            Entry removal = append(RECORD_REMOVAL, entry.uuid, name, new byte[0]);
+            unindex(entry);
+            garbage += removal.length;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        scheduleCompaction();
+        return true;
+    }
+
+    /**
+     * Removes a structure.
+     * @param structure
+     * @return whether the structure was in the archive.
+     * @throws IOException
+     */
+    public boolean remove(Structure structure) throws IOException {
+        return remove(structure.getSaveName());
+    }
+
+    /**
+     * Gets the archive file.
+     * @return
+     */
+    public File getFile() {
+        return path.toFile();
+    }
+
+    public boolean contains(String name) {
+        lock.readLock().lock();
+        try {
+            return byName.containsKey(name);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(UUID uuid) {
+        lock.readLock().lock();
+        try {
+            return byUuid.containsKey(uuid);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the save names of the archived structures, sorted.
+     * @return
+     */
+    public Set<String> getNames() {
+        lock.readLock().lock();
+        try {
+            return Collections.unmodifiableSet(new TreeSet<>(byName.keySet()));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of archived structures.
+     * @return
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return byName.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the size of the archive file.
+     * @return
+     */
+    public long getFileSize() {
+        lock.readLock().lock();
+        try {
+            return end;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the bytes taken by replaced and removed structures, reclaimed by compaction.
+     * @return
+     */
+    public long getGarbageSize() {
+        lock.readLock().lock();
+        try {
+            return garbage;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the archive with only the current structures.
+     * Loads can continue while the records are copied, saves and removals wait until the new file is in place.
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        synchronized (compactionMonitor) {
+            Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+            try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                HashMap<String, Entry> newByName = new HashMap<>();
+                HashMap<UUID, Entry> newByUuid = new HashMap<>();
+                long position = HEADER_SIZE;
+                long copiedEnd;
+
+                //Copying the current records.
+                lock.readLock().lock();
+                try {
+                    ArrayList<Entry> entries = new ArrayList<>(byName.values());
+                    entries.sort((a, b) -> Long.compare(a.offset, b.offset));
+                    writeHeader(out);
+                    for (Entry entry : entries) {
+                        transfer(entry.offset, entry.length, out, position);
+                        Entry moved = entry.movedTo(position);
+                        newByName.put(moved.name, moved);
+                        newByUuid.put(moved.uuid, moved);
+                        position += entry.length;
+                    }
+                    copiedEnd = end;
+                } finally {
+                    lock.readLock().unlock();
+                }
+
+                lock.writeLock().lock();
+                try {
+                    //Copying the records appended in the meantime.
+                    long tail = end - copiedEnd;
+                    transfer(copiedEnd, tail, out, position);
+                    out.force(true);
+
+                    channel.close();
+                    mapped = null;
+                    try {
+                        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (IOException e) {
+                        //E.g. the file is still mapped on Windows, keeping the current file.
+                        logger.warn("Couldn't replace structure archive: {} with its compacted copy!", path, e);
+                        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                        return;
+                    }
+                    channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    byName = newByName;
+                    byUuid = newByUuid;
+                    garbage = 0;
+                    scan(position);
+                    logger.info("Compacted structure archive: {}, {} structures in {} bytes", path, byName.size(), end);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            } finally {
+                Files.deleteIfExists(compacted);
+            }
+        }
+    }
+
+    /**
+     * Compacts the archive on the background thread.
+     * @return future completed once the compaction is done.
+     */
+    public synchronized CompletableFuture<Void> compactAsync() {
+        if(compaction == null || compaction.isDone()) {
+            compaction = CompletableFuture.runAsync(() -> {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    logger.error("Compaction of structure archive: {} failed!", path, e);
+                    throw new RuntimeException(e);
+                }
+            }, compactor);
+        }
+        return compaction;
+    }
+
+    /**
+     * Closes the archive file, waiting for a running compaction first.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        CompletableFuture<Void> running;
+        synchronized (this) {
+            running = compaction;
+        }
+        if(running != null) {
+            try {
+                running.join();
+            } catch (RuntimeException e) {
+                //Already logged.
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            channel.close();
+            mapped = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Opens the file channel and indexes the records.
+     * @throws IOException
+     */
+    private void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if(channel.size() == 0) {
+            writeHeader(channel);
+            channel.force(true);
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+        for (byte b : MAGIC) {
+            if(header.remaining() == 0 || header.get() != b) {
+                channel.close();
+                throw new IOException("Not a structure archive: " + path);
+            }
+        }
+        int version = header.remaining() > 0 ? header.get() & 0xFF : -1;
+        if(version != VERSION) {
+            channel.close();
+            throw new IOException("Unsupported structure archive version: " + version);
+        }
+        scan(HEADER_SIZE);
+    }
+
+    /**
+     * Indexes the records of the file from the given position on, dropping a partially written record at the end.
+     * @param position
+     * @throws IOException
+     */
+    private void scan(long position) throws IOException {
+        long size = channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (position < size) {
+            buffer.clear();
+            if(size - position < RECORD_HEADER_SIZE || channel.read(buffer, position) < RECORD_HEADER_SIZE) break;
+            buffer.flip();
+            int type = buffer.get();
+            UUID uuid = new UUID(buffer.getLong(), buffer.getLong());
+            int nameLength = buffer.getInt();
+            int dataLength = buffer.getInt();
+            int crc = buffer.getInt();
+            long length = (long) RECORD_HEADER_SIZE + nameLength + dataLength;
+            if((type != RECORD_STRUCTURE && type != RECORD_REMOVAL) || nameLength < 0 || dataLength < 0 || position + length > size) break;
+
+            ByteBuffer nameBytes = ByteBuffer.allocate(nameLength);
+            channel.read(nameBytes, position + RECORD_HEADER_SIZE);
+            String name = new String(nameBytes.array(), StandardCharsets.UTF_8);
+            Entry entry = new Entry(uuid, name, position, (int) length, position + RECORD_HEADER_SIZE + nameLength, crc);
+            if(type == RECORD_STRUCTURE) {
+                index(entry);
+            } else {
+                Entry removed = byName.get(name);
+                if(removed != null) unindex(removed);
+                garbage += length;
+            }
+            position += length;
+        }
+        if(position < size) {
+            logger.warn("Dropping {} bytes of incomplete records at the end of structure archive: {}", size - position, path);
+            channel.truncate(position);
+        }
+        end = position;
+    }
+
+    /**
+     * Appends a record to the file.
+     * @return the entry of the record.
+     * @throws IOException
+     */
+    private Entry append(int type, UUID uuid, String name, byte[] data) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + nameBytes.length + data.length);
+        record.put((byte) type);
+        record.putLong(uuid.getMostSignificantBits());
+        record.putLong(uuid.getLeastSignificantBits());
+        record.putInt(nameBytes.length);
+        record.putInt(data.length);
+        record.putInt((int) crc.getValue());
+        record.put(nameBytes);
+        record.put(data);
+        record.flip();
+
+        long offset = end;
+        while (record.hasRemaining()) {
+            channel.write(record, offset + record.position());
+        }
+        end += record.capacity();
+        return new Entry(uuid, name, offset, record.capacity(), offset + RECORD_HEADER_SIZE + nameBytes.length, (int) crc.getValue());
+    }
+
+    /**
+     * Reads the structure of a record.
+     * @param entry
+     * @return the structure or null if the entry is null.
+     * @throws IOException if the record is damaged.
+     */
+    private Structure read(Entry entry) throws IOException {
+        if(entry == null) return null;
+        ByteBuffer data = region(entry.dataOffset, (int) (entry.offset + entry.length - entry.dataOffset));
+        CRC32 crc = new CRC32();
+        crc.update(data.duplicate());
+        if((int) crc.getValue() != entry.crc) {
+            throw new IOException("Damaged record of structure: " + entry.name + " in archive: " + path);
+        }
+        return BinaryStructureFormat.read(new ByteBufferInputStream(data));
+    }
+
+    /**
+     * Gets a read only view of a region of the file.
+     * The whole file is mapped once and remapped after it grew, files over 2GB are mapped per record.
+     * @param offset
+     * @param length
+     * @return
+     * @throws IOException
+     */
+    private ByteBuffer region(long offset, int length) throws IOException {
+        if(end > Integer.MAX_VALUE) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }
+        ByteBuffer map = mapped;
+        if(map == null || offset + length > map.capacity()) {
+            synchronized (this) {
+                map = mapped;
+                if(map == null || offset + length > map.capacity()) {
+                    map = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+                    mapped = map;
+                }
+            }
+        }
+        ByteBuffer region = map.duplicate();
+        region.limit((int) offset + length);
+        region.position((int) offset);
+        return region.slice();
+    }
+
+    /**
+     * Starts a background compaction once most of a large enough archive is unused.
+     */
+    private void scheduleCompaction() {
+        boolean compact;
+        lock.readLock().lock();
+        try {
+            compact = garbage >= AUTO_COMPACTION_MIN_GARBAGE && garbage * 2 > end;
+        } finally {
+            lock.readLock().unlock();
+        }
+        if(compact) {
+            compactAsync();
+        }
+    }
+
+    /**
+     * Makes an entry the latest record of its structure.
+     * @param entry
+     */
+    private void index(Entry entry) {
+        Entry replaced = byName.put(entry.name, entry);
+        if(replaced != null) {
+            garbage += replaced.length;
+            if(byUuid.get(replaced.uuid) == replaced) byUuid.remove(replaced.uuid);
+        }
+        byUuid.put(entry.uuid, entry);
+    }
+
+    /**
+     * Removes an entry from the index.
+     * @param entry
+     */
+    private void unindex(Entry entry) {
+        byName.remove(entry.name);
+        if(byUuid.get(entry.uuid) == entry) byUuid.remove(entry.uuid);
+        garbage += entry.length;
+    }
+
+    /**
+     * Copies a region of the file into another channel.
+     * @throws IOException
+     */
+    private void transfer(long offset, long length, FileChannel out, long outOffset) throws IOException {
+        long copied = 0;
+        while (copied < length) {
+            copied += channel.transferTo(offset + copied, length - copied, out.position(outOffset + copied));
+        }
+    }
+
+    private static void writeHeader(FileChannel out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC);
+        header.put((byte) VERSION);
+        header.position(HEADER_SIZE);
+        header.flip();
+        while (header.hasRemaining()) {
+            out.write(header, header.position());
+        }
+    }
+
+    /**
+     * The location of a record within the file.
+     */
+    private static final class Entry {
+        final UUID uuid;
+        final String name;
+        final long offset;
+        final int length;
+        final long dataOffset;
+        final int crc;
+
+        Entry(UUID uuid, String name, long offset, int length, long dataOffset, int crc) {
+            this.uuid = uuid;
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+            this.dataOffset = dataOffset;
+            this.crc = crc;
+        }
+
+        Entry movedTo(long offset) {
+            return new Entry(uuid, name, offset, length, dataOffset - this.offset + offset, crc);
+        }
+    }
+}
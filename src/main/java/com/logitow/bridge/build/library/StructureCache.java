@@ -0,0 +1,275 @@
+package com.logitow.bridge.build.library;
+
+import com.logitow.bridge.build.StructureSnapshot;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Cache of loaded structure files, so structures asked for again and again aren't read and parsed every time.
+ * The structures are kept as snapshots, which can't be changed by whoever loaded them.
+ * The cache holds up to a maximum weight, the weight of a structure being its block count, evicting the least recently used
+ * structures to make room. A cached structure is only used while its file keeps the size and modification time it had
+ * when cached, so files changed by anything else are read again.
+ */
+public class StructureCache {
+    /**
+     * The default maximum weight, in blocks.
+     */
+    public static final long DEFAULT_MAX_WEIGHT = 1_000_000;
+
+    /**
+     * The maximum total weight of the cached structures.
+     */
+    private final long maxWeight;
+
+    /**
+     * The cached structures by absolute file path, least recently used first.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The paths of the cached structures by uuid.
+     */
+    private final HashMap<UUID, String> pathsByUuid = new HashMap<>();
+
+    /**
+     * The total weight of the cached structures.
+     */
+    private long weight;
+
+    //Stats.
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Creates a cache with the default maximum weight.
+     */
+    public StructureCache() {
+        this(DEFAULT_MAX_WEIGHT);
+    }
+
+    /**
+     * Creates a cache.
+     * @param maxWeight the maximum total block count of the cached structures.
+     */
+    public StructureCache(long maxWeight) {
+        if(maxWeight < 0) {
+            throw new IllegalArgumentException("Maximum weight can't be negative!");
+        }
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Gets the cached structure of a file.
+     * @param file
+     * @return the structure or null if it isn't cached or the file changed since.
+     */
+    public synchronized StructureSnapshot get(File file) {
+        String path = file.getAbsolutePath();
+        Entry entry = entries.get(path);
+        if(entry != null && (entry.lastModified != file.lastModified() || entry.length != file.length())) {
+            remove(path);
+            entry = null;
+        }
+        if(entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.snapshot;
+    }
+
+    /**
+     * Gets the cached structure with the given uuid.
+     * @param uuid
+     * @return the structure or null if it isn't cached or its file changed since.
+     */
+    public synchronized StructureSnapshot get(UUID uuid) {
+        String path = pathsByUuid.get(uuid);
+        if(path == null) {
+            misses++;
+            return null;
+        }
+        return get(new File(path));
+    }
+
+    /**
+     * Caches the structure of a file, read or written just now.
+     * Call before reading the file, or right after writing it, so a change made in between makes the file read again.
+     * @param file
+     * @param snapshot
+     */
+    public synchronized void put(File file, StructureSnapshot snapshot) {
+        put(file, snapshot, file.lastModified(), file.length());
+    }
+
+    /**
+     * Caches the structure of a file, as of the given file size and modification time.
+     * @param file
+     * @param snapshot
+     * @param lastModified
+     * @param length
+     */
+    public synchronized void put(File file, StructureSnapshot snapshot, long lastModified, long length) {
+        String path = file.getAbsolutePath();
+        remove(path);
+
+        long entryWeight = snapshot.size() + 1;
+        if(entryWeight > maxWeight) return;
+        entries.put(path, new Entry(snapshot, lastModified, length, entryWeight));
+        pathsByUuid.put(snapshot.getUuid(), path);
+        weight += entryWeight;
+
+        //Evicting the least recently used structures.
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (weight > maxWeight && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            iterator.remove();
+            unindex(eldest.getKey(), eldest.getValue());
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops the cached structure of a file.
+     * @param file
+     */
+    public synchronized void invalidate(File file) {
+        remove(file.getAbsolutePath());
+    }
+
+    /**
+     * Drops the cached structure with the given uuid.
+     * @param uuid
+     */
+    public synchronized void invalidate(UUID uuid) {
+        String path = pathsByUuid.get(uuid);
+        if(path != null) {
+            remove(path);
+        }
+    }
+
+    /**
+     * Drops every cached structure.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        pathsByUuid.clear();
+        weight = 0;
+    }
+
+    /**
+     * Gets the number of cached structures.
+     * @return
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the total weight of the cached structures.
+     * @return
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Gets the number of lookups which found a structure.
+     * @return
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of lookups which found nothing.
+     * @return
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of structures evicted to make room for others.
+     * @return
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Gets the share of lookups which found a structure.
+     * @return the hit rate between 0 and 1, 0 before any lookup.
+     */
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * Resets the hit, miss and eviction counts.
+     */
+    public synchronized void resetStats() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("StructureCache:{size: %d, weight: %d/%d, hits: %d, misses: %d, evictions: %d}",
+                entries.size(), weight, maxWeight, hits, misses, evictions);
+    }
+
+    /**
+     * Removes a cached structure.
+     * @param path
+     */
+    private void remove(String path) {
+        Entry entry = entries.remove(path);
+        if(entry != null) {
+            unindex(path, entry);
+        }
+    }
+
+    /**
+     * Removes a structure taken out of the entries from the uuid index and the weight.
+     * @param path
+     * @param entry
+     */
+    private void unindex(String path, Entry entry) {
+        weight -= entry.weight;
+        UUID uuid = entry.snapshot.getUuid();
+        if(path.equals(pathsByUuid.get(uuid))) {
+            pathsByUuid.remove(uuid);
+        }
+    }
+
+    /**
+     * A cached structure.
+     */
+    private static final class Entry {
+        final StructureSnapshot snapshot;
+        final long lastModified;
+        final long length;
+        final long weight;
+
+        Entry(StructureSnapshot snapshot, long lastModified, long length, long weight) {
+            this.snapshot = snapshot;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,633 @@
+package com.logitow.bridge.build.library;
+
+import com.logitow.bridge.build.StructureFingerprint;
+import com.logitow.bridge.build.io.BlockIdFilter;
+import com.logitow.bridge.build.io.StructureCompression;
+import com.logitow.bridge.build.io.StructureFormat;
+import com.logitow.bridge.build.io.StructureHeader;
+import com.logitow.bridge.build.io.StructureMetadata;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * In-memory index of the structure files within a directory.
+ * The directory is read once when the catalog is opened, after which a watch service keeps the catalog current,
+ * so looking structures up by name, uuid or formatted name doesn't touch the disk.
+ */
+public class StructureCatalog implements Closeable {
+    /**
+     * The logger of the class.
+     */
+    public static Logger logger = LogManager.getLogger(StructureCatalog.class);
+
+    /**
+     * The extension of structure files.
+     */
+    public static final String EXTENSION = ".logitow";
+
+    /**
+     * The catalogued directory.
+     */
+    private final Path directory;
+
+    /**
+     * The structure files by save name, sorted.
+     */
+    private final TreeMap<String, Entry> byName = new TreeMap<>();
+
+    /**
+     * The structure files by uuid, several files can hold copies of the same structure.
+     */
+    private final HashMap<UUID, List<Entry>> byUuid = new HashMap<>();
+
+    /**
+     * The structure files by formatted name.
+     */
+    private final HashMap<String, List<Entry>> byFormattedName = new HashMap<>();
+
+    /**
+     * The structure files by fingerprint, see Structure.fingerprint.
+     */
+    private final HashMap<StructureFingerprint, List<Entry>> byFingerprint = new HashMap<>();
+
+    /**
+     * The structure files only referencing the blocks of another file, by the save name of the referenced file.
+     */
+    private final HashMap<String, List<Entry>> byReference = new HashMap<>();
+
+    /**
+     * The search index of the formatted names and uuids.
+     */
+    private final StructureSearchIndex searchIndex = new StructureSearchIndex();
+
+    /**
+     * The index of the structures containing each block id.
+     */
+    private final BlockUsageIndex blockUsage = new BlockUsageIndex();
+
+    /**
+     * Watches the directory for changes.
+     */
+    private final WatchService watchService;
+
+    /**
+     * Applies the changes reported by the watch service.
+     */
+    private final Thread watchThread;
+
+    private StructureCatalog(Path directory) throws IOException {
+        this.directory = directory;
+        this.watchService = directory.getFileSystem().newWatchService();
+        this.watchThread = new Thread(this::watch, "Structure catalog watcher");
+        this.watchThread.setDaemon(true);
+    }
+
+    /**
+     * Opens the catalog of a directory, creating the directory if needed.
+     * @param directory
+     * @return
+     * @throws IOException
+     */
+    public static StructureCatalog open(File directory) throws IOException {
+        Path path = directory.toPath().toAbsolutePath();
+        Files.createDirectories(path);
+        StructureCatalog catalog = new StructureCatalog(path);
+
+        //Watching first, so no change made while scanning is missed.
+        path.register(catalog.watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        catalog.rescan();
+        catalog.watchThread.start();
+        return catalog;
+    }
+
+    /**
+     * Gets the catalogued directory.
+     * @return
+     */
+    public File getDirectory() {
+        return directory.toFile();
+    }
+
+    /**
+     * Checks whether a structure with the given save name exists.
+     * @param name
+     * @return
+     */
+    public synchronized boolean contains(String name) {
+        return byName.containsKey(name);
+    }
+
+    /**
+     * Checks whether a structure with the given uuid exists.
+     * @param uuid
+     * @return
+     */
+    public synchronized boolean contains(UUID uuid) {
+        return byUuid.containsKey(uuid);
+    }
+
+    /**
+     * Gets a structure file by save name.
+     * @param name
+     * @return the entry or null.
+     */
+    public synchronized Entry get(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * Gets a structure file by uuid, the most recently modified one if several files share the uuid.
+     * @param uuid
+     * @return the entry or null.
+     */
+    public synchronized Entry get(UUID uuid) {
+        List<Entry> entries = byUuid.get(uuid);
+        if(entries == null) return null;
+        Entry latest = null;
+        for (Entry entry : entries) {
+            if(latest == null || entry.lastModified > latest.lastModified) {
+                latest = entry;
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Gets the structure files with the given formatted name, see Structure.getNameFormatted.
+     * @param formattedName
+     * @return
+     */
+    public synchronized List<Entry> getByFormattedName(String formattedName) {
+        List<Entry> entries = byFormattedName.get(formattedName);
+        return entries == null ? Collections.emptyList() : new ArrayList<>(entries);
+    }
+
+    /**
+     * Gets the structure files with the given fingerprint, i.e. holding the same shape, see Structure.fingerprint.
+     * Files saved before the fingerprint was stored aren't found.
+     * @param fingerprint
+     * @return
+     */
+    public synchronized List<Entry> getByFingerprint(StructureFingerprint fingerprint) {
+        List<Entry> entries = byFingerprint.get(fingerprint);
+        return entries == null ? Collections.emptyList() : new ArrayList<>(entries);
+    }
+
+    /**
+     * Gets the structure files only referencing the blocks of the given file, see BinaryStructureFormat.writeReference.
+     * @param name the save name of the referenced file.
+     * @return
+     */
+    public synchronized List<Entry> getReferrers(String name) {
+        List<Entry> entries = byReference.get(name);
+        return entries == null ? Collections.emptyList() : new ArrayList<>(entries);
+    }
+
+    /**
+     * Searches the catalogued structures by formatted name or uuid, see StructureSearchIndex.
+     * @param query
+     * @param mode
+     * @param offset the number of results to skip.
+     * @param limit the maximum number of results to return.
+     * @return
+     */
+    public synchronized StructureSearchIndex.Page search(String query, StructureSearchIndex.Mode mode, int offset, int limit) {
+        return searchIndex.search(query, mode, offset, limit);
+    }
+
+    /**
+     * Gets the structure files containing a block, sorted by save name.
+     * Only the block id filters and block ids stored ahead of the blocks are read, each file at most once until it changes.
+     * @param id the id of the block.
+     * @return
+     */
+    public List<Entry> getByBlock(int id) {
+        //Reading the filters and ids without holding the lock, the catalog may change meanwhile.
+        List<Entry> unfiltered;
+        synchronized (this) {
+            unfiltered = blockUsage.getUnfiltered();
+        }
+        for (Entry entry :
+                unfiltered) {
+            try (InputStream in = openHeader(entry.path)) {
+                BlockIdFilter filter = StructureFormat.detect(in).readBlockFilter(in);
+                synchronized (this) {
+                    blockUsage.putFilter(entry, filter);
+                }
+            } catch (IOException e) {
+                logger.debug("Couldn't read the block id filter of structure file: {}", entry.path, e);
+            }
+        }
+
+        List<Entry> candidates;
+        synchronized (this) {
+            candidates = blockUsage.getCandidates(id);
+        }
+        for (Entry entry :
+                candidates) {
+            try (InputStream in = openHeader(entry.path)) {
+                int[] ids = StructureFormat.detect(in).readBlockIds(in);
+                synchronized (this) {
+                    blockUsage.put(entry, ids);
+                }
+            } catch (IOException e) {
+                logger.debug("Couldn't read the block ids of structure file: {}", entry.path, e);
+            }
+        }
+
+        List<Entry> entries;
+        synchronized (this) {
+            entries = blockUsage.get(id);
+        }
+        entries.sort(Comparator.comparing((Entry entry) -> entry.name));
+        return entries;
+    }
+
+    /**
+     * Indexes the block ids of a structure file, called right after the structure is saved so it doesn't have to be read.
+     * Ignored if the file isn't catalogued.
+     * @param file
+     * @param ids the distinct block ids of the saved structure.
+     */
+    public synchronized void indexBlocks(Path file, int[] ids) {
+        String name = nameOf(file);
+        if(name == null) return;
+        Entry entry = byName.get(name);
+        if(entry != null) {
+            blockUsage.put(entry, ids);
+        }
+    }
+
+    /**
+     * Gets the save names of the catalogued structures, sorted.
+     * @return
+     */
+    public synchronized List<String> getNames() {
+        return new ArrayList<>(byName.keySet());
+    }
+
+    /**
+     * Gets the catalogued structure files, sorted by save name.
+     * @return
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(byName.values());
+    }
+
+    /**
+     * Gets the number of catalogued structures.
+     * @return
+     */
+    public synchronized int size() {
+        return byName.size();
+    }
+
+    /**
+     * Re-reads a structure file of the directory.
+     * Called on changes reported by the watch service, and right after the structure files are saved,
+     * so the catalog doesn't lag behind the saves.
+     * @param file
+     */
+    public void refresh(Path file) {
+        String name = nameOf(file);
+        if(name == null) return;
+
+        Entry entry;
+        try {
+            entry = readEntry(file, name);
+        } catch (NoSuchFileException e) {
+            forget(file);
+            return;
+        } catch (IOException e) {
+            logger.warn("Couldn't catalog structure file: {}", file, e);
+            return;
+        }
+
+        synchronized (this) {
+            put(entry);
+        }
+    }
+
+    /**
+     * Removes a structure file of the directory from the catalog.
+     * @param file
+     */
+    public void forget(Path file) {
+        String name = nameOf(file);
+        if(name == null) return;
+        synchronized (this) {
+            unindex(byName.remove(name));
+        }
+    }
+
+    /**
+     * Reads the whole directory again.
+     * The files are read without holding the lock and the changes applied at once,
+     * so lookups keep finding the structures while the directory is read.
+     */
+    public void rescan() {
+        ArrayList<Entry> scanned = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+            for (Path file : files) {
+                String name = nameOf(file);
+                if(name == null) continue;
+                try {
+                    scanned.add(readEntry(file, name));
+                } catch (NoSuchFileException e) {
+                    //Removed meanwhile.
+                } catch (IOException e) {
+                    logger.warn("Couldn't catalog structure file: {}", file, e);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Couldn't read structure directory: {}", directory, e);
+            return;
+        }
+
+        synchronized (this) {
+            HashSet<String> names = new HashSet<>(scanned.size() * 2);
+            for (Entry entry :
+                    scanned) {
+                names.add(entry.name);
+                put(entry);
+            }
+            //Forgetting the files which are gone.
+            Iterator<Entry> entries = byName.values().iterator();
+            while (entries.hasNext()) {
+                Entry entry = entries.next();
+                if(!names.contains(entry.name)) {
+                    entries.remove();
+                    unindex(entry);
+                }
+            }
+        }
+        logger.info("Catalogued {} structures in: {}", size(), directory);
+    }
+
+    /**
+     * Stops watching the directory.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    /**
+     * Puts a read entry in place of the catalogued entry of its file.
+     * The catalogued entry is kept if it was read from a newer version of the file, or from the same version,
+     * so the indexed block ids of a saved file aren't dropped once the watcher reports the save.
+     * @param entry
+     */
+    private void put(Entry entry) {
+        Entry current = byName.get(entry.name);
+        if(isNewer(current, entry) || isUnchanged(current, entry)) return;
+        unindex(current);
+        byName.put(entry.name, entry);
+        index(entry);
+    }
+
+    /**
+     * Adds an entry to the uuid, formatted name, fingerprint, reference, search and block indexes.
+     * @param entry
+     */
+    private void index(Entry entry) {
+        if(entry.uuid != null) {
+            byUuid.computeIfAbsent(entry.uuid, k -> new ArrayList<>()).add(entry);
+        }
+        byFormattedName.computeIfAbsent(entry.formattedName, k -> new ArrayList<>()).add(entry);
+        if(entry.fingerprint != null) {
+            byFingerprint.computeIfAbsent(entry.fingerprint, k -> new ArrayList<>()).add(entry);
+        }
+        if(entry.reference != null) {
+            byReference.computeIfAbsent(entry.reference, k -> new ArrayList<>()).add(entry);
+        }
+        searchIndex.add(entry);
+        blockUsage.add(entry);
+    }
+
+    /**
+     * Removes an entry from the uuid, formatted name, fingerprint, reference, search and block indexes.
+     * @param entry
+     */
+    private void unindex(Entry entry) {
+        if(entry == null) return;
+        if(entry.uuid != null) {
+            removeFrom(byUuid, entry.uuid, entry);
+        }
+        removeFrom(byFormattedName, entry.formattedName, entry);
+        if(entry.fingerprint != null) {
+            removeFrom(byFingerprint, entry.fingerprint, entry);
+        }
+        if(entry.reference != null) {
+            removeFrom(byReference, entry.reference, entry);
+        }
+        searchIndex.remove(entry);
+        blockUsage.remove(entry);
+    }
+
+    /**
+     * Removes an entry from a list of a multi map.
+     */
+    private static <K> void removeFrom(HashMap<K, List<Entry>> map, K key, Entry entry) {
+        List<Entry> entries = map.get(key);
+        if(entries != null) {
+            entries.remove(entry);
+            if(entries.isEmpty()) map.remove(key);
+        }
+    }
+
+    /**
+     * Reads the attributes and header of a structure file.
+     * @param file
+     * @param name the save name of the file.
+     * @return
+     * @throws IOException if the attributes can't be read.
+     */
+    private static Entry readEntry(Path file, String name) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        StructureHeader header = null;
+        try (InputStream in = openHeader(file)) {
+            header = StructureFormat.detect(in).readStoredMetadata(in);
+        } catch (NoSuchFileException e) {
+            throw e;
+        } catch (IOException e) {
+            //Most likely still being written, another change will follow.
+            logger.debug("Couldn't read the header of structure file: {}", file, e);
+        }
+        return new Entry(file, name, header, attributes.size(), attributes.lastModifiedTime().toMillis());
+    }
+
+    /**
+     * Checks whether the catalogued entry of a file was read from a newer version of the file than another entry,
+     * e.g. a save refreshed the catalog while a slower watcher read was still going on.
+     * @param current the catalogued entry, if any.
+     * @param entry
+     * @return
+     */
+    private static boolean isNewer(Entry current, Entry entry) {
+        return current != null && current.lastModified > entry.lastModified;
+    }
+
+    /**
+     * Checks whether the catalogued entry of a file was read from the same version of the file as another entry,
+     * going by the size and last modification time of the file.
+     * @param current the catalogued entry, if any.
+     * @param entry
+     * @return false if only the other entry could read the header.
+     */
+    private static boolean isUnchanged(Entry current, Entry entry) {
+        return current != null && current.size == entry.size && current.lastModified == entry.lastModified
+                && (current.uuid != null || entry.uuid == null);
+    }
+
+    /**
+     * Opens a structure file for reading its header.
+     * @param file
+     * @return a decompressed stream supporting mark.
+     * @throws IOException
+     */
+    private static InputStream openHeader(Path file) throws IOException {
+        return StructureCompression.decompress(new BufferedInputStream(Files.newInputStream(file), 512));
+    }
+
+    /**
+     * Gets the save name of a structure file of the directory.
+     * @param file
+     * @return the name or null if the file isn't a structure file of the directory.
+     */
+    private String nameOf(Path file) {
+        if(file == null) return null;
+        Path absolute = file.toAbsolutePath();
+        if(!directory.equals(absolute.getParent())) return null;
+        String fileName = absolute.getFileName().toString();
+        if(!fileName.endsWith(EXTENSION) || fileName.length() == EXTENSION.length()) return null;
+        return fileName.substring(0, fileName.length() - EXTENSION.length());
+    }
+
+    /**
+     * Applies the changes reported by the watch service until the catalog is closed.
+     */
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rescan();
+                        continue;
+                    }
+                    Path file = directory.resolve((Path) event.context());
+                    if(event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        forget(file);
+                    } else {
+                        refresh(file);
+                    }
+                }
+                if(!key.reset()) {
+                    logger.warn("Structure directory: {} is no longer watched!", directory);
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            //Closed.
+        }
+    }
+
+    /**
+     * A catalogued structure file.
+     */
+    public static class Entry {
+        /**
+         * The path of the file.
+         */
+        public final Path path;
+
+        /**
+         * The save name of the structure, the file name without the extension.
+         */
+        public final String name;
+
+        /**
+         * Unique id of the structure, null if the file couldn't be read.
+         */
+        public final UUID uuid;
+
+        /**
+         * Custom name of the structure.
+         */
+        public final String customName;
+
+        /**
+         * The formatted name of the structure, see Structure.getNameFormatted.
+         */
+        public final String formattedName;
+
+        /**
+         * The fingerprint of the structure, null if the file doesn't store it.
+         */
+        public final StructureFingerprint fingerprint;
+
+        /**
+         * The save name of the file holding the blocks of the structure, null if the file holds them.
+         */
+        public final String reference;
+
+        /**
+         * The size of the file in bytes.
+         */
+        public final long size;
+
+        /**
+         * The last modification time of the file, in milliseconds since the epoch.
+         */
+        public final long lastModified;
+
+        Entry(Path path, String name, StructureHeader header, long size, long lastModified) {
+            this.path = path;
+            this.name = name;
+            this.uuid = header == null ? null : header.uuid;
+            this.customName = header == null ? null : header.customName;
+            String formatted = customName != null && !customName.isEmpty() ? customName : uuid != null ? uuid.toString() : name;
+            this.formattedName = formatted.contains("^") ? formatted.split("\\^")[0] : formatted;
+            StructureMetadata metadata = header instanceof StructureMetadata ? (StructureMetadata) header : null;
+            this.fingerprint = metadata == null ? null : metadata.fingerprint;
+            this.reference = metadata == null ? null : metadata.reference;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.logitow.bridge.build.library;
+
+import com.logitow.bridge.build.Structure;
+
+import java.nio.file.Path;
+
+/**
+ * The outcome of loading one structure file of a bulk load, see Structure.loadAll.
+ */
+public class StructureLoadResult {
+    /**
+     * The path of the file.
+     */
+    public final Path path;
+
+    /**
+     * The loaded structure, null if loading failed.
+     */
+    public final Structure structure;
+
+    /**
+     * Why loading failed, null if the structure was loaded.
+     */
+    public final Throwable error;
+
+    private StructureLoadResult(Path path, Structure structure, Throwable error) {
+        this.path = path;
+        this.structure = structure;
+        this.error = error;
+    }
+
+    /**
+     * Creates the result of a loaded structure.
+     * @param path
+     * @param structure
+     * @return
+     */
+    public static StructureLoadResult loaded(Path path, Structure structure) {
+        return new StructureLoadResult(path, structure, null);
+    }
+
+    /**
+     * Creates the result of a file which couldn't be loaded.
+     * @param path
+     * @param error
+     * @return
+     */
+    public static StructureLoadResult failed(Path path, Throwable error) {
+        return new StructureLoadResult(path, null, error);
+    }
+
+    /**
+     * Checks whether the structure was loaded.
+     * @return
+     */
+    public boolean isLoaded() {
+        return structure != null;
+    }
+
+    @Override
+    public String toString() {
+        return path.getFileName() + ": " + (isLoaded() ? structure.toString() : "failed, " + error);
+    }
+}
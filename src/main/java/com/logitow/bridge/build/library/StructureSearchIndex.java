@@ -0,0 +1,317 @@
+package com.logitow.bridge.build.library;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Search index over the formatted names and uuids of catalogued structures.
+ * The lower cased names are kept sorted for prefix queries, and their trigrams are indexed,
+ * so infix and fuzzy queries only check the names sharing trigrams with the query.
+ * Kept current by its StructureCatalog, not thread safe on its own.
+ */
+public class StructureSearchIndex {
+    /**
+     * The kinds of queries.
+     */
+    public enum Mode {
+        /**
+         * Names starting with the query.
+         */
+        PREFIX,
+        /**
+         * Names containing the query.
+         */
+        INFIX,
+        /**
+         * Names starting with the query, allowing a few typos, see getMaxEdits.
+         */
+        FUZZY
+    }
+
+    /**
+     * The length of the indexed grams.
+     */
+    private static final int GRAM = 3;
+
+    /**
+     * The indexed entries by lower cased term, sorted.
+     */
+    private final TreeMap<String, List<StructureCatalog.Entry>> terms = new TreeMap<>();
+
+    /**
+     * The terms containing each trigram.
+     */
+    private final HashMap<String, HashSet<String>> grams = new HashMap<>();
+
+    /**
+     * Indexes an entry.
+     * @param entry
+     */
+    void add(StructureCatalog.Entry entry) {
+        for (String term :
+                termsOf(entry)) {
+            List<StructureCatalog.Entry> entries = terms.get(term);
+            if(entries == null) {
+                entries = new ArrayList<>(1);
+                terms.put(term, entries);
+                for (String gram :
+                        gramsOf(term)) {
+                    grams.computeIfAbsent(gram, k -> new HashSet<>()).add(term);
+                }
+            }
+            entries.add(entry);
+        }
+    }
+
+    /**
+     * Removes an entry from the index.
+     * @param entry
+     */
+    void remove(StructureCatalog.Entry entry) {
+        for (String term :
+                termsOf(entry)) {
+            List<StructureCatalog.Entry> entries = terms.get(term);
+            if(entries == null || !entries.remove(entry) || !entries.isEmpty()) continue;
+            terms.remove(term);
+            for (String gram :
+                    gramsOf(term)) {
+                HashSet<String> containing = grams.get(gram);
+                if(containing != null) {
+                    containing.remove(term);
+                    if(containing.isEmpty()) grams.remove(gram);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes every entry.
+     */
+    void clear() {
+        terms.clear();
+        grams.clear();
+    }
+
+    /**
+     * Searches the formatted names and uuids, ignoring case.
+     * Prefix results are sorted by name, infix results by where the query is found and fuzzy results by the number of typos.
+     * @param query
+     * @param mode
+     * @param offset the number of results to skip.
+     * @param limit the maximum number of results to return.
+     * @return
+     */
+    public Page search(String query, Mode mode, int offset, int limit) {
+        if(offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("Offset and limit can't be negative!");
+        }
+        String normalized = query.toLowerCase(Locale.ROOT);
+        List<String> matched;
+        switch (mode) {
+            case PREFIX:
+                matched = new ArrayList<>(prefixed(normalized).keySet());
+                break;
+            case INFIX:
+                matched = infix(normalized);
+                break;
+            default:
+                matched = fuzzy(normalized, getMaxEdits(normalized));
+                break;
+        }
+
+        //An entry can match both by name and by uuid.
+        LinkedHashSet<StructureCatalog.Entry> results = new LinkedHashSet<>();
+        for (String term :
+                matched) {
+            results.addAll(terms.get(term));
+        }
+        ArrayList<StructureCatalog.Entry> page = new ArrayList<>(Math.min(limit, Math.max(0, results.size() - offset)));
+        int index = 0;
+        for (StructureCatalog.Entry entry :
+                results) {
+            if(index - offset >= limit) break;
+            if(index++ >= offset) page.add(entry);
+        }
+        return new Page(page, offset, results.size());
+    }
+
+    /**
+     * Gets the number of typos fuzzy queries allow, 1 for queries of up to 4 characters, 2 for longer queries.
+     * @param query
+     * @return
+     */
+    public static int getMaxEdits(String query) {
+        return query.length() <= 4 ? 1 : 2;
+    }
+
+    /**
+     * Gets the number of indexed terms.
+     * @return
+     */
+    public int size() {
+        return terms.size();
+    }
+
+    /**
+     * Gets the terms starting with a prefix.
+     */
+    private Map<String, List<StructureCatalog.Entry>> prefixed(String prefix) {
+        if(prefix.isEmpty()) return terms;
+        return terms.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    /**
+     * Gets the terms containing the query, the ones containing it earliest first.
+     */
+    private List<String> infix(String query) {
+        List<String> matched = new ArrayList<>();
+        for (String term :
+                candidates(query, gramsOf(query).size())) {
+            if(term.contains(query)) matched.add(term);
+        }
+        matched.sort(Comparator.comparingInt((String term) -> term.indexOf(query)).thenComparing(Comparator.naturalOrder()));
+        return matched;
+    }
+
+    /**
+     * Gets the terms starting with the query, allowing up to the given number of typos, the closest first.
+     */
+    private List<String> fuzzy(String query, int maxEdits) {
+        //Every typo breaks up to GRAM of the grams of the query, the rest has to be found in the term.
+        int minShared = gramsOf(query).size() - maxEdits * GRAM;
+        HashMap<String, Integer> distances = new HashMap<>();
+        for (String term :
+                candidates(query, minShared)) {
+            int distance = prefixDistance(query, term, maxEdits);
+            if(distance <= maxEdits) distances.put(term, distance);
+        }
+        List<String> matched = new ArrayList<>(distances.keySet());
+        matched.sort(Comparator.comparingInt((String term) -> distances.get(term)).thenComparingInt(String::length).thenComparing(Comparator.naturalOrder()));
+        return matched;
+    }
+
+    /**
+     * Gets the terms sharing at least the given number of distinct grams with the query, or every term if that doesn't narrow it down.
+     */
+    private Iterable<String> candidates(String query, int minShared) {
+        if(minShared <= 0) {
+            return terms.keySet();
+        }
+        HashMap<String, Integer> shared = new HashMap<>();
+        for (String gram :
+                gramsOf(query)) {
+            HashSet<String> containing = grams.get(gram);
+            if(containing == null) continue;
+            for (String term :
+                    containing) {
+                shared.merge(term, 1, Integer::sum);
+            }
+        }
+        List<String> candidates = new ArrayList<>();
+        for (Map.Entry<String, Integer> term :
+                shared.entrySet()) {
+            if(term.getValue() >= minShared) candidates.add(term.getKey());
+        }
+        return candidates;
+    }
+
+    /**
+     * Gets the smallest edit distance between the query and a prefix of the term.
+     * @return the distance, or more than maxEdits once it's certain to be larger.
+     */
+    private static int prefixDistance(String query, String term, int maxEdits) {
+        int m = query.length(), n = term.length();
+        if(m == 0) return 0;
+        int[] previous = new int[n + 1];
+        int[] current = new int[n + 1];
+        for (int j = 0; j <= n; j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= m; i++) {
+            current[0] = i;
+            int rowMin = current[0];
+            char q = query.charAt(i - 1);
+            for (int j = 1; j <= n; j++) {
+                int cost = q == term.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if(rowMin > maxEdits) return rowMin;
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        int best = previous[0];
+        for (int j = 1; j <= n; j++) {
+            best = Math.min(best, previous[j]);
+        }
+        return best;
+    }
+
+    /**
+     * Gets the lower cased terms an entry is found by.
+     */
+    private static List<String> termsOf(StructureCatalog.Entry entry) {
+        List<String> termList = new ArrayList<>(2);
+        termList.add(entry.formattedName.toLowerCase(Locale.ROOT));
+        if(entry.uuid != null) {
+            String uuid = entry.uuid.toString();
+            if(!uuid.equals(termList.get(0))) termList.add(uuid);
+        }
+        return termList;
+    }
+
+    /**
+     * Gets the distinct grams of a term.
+     */
+    private static HashSet<String> gramsOf(String term) {
+        if(term.length() < GRAM) return new HashSet<>();
+        HashSet<String> termGrams = new HashSet<>(term.length() * 2);
+        for (int i = 0; i + GRAM <= term.length(); i++) {
+            termGrams.add(term.substring(i, i + GRAM));
+        }
+        return termGrams;
+    }
+
+    /**
+     * A page of search results.
+     */
+    public static class Page {
+        /**
+         * The results of the page.
+         */
+        public final List<StructureCatalog.Entry> results;
+
+        /**
+         * The index of the first result of the page among all the results.
+         */
+        public final int offset;
+
+        /**
+         * The total number of results.
+         */
+        public final int total;
+
+        Page(List<StructureCatalog.Entry> results, int offset, int total) {
+            this.results = Collections.unmodifiableList(results);
+            this.offset = offset;
+            this.total = total;
+        }
+
+        /**
+         * Checks whether there are results after this page.
+         * @return
+         */
+        public boolean hasMore() {
+            return offset + results.size() < total;
+        }
+    }
+}
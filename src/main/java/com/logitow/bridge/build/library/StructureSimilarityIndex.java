@@ -0,0 +1,530 @@
+package com.logitow.bridge.build.library;
+
+import com.logitow.bridge.build.Coordinate;
+import com.logitow.bridge.build.CubeRotation;
+import com.logitow.bridge.build.Hashing;
+import com.logitow.bridge.build.Structure;
+import com.logitow.bridge.build.StructureSnapshot;
+import com.logitow.bridge.build.block.BlockSnapshot;
+import com.logitow.bridge.build.block.BlockType;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of structures by shape, finding the indexed structures most similar to a given one, e.g. the reference model a build is closest to.
+ *
+ * Every block contributes a shingle made of its type and which of its 26 neighbours are occupied, so the shingles don't depend
+ * on the block ids or the position of the structure. MinHash signatures of the shingles are split into bands, each hashed into a bucket,
+ * and a query only looks at the structures sharing a bucket with one of the 24 rotations of the queried structure.
+ * The candidates are ranked by their estimated similarity, then the best ones are verified by overlapping their blocks.
+ * Thread safe.
+ */
+public class StructureSimilarityIndex {
+    /**
+     * The number of bands of the signatures.
+     */
+    public static final int BANDS = 64;
+
+    /**
+     * The number of signature hashes per band.
+     * With 64 bands of 2, structures with a shingle similarity of 0.2 share a bucket 93 times out of 100, of 0.1 about half the time
+     * and of 0.02 3 times out of 100.
+     */
+    public static final int ROWS = 2;
+
+    /**
+     * The length of the signatures.
+     */
+    private static final int HASHES = BANDS * ROWS;
+
+    /**
+     * The number of best estimated candidates verified per requested result, at least MIN_VERIFIED.
+     */
+    private static final int VERIFIED_PER_RESULT = 4;
+
+    /**
+     * The smallest number of verified candidates.
+     */
+    private static final int MIN_VERIFIED = 16;
+
+    /**
+     * The number of rotations of a candidate verified, the ones with the best estimates.
+     */
+    private static final int VERIFIED_ROTATIONS = 2;
+
+    /**
+     * The indexed shapes by key.
+     */
+    private final HashMap<String, Shape> shapes = new HashMap<>();
+
+    /**
+     * The keys of the indexed shapes by band hash, for each band.
+     */
+    private final List<HashMap<Long, List<String>>> buckets = new ArrayList<>(BANDS);
+
+    public StructureSimilarityIndex() {
+        for (int band = 0; band < BANDS; band++) {
+            buckets.add(new HashMap<>());
+        }
+    }
+
+    /**
+     * Indexes a structure, replacing the structure indexed with the same key.
+     * @param key e.g. the save name of the structure.
+     * @param structure
+     */
+    public void put(String key, Structure structure) {
+        put(key, structure.snapshot());
+    }
+
+    /**
+     * Indexes a structure snapshot, replacing the structure indexed with the same key.
+     * @param key
+     * @param snapshot
+     */
+    public void put(String key, StructureSnapshot snapshot) {
+        Shape shape = Shape.of(snapshot);
+        int[] signature = signature(shape.cells, shape.types);
+        synchronized (this) {
+            remove(key);
+            shapes.put(key, shape);
+            shape.signature = signature;
+            for (int band = 0; band < BANDS; band++) {
+                buckets.get(band).computeIfAbsent(bandHash(signature, band), k -> new ArrayList<>(1)).add(key);
+            }
+        }
+    }
+
+    /**
+     * Indexes every structure file of a directory, keyed by save name.
+     * @param directory
+     * @throws IOException if the directory can't be read.
+     */
+    public void putAll(Path directory) throws IOException {
+        Structure.loadAll(directory, result -> {
+            if(!result.isLoaded()) return;
+            String fileName = result.path.getFileName().toString();
+            put(fileName.substring(0, fileName.length() - StructureCatalog.EXTENSION.length()), result.structure);
+        });
+    }
+
+    /**
+     * Removes a structure from the index.
+     * @param key
+     * @return whether a structure was indexed with the key.
+     */
+    public synchronized boolean remove(String key) {
+        Shape shape = shapes.remove(key);
+        if(shape == null) return false;
+        for (int band = 0; band < BANDS; band++) {
+            long hash = bandHash(shape.signature, band);
+            List<String> keys = buckets.get(band).get(hash);
+            if(keys == null) continue;
+            keys.remove(key);
+            if(keys.isEmpty()) buckets.get(band).remove(hash);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of indexed structures.
+     * @return
+     */
+    public synchronized int size() {
+        return shapes.size();
+    }
+
+    /**
+     * Finds the indexed structures most similar to a structure, in any rotation.
+     * Only structures sharing a bucket with the structure are considered, so structures sharing few shingles with it may be missed.
+     * @param structure
+     * @param count the maximum number of results.
+     * @return the results, the most similar first.
+     */
+    public List<Match> findSimilar(Structure structure, int count) {
+        return findSimilar(structure.snapshot(), count);
+    }
+
+    /**
+     * Finds the indexed structures most similar to a structure snapshot, in any rotation.
+     * @param snapshot
+     * @param count the maximum number of results.
+     * @return the results, the most similar first.
+     */
+    public List<Match> findSimilar(StructureSnapshot snapshot, int count) {
+        if(count <= 0) return new ArrayList<>();
+
+        //Signatures of every rotation of the query.
+        Shape query = Shape.of(snapshot);
+        Shape[] rotated = new Shape[CubeRotation.COUNT];
+        int[][] signatures = new int[CubeRotation.COUNT][];
+        for (int rotation = 0; rotation < CubeRotation.COUNT; rotation++) {
+            rotated[rotation] = query.rotate(rotation);
+            signatures[rotation] = signature(rotated[rotation].cells, rotated[rotation].types);
+        }
+
+        //Candidates sharing a bucket, with the estimated similarity of every rotation.
+        HashMap<String, Candidate> candidates = new HashMap<>();
+        synchronized (this) {
+            for (int rotation = 0; rotation < CubeRotation.COUNT; rotation++) {
+                for (int band = 0; band < BANDS; band++) {
+                    List<String> keys = buckets.get(band).get(bandHash(signatures[rotation], band));
+                    if(keys == null) continue;
+                    for (String key :
+                            keys) {
+                        Candidate candidate = candidates.get(key);
+                        if(candidate == null) {
+                            candidate = new Candidate(key, shapes.get(key));
+                            candidates.put(key, candidate);
+                        }
+                        if(candidate.estimates[rotation] < 0) {
+                            candidate.estimate(rotation, signatures[rotation]);
+                        }
+                    }
+                }
+            }
+        }
+
+        //Verifying the best estimated candidates.
+        List<Candidate> ranked = new ArrayList<>(candidates.values());
+        ranked.sort(Comparator.comparingDouble((Candidate candidate) -> -candidate.bestEstimate)
+                .thenComparingDouble(candidate -> -typeSimilarity(query, candidate.shape))
+                .thenComparingDouble(candidate -> -proportionSimilarity(query, candidate.shape)));
+        int verified = Math.min(ranked.size(), Math.max(MIN_VERIFIED, count * VERIFIED_PER_RESULT));
+        List<Match> matches = new ArrayList<>(verified);
+        for (Candidate candidate :
+                ranked.subList(0, verified)) {
+            double best = 0;
+            int bestRotation = CubeRotation.IDENTITY;
+            for (int rotation :
+                    candidate.bestRotations(VERIFIED_ROTATIONS)) {
+                double overlap = overlap(rotated[rotation], candidate.shape);
+                if(overlap > best) {
+                    best = overlap;
+                    bestRotation = rotation;
+                }
+            }
+            matches.add(new Match(candidate.key, best, candidate.bestEstimate, typeSimilarity(query, candidate.shape), bestRotation));
+        }
+        matches.sort(Comparator.comparingDouble((Match match) -> -match.overlap).thenComparingDouble(match -> -match.typeSimilarity));
+        return new ArrayList<>(matches.subList(0, Math.min(count, matches.size())));
+    }
+
+    /**
+     * Computes the MinHash signature of the shingles of a shape.
+     * @param cells the distinct packed positions, sorted.
+     * @param types the type ordinals of the cells.
+     * @return
+     */
+    private static int[] signature(long[] cells, byte[] types) {
+        long[] shingles = new long[cells.length];
+        for (int i = 0; i < cells.length; i++) {
+            int mask = 0, bit = 0;
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dz = -1; dz <= 1; dz++) {
+                        if(dx == 0 && dy == 0 && dz == 0) continue;
+                        if(Arrays.binarySearch(cells, Coordinate.offset(cells[i], dx, dy, dz)) >= 0) mask |= 1 << bit;
+                        bit++;
+                    }
+                }
+            }
+            shingles[i] = Hashing.mix(((long) mask << 8) | types[i]);
+        }
+
+        //Numbering repeated shingles, so how often a local shape appears counts too.
+        Arrays.sort(shingles);
+        long previous = 0;
+        int repeat = 0;
+        for (int i = 0; i < shingles.length; i++) {
+            long shingle = shingles[i];
+            repeat = i > 0 && shingle == previous ? repeat + 1 : 0;
+            previous = shingle;
+            shingles[i] = shingle + repeat * Hashing.GAMMA;
+        }
+
+        //The hashes of a shingle are derived from two, see Kirsch and Mitzenmacher.
+        int[] signature = new int[HASHES];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        for (long shingle :
+                shingles) {
+            long first = Hashing.mix(shingle);
+            long second = Hashing.mix(first) | 1;
+            for (int h = 0; h < HASHES; h++) {
+                int hash = (int) ((first + h * second) >>> 33);
+                if(hash < signature[h]) signature[h] = hash;
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Hashes a band of a signature.
+     */
+    private static long bandHash(int[] signature, int band) {
+        long hash = band;
+        for (int row = band * ROWS; row < (band + 1) * ROWS; row++) {
+            hash = Hashing.mix(hash * 31 + signature[row]);
+        }
+        return hash;
+    }
+
+    /**
+     * Computes the overlap of two shapes, the share of their blocks at the same positions once the shapes are aligned,
+     * trying the alignment of their centers and the alignments one block away from it.
+     * @return the number of common cells divided by the number of cells of either shape, 0-1.
+     */
+    private static double overlap(Shape a, Shape b) {
+        int baseX = (int) Math.round(b.centerX - a.centerX);
+        int baseY = (int) Math.round(b.centerY - a.centerY);
+        int baseZ = (int) Math.round(b.centerZ - a.centerZ);
+        int best = 0;
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dz = -1; dz <= 1; dz++) {
+                    int common = 0;
+                    for (long cell :
+                            a.cells) {
+                        if(Arrays.binarySearch(b.cells, Coordinate.offset(cell, baseX + dx, baseY + dy, baseZ + dz)) >= 0) common++;
+                    }
+                    best = Math.max(best, common);
+                }
+            }
+        }
+        return (double) best / (a.cells.length + b.cells.length - best);
+    }
+
+    /**
+     * Compares the block type histograms of two shapes.
+     * @return the share of blocks of matching types, 0-1.
+     */
+    private static double typeSimilarity(Shape a, Shape b) {
+        int common = 0;
+        for (int type = 0; type < a.typeCounts.length; type++) {
+            common += Math.min(a.typeCounts[type], b.typeCounts[type]);
+        }
+        return (double) common / Math.max(1, Math.max(a.cells.length, b.cells.length));
+    }
+
+    /**
+     * Compares the bounding box proportions of two shapes, regardless of their rotation.
+     * @return the product of the ratios of the sorted extents, 0-1.
+     */
+    private static double proportionSimilarity(Shape a, Shape b) {
+        double similarity = 1;
+        for (int axis = 0; axis < 3; axis++) {
+            similarity *= (double) Math.min(a.extents[axis], b.extents[axis]) / Math.max(a.extents[axis], b.extents[axis]);
+        }
+        return similarity;
+    }
+
+    /**
+     * An indexed structure found by a query.
+     */
+    public static class Match {
+        /**
+         * The key the structure was indexed with.
+         */
+        public final String key;
+
+        /**
+         * The share of the blocks of both structures at the same positions once aligned, 0-1.
+         */
+        public final double overlap;
+
+        /**
+         * The similarity estimated from the signatures, 0-1.
+         */
+        public final double estimate;
+
+        /**
+         * The share of the blocks of matching types, 0-1.
+         */
+        public final double typeSimilarity;
+
+        /**
+         * The rotation of the queried structure best matching the indexed one, see CubeRotation.
+         */
+        public final int rotation;
+
+        Match(String key, double overlap, double estimate, double typeSimilarity, int rotation) {
+            this.key = key;
+            this.overlap = overlap;
+            this.estimate = estimate;
+            this.typeSimilarity = typeSimilarity;
+            this.rotation = rotation;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: overlap %.2f, estimate %.2f, types %.2f", key, overlap, estimate, typeSimilarity);
+        }
+    }
+
+    /**
+     * An indexed structure sharing a bucket with a query.
+     */
+    private static final class Candidate {
+        final String key;
+        final Shape shape;
+
+        /**
+         * The estimated similarity of every rotation of the query, -1 if it didn't share a bucket.
+         */
+        final double[] estimates = new double[CubeRotation.COUNT];
+
+        double bestEstimate;
+
+        Candidate(String key, Shape shape) {
+            this.key = key;
+            this.shape = shape;
+            Arrays.fill(estimates, -1);
+        }
+
+        /**
+         * Estimates the similarity of a rotation of the query from the share of equal signature hashes.
+         */
+        void estimate(int rotation, int[] signature) {
+            int equal = 0;
+            for (int h = 0; h < HASHES; h++) {
+                if(signature[h] == shape.signature[h]) equal++;
+            }
+            estimates[rotation] = (double) equal / HASHES;
+            bestEstimate = Math.max(bestEstimate, estimates[rotation]);
+        }
+
+        /**
+         * Gets the rotations of the query with the best estimates.
+         */
+        int[] bestRotations(int count) {
+            Integer[] rotations = new Integer[CubeRotation.COUNT];
+            for (int i = 0; i < rotations.length; i++) {
+                rotations[i] = i;
+            }
+            Arrays.sort(rotations, Comparator.comparingDouble(rotation -> -estimates[rotation]));
+            int[] best = new int[count];
+            for (int i = 0; i < count; i++) {
+                best[i] = rotations[i];
+            }
+            return best;
+        }
+    }
+
+    /**
+     * The blocks of a structure, reduced to what the similarity is computed from.
+     */
+    private static final class Shape {
+        /**
+         * The distinct packed positions of the blocks, sorted.
+         */
+        final long[] cells;
+
+        /**
+         * The type ordinal of every cell.
+         */
+        final byte[] types;
+
+        /**
+         * The number of blocks of each type, by ordinal.
+         */
+        final int[] typeCounts;
+
+        /**
+         * The bounding box sizes, sorted.
+         */
+        final int[] extents;
+
+        final double centerX, centerY, centerZ;
+
+        /**
+         * The MinHash signature, set once indexed.
+         */
+        int[] signature;
+
+        private Shape(long[] cells, byte[] types) {
+            this.cells = cells;
+            this.types = types;
+            this.typeCounts = new int[BlockType.values().length];
+            int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+            int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+            double sumX = 0, sumY = 0, sumZ = 0;
+            for (int i = 0; i < cells.length; i++) {
+                typeCounts[types[i]]++;
+                int x = Coordinate.unpackX(cells[i]), y = Coordinate.unpackY(cells[i]), z = Coordinate.unpackZ(cells[i]);
+                minX = Math.min(minX, x);
+                minY = Math.min(minY, y);
+                minZ = Math.min(minZ, z);
+                maxX = Math.max(maxX, x);
+                maxY = Math.max(maxY, y);
+                maxZ = Math.max(maxZ, z);
+                sumX += x;
+                sumY += y;
+                sumZ += z;
+            }
+            int count = Math.max(1, cells.length);
+            this.centerX = sumX / count;
+            this.centerY = sumY / count;
+            this.centerZ = sumZ / count;
+            this.extents = cells.length == 0 ? new int[]{1, 1, 1} : new int[]{maxX - minX + 1, maxY - minY + 1, maxZ - minZ + 1};
+            Arrays.sort(extents);
+        }
+
+        /**
+         * Reduces a snapshot to its shape, without the structure rotation.
+         */
+        static Shape of(StructureSnapshot snapshot) {
+            long[] positions = new long[snapshot.size()];
+            byte[] positionTypes = new byte[snapshot.size()];
+            int i = 0;
+            for (BlockSnapshot block :
+                    snapshot) {
+                positions[i] = block.getPackedLocalCoords();
+                positionTypes[i] = (byte) block.getBlockType().ordinal();
+                i++;
+            }
+            return of(positions, positionTypes);
+        }
+
+        /**
+         * Creates a shape from positions, keeping the first type of each repeated position.
+         */
+        static Shape of(long[] positions, byte[] positionTypes) {
+            HashMap<Long, Byte> byPosition = new HashMap<>(positions.length * 2);
+            for (int i = 0; i < positions.length; i++) {
+                byPosition.putIfAbsent(positions[i], positionTypes[i]);
+            }
+            long[] cells = new long[byPosition.size()];
+            int i = 0;
+            for (long cell :
+                    byPosition.keySet()) {
+                cells[i++] = cell;
+            }
+            Arrays.sort(cells);
+            byte[] types = new byte[cells.length];
+            for (Map.Entry<Long, Byte> cell :
+                    byPosition.entrySet()) {
+                types[Arrays.binarySearch(cells, cell.getKey())] = cell.getValue();
+            }
+            return new Shape(cells, types);
+        }
+
+        /**
+         * Gets the shape rotated around the origin.
+         */
+        Shape rotate(int rotation) {
+            if(rotation == CubeRotation.IDENTITY) return this;
+            long[] positions = new long[cells.length];
+            for (int i = 0; i < cells.length; i++) {
+                positions[i] = CubeRotation.apply(rotation, cells[i]);
+            }
+            return of(positions, types);
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package com.logitow.bridge.communication;
 
 import com.logitow.bridge.build.Structure;
+import com.logitow.bridge.build.StructureJournal;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
@@ -25,6 +28,11 @@ public class Device implements Serializable{
      */
     public transient Structure currentStructure;
 
+    /**
+     * The journal of the current structure, if started.
+     */
+    public transient StructureJournal journal;
+
     /**
      * UUIDs and their respective friendly names.
      */
@@ -85,6 +93,25 @@ public class Device implements Serializable{
         return LogitowDeviceManager.current.disconnectDevice(this);
     }
 
+    /**
+     * Starts journaling the current structure of the device, so it survives the bridge going down.
+     * If the structure of the device was journaled by a previous session, it's recovered and becomes the current structure.
+     * @return the journal.
+     * @throws IOException
+     */
+    public StructureJournal startJournal() throws IOException {
+        if(journal != null) return journal;
+        File file = new File(Structure.getJournalDir(), info.uuid.replaceAll("[^A-Za-z0-9_-]", "_") + StructureJournal.EXTENSION);
+        Structure recovered = StructureJournal.recover(file);
+        if(recovered != null) {
+            LogitowDeviceManager.current.logger.info("Recovered structure: {} of device: {}", recovered, this);
+            recovered.device = this;
+            currentStructure = recovered;
+        }
+        journal = StructureJournal.open(currentStructure, file);
+        return journal;
+    }
+
     /**
      * Requests a battery voltage update.
      */
@@ -12,13 +12,16 @@ import com.logitow.bridge.event.EventManager;
 import com.logitow.bridge.event.device.*;
 import com.logitow.bridge.event.device.battery.DeviceBatteryLowChargeEvent;
 import com.logitow.bridge.event.device.battery.DeviceBatteryVoltageUpdateEvent;
+import com.logitow.bridge.event.device.block.BlockOperationBatchEvent;
 import com.logitow.bridge.event.device.block.BlockOperationErrorEvent;
 import com.logitow.bridge.event.device.block.BlockOperationEvent;
+import com.logitow.bridge.event.device.block.BlockSubtreeRemovedEvent;
 import com.logitow.bridge.event.devicemanager.DeviceManagerCreatedEvent;
 import com.logitow.bridge.event.devicemanager.DeviceManagerDiscoveryStartedEvent;
 import com.logitow.bridge.event.devicemanager.DeviceManagerDiscoveryStoppedEvent;
 import com.logitow.bridge.event.devicemanager.DeviceManagerErrorEvent;
 import com.logitow.bridge.event.structure.StructureLoadEvent;
+import com.logitow.bridge.event.structure.StructureRemoveEvent;
 import com.logitow.bridge.event.structure.StructureSaveEvent;
 import com.logitow.bridge.util.OSValidator;
 import org.apache.logging.log4j.LogManager;
@@ -118,8 +121,11 @@ public abstract class LogitowDeviceManager {
         EventManager.registerEvent(DeviceBatteryVoltageUpdateEvent.class);
         EventManager.registerEvent(BlockOperationEvent.class);
         EventManager.registerEvent(BlockOperationErrorEvent.class);
+        EventManager.registerEvent(BlockSubtreeRemovedEvent.class);
+        EventManager.registerEvent(BlockOperationBatchEvent.class);
         EventManager.registerEvent(StructureSaveEvent.class);
         EventManager.registerEvent(StructureLoadEvent.class);
+        EventManager.registerEvent(StructureRemoveEvent.class);
     }
 
     /**
@@ -336,21 +342,14 @@ public abstract class LogitowDeviceManager {
                 (blockInfo[4] & 0xFF) << 16;
 
         //Calling operation event on the device current structure.
-        Block blockA = null; //Getting the block A reference.
-        for (Block a :
-                device.currentStructure.blocks) {
-            if (a.id == blockAID) {
-                blockA = a;
-                break;
-            }
-        }
+        Block blockA = device.currentStructure.getBlockById(blockAID); //Getting the block A reference.
 
         BlockOperationType operationType = BlockOperationType.BLOCK_ADD;
         if(blockBID == 0) {
             operationType = BlockOperationType.BLOCK_REMOVE;
         }
 
-        logger.info("Received block info from {}, Block A: {}, Operation face: {}, Block B: {}, Operation: {}", deviceUuid, blockA.id, insertFace, blockBID, operationType);
+        logger.info("Received block info from {}, Block A: {}, Operation face: {}, Block B: {}, Operation: {}", deviceUuid, blockAID, insertFace, blockBID, operationType);
 
         if(blockA!=null) {
             if(operationType == BlockOperationType.BLOCK_ADD) {
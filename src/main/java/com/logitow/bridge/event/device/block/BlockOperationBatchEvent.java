@@ -0,0 +1,60 @@
+package com.logitow.bridge.event.device.block;
+
+import com.logitow.bridge.build.Structure;
+import com.logitow.bridge.build.block.BlockOperation;
+import com.logitow.bridge.communication.Device;
+import com.logitow.bridge.event.device.DeviceEvent;
+
+import java.util.List;
+
+/**
+ * Called once a batch of block operations has been applied to a structure.
+ * Replaces the per operation events for every operation of the batch.
+ */
+public class BlockOperationBatchEvent extends DeviceEvent {
+
+    /**
+     * The structure the operations were applied to.
+     */
+    public Structure structure;
+
+    /**
+     * The applied operations, in order.
+     */
+    public List<BlockOperation> applied;
+
+    /**
+     * The operations which couldn't be applied, in order.
+     */
+    public List<BlockOperation> rejected;
+
+    /**
+     * The ids of every block removed by the batch.
+     */
+    public int[] removedIds;
+
+    /**
+     * Constructs a device event given device.
+     *
+     * @param device
+     * @param structure
+     * @param applied
+     * @param rejected
+     * @param removedIds
+     */
+    public BlockOperationBatchEvent(Device device, Structure structure, List<BlockOperation> applied, List<BlockOperation> rejected, int[] removedIds) {
+        super(device);
+        this.structure = structure;
+        this.applied = applied;
+        this.rejected = rejected;
+        this.removedIds = removedIds;
+    }
+
+    /**
+     * Executed when the event is called, but before it is delivered to the handlers.
+     */
+    @Override
+    public void onCalled() {
+        Structure.logger.info("Applied {} block operations to structure: {}, {} rejected, {} blocks removed", applied.size(), structure, rejected.size(), removedIds.length);
+    }
+}
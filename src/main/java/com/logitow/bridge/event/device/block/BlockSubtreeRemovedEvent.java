@@ -0,0 +1,50 @@
+package com.logitow.bridge.event.device.block;
+
+import com.logitow.bridge.build.Structure;
+import com.logitow.bridge.build.block.BlockOperation;
+import com.logitow.bridge.communication.Device;
+import com.logitow.bridge.event.device.DeviceEvent;
+
+/**
+ * Called once a block has been removed from a structure, along with every block attached to it.
+ */
+public class BlockSubtreeRemovedEvent extends DeviceEvent {
+
+    /**
+     * The structure the blocks were removed from.
+     */
+    public Structure structure;
+
+    /**
+     * The removal operation.
+     */
+    public BlockOperation operation;
+
+    /**
+     * The ids of every removed block, starting with the removed block itself.
+     */
+    public int[] removedIds;
+
+    /**
+     * Constructs a device event given device.
+     *
+     * @param device
+     * @param structure
+     * @param operation
+     * @param removedIds
+     */
+    public BlockSubtreeRemovedEvent(Device device, Structure structure, BlockOperation operation, int[] removedIds) {
+        super(device);
+        this.structure = structure;
+        this.operation = operation;
+        this.removedIds = removedIds;
+    }
+
+    /**
+     * Executed when the event is called, but before it is delivered to the handlers.
+     */
+    @Override
+    public void onCalled() {
+        Structure.logger.info("Removed {} blocks from structure: {}, starting at block: {}", removedIds.length, structure, operation.blockB);
+    }
+}
@@ -0,0 +1,23 @@
+package com.logitow.bridge.event.structure;
+
+import com.logitow.bridge.build.Structure;
+
+/**
+ * Called when the saved file of a structure is removed.
+ */
+public class StructureRemoveEvent extends StructureEvent {
+    /**
+     * The path the structure has been removed from.
+     */
+    public String removePath;
+
+    public StructureRemoveEvent(Structure structure, String removePath) {
+        super(structure);
+        this.removePath = removePath;
+    }
+
+    @Override
+    public void onCalled() {
+        Structure.logger.info("Structure: {}, removed from: {}", structure, removePath);
+    }
+}
@@ -0,0 +1,315 @@
+package com.logitow.bridge.util;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable map of int keys to values.
+ * Every modification returns a new map sharing all the unchanged nodes with the original,
+ * so it costs O(log n) and the original can keep being read from other threads.
+ * Implemented as a hash array mapped trie with 32 way nodes.
+ * @param <V>
+ */
+public final class PersistentIntMap<V> implements Iterable<V> {
+    /**
+     * The empty map.
+     */
+    private static final PersistentIntMap<?> EMPTY = new PersistentIntMap<>(Node.EMPTY, 0);
+
+    /**
+     * Number of hash bits consumed by a trie level.
+     */
+    private static final int BITS = 5;
+
+    /**
+     * The root node of the trie.
+     */
+    private final Node root;
+
+    /**
+     * The number of mapped keys.
+     */
+    private final int size;
+
+    private PersistentIntMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Gets the empty map.
+     * @param <V>
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public static <V> PersistentIntMap<V> empty() {
+        return (PersistentIntMap<V>) EMPTY;
+    }
+
+    /**
+     * Gets the value mapped to a key.
+     * @param key
+     * @return the value or null.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int hash = hash(key);
+        Node node = root;
+        for (int shift = 0; ; shift += BITS) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if((node.bitmap & bit) == 0) {
+                return null;
+            }
+            Object entry = node.entries[Integer.bitCount(node.bitmap & (bit - 1))];
+            if(entry instanceof Leaf) {
+                Leaf leaf = (Leaf) entry;
+                return leaf.key == key ? (V) leaf.value : null;
+            }
+            node = (Node) entry;
+        }
+    }
+
+    /**
+     * Checks whether a key is mapped.
+     * @param key
+     * @return
+     */
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Gets a map with the given key mapped to the given value.
+     * @param key
+     * @param value
+     * @return
+     */
+    public PersistentIntMap<V> put(int key, V value) {
+        if(value == null) {
+            throw new IllegalArgumentException("Can't map a null value!");
+        }
+        boolean[] added = new boolean[1];
+        Node newRoot = put(root, 0, hash(key), key, value, added);
+        if(newRoot == root) return this;
+        return new PersistentIntMap<>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * Gets a map without the given key.
+     * @param key
+     * @return
+     */
+    public PersistentIntMap<V> remove(int key) {
+        Object newRoot = remove(root, 0, hash(key), key);
+        if(newRoot == root) return this;
+        if(newRoot == null) return empty();
+        if(newRoot instanceof Leaf) {
+            Leaf leaf = (Leaf) newRoot;
+            newRoot = new Node(1 << (hash(leaf.key) & 31), new Object[]{leaf});
+        }
+        return new PersistentIntMap<>((Node) newRoot, size - 1);
+    }
+
+    /**
+     * Gets the number of mapped keys.
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks whether the map is empty.
+     * @return
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Iterates over the mapped values, in no particular order.
+     * @return
+     */
+    @Override
+    public Iterator<V> iterator() {
+        return new ValueIterator<>(root);
+    }
+
+    private static Node put(Node node, int shift, int hash, int key, Object value, boolean[] added) {
+        int bit = 1 << ((hash >>> shift) & 31);
+        int index = Integer.bitCount(node.bitmap & (bit - 1));
+        if((node.bitmap & bit) == 0) {
+            added[0] = true;
+            return node.insert(bit, index, new Leaf(key, value));
+        }
+        Object entry = node.entries[index];
+        if(entry instanceof Leaf) {
+            Leaf leaf = (Leaf) entry;
+            if(leaf.key == key) {
+                if(leaf.value == value) return node;
+                return node.replace(index, new Leaf(key, value));
+            }
+            added[0] = true;
+            return node.replace(index, merge(shift + BITS, leaf, hash(leaf.key), new Leaf(key, value), hash));
+        }
+        Node child = (Node) entry;
+        Node newChild = put(child, shift + BITS, hash, key, value, added);
+        if(newChild == child) return node;
+        return node.replace(index, newChild);
+    }
+
+    /**
+     * Removes a key from the subtrie.
+     * @return the new subtrie, a single leaf if only one is left, or null if it is empty.
+     */
+    private static Object remove(Node node, int shift, int hash, int key) {
+        int bit = 1 << ((hash >>> shift) & 31);
+        if((node.bitmap & bit) == 0) return node;
+        int index = Integer.bitCount(node.bitmap & (bit - 1));
+        Object entry = node.entries[index];
+        Object newEntry;
+        if(entry instanceof Leaf) {
+            if(((Leaf) entry).key != key) return node;
+            newEntry = null;
+        } else {
+            newEntry = remove((Node) entry, shift + BITS, hash, key);
+            if(newEntry == entry) return node;
+        }
+
+        if(newEntry == null) {
+            if(node.entries.length == 1) return null;
+            if(node.entries.length == 2 && node.entries[index ^ 1] instanceof Leaf) {
+                return node.entries[index ^ 1];
+            }
+            return node.delete(bit, index);
+        }
+        if(newEntry instanceof Leaf && node.entries.length == 1) {
+            return newEntry;
+        }
+        return node.replace(index, newEntry);
+    }
+
+    /**
+     * Creates the subtrie holding two leaves with different keys.
+     */
+    private static Node merge(int shift, Leaf a, int hashA, Leaf b, int hashB) {
+        int fragmentA = (hashA >>> shift) & 31;
+        int fragmentB = (hashB >>> shift) & 31;
+        if(fragmentA == fragmentB) {
+            return new Node(1 << fragmentA, new Object[]{merge(shift + BITS, a, hashA, b, hashB)});
+        }
+        Object[] entries = fragmentA < fragmentB ? new Object[]{a, b} : new Object[]{b, a};
+        return new Node((1 << fragmentA) | (1 << fragmentB), entries);
+    }
+
+    /**
+     * Spreads the bits of a key.
+     * The mixing is a bijection, so different keys never share a hash.
+     * @param key
+     * @return
+     */
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A key value pair.
+     */
+    private static final class Leaf {
+        final int key;
+        final Object value;
+
+        Leaf(int key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A trie node, holding leaves and child nodes in the order of their bitmap bits.
+     */
+    private static final class Node {
+        static final Node EMPTY = new Node(0, new Object[0]);
+
+        final int bitmap;
+        final Object[] entries;
+
+        Node(int bitmap, Object[] entries) {
+            this.bitmap = bitmap;
+            this.entries = entries;
+        }
+
+        Node insert(int bit, int index, Object entry) {
+            Object[] copy = new Object[entries.length + 1];
+            System.arraycopy(entries, 0, copy, 0, index);
+            copy[index] = entry;
+            System.arraycopy(entries, index, copy, index + 1, entries.length - index);
+            return new Node(bitmap | bit, copy);
+        }
+
+        Node replace(int index, Object entry) {
+            Object[] copy = entries.clone();
+            copy[index] = entry;
+            return new Node(bitmap, copy);
+        }
+
+        Node delete(int bit, int index) {
+            Object[] copy = new Object[entries.length - 1];
+            System.arraycopy(entries, 0, copy, 0, index);
+            System.arraycopy(entries, index + 1, copy, index, copy.length - index);
+            return new Node(bitmap & ~bit, copy);
+        }
+    }
+
+    /**
+     * Depth first iterator over the values of a trie.
+     * @param <V>
+     */
+    private static final class ValueIterator<V> implements Iterator<V> {
+        private final ArrayDeque<Node> nodes = new ArrayDeque<>();
+        private final ArrayDeque<Integer> positions = new ArrayDeque<>();
+        private Leaf next;
+
+        ValueIterator(Node root) {
+            nodes.push(root);
+            positions.push(0);
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (!nodes.isEmpty()) {
+                Node node = nodes.peek();
+                int position = positions.pop();
+                if(position >= node.entries.length) {
+                    nodes.pop();
+                    continue;
+                }
+                positions.push(position + 1);
+                Object entry = node.entries[position];
+                if(entry instanceof Leaf) {
+                    next = (Leaf) entry;
+                    return;
+                }
+                nodes.push((Node) entry);
+                positions.push(0);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V next() {
+            if(next == null) throw new NoSuchElementException();
+            V value = (V) next.value;
+            advance();
+            return value;
+        }
+    }
+}
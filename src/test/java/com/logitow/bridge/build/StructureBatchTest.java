@@ -0,0 +1,152 @@
+package com.logitow.bridge.build;
+
+import com.logitow.bridge.build.block.Block;
+import com.logitow.bridge.build.block.BlockOperation;
+import com.logitow.bridge.build.block.BlockOperationType;
+import com.logitow.bridge.build.block.BlockSide;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests applying batches of block operations, see Structure.applyAll.
+ */
+public class StructureBatchTest {
+    private Structure structure;
+
+    /**
+     * Builds 0 - 1 - 2 and 1 - 3 - 4.
+     */
+    @Before
+    public void setUp() {
+        structure = new Structure();
+        add(structure, 0, BlockSide.FRONT, 1);
+        add(structure, 1, BlockSide.TOP, 2);
+        add(structure, 1, BlockSide.RIGHT, 3);
+        add(structure, 3, BlockSide.TOP, 4);
+    }
+
+    @Test
+    public void movesLiveBlock() {
+        Block moved = structure.getBlockById(2);
+        long oldPosition = moved.coordinate.pack();
+        List<BlockOperation> operations = Collections.singletonList(
+                new BlockOperation(structure.getBlockById(4), BlockSide.BOTTOM, moved, BlockOperationType.BLOCK_ADD));
+
+        assertTrue(structure.applyAll(operations).isEmpty());
+
+        assertConsistent(structure);
+        assertEquals(6, structure.blocks.size());
+        Block block = structure.getBlockById(2);
+        assertEquals(4, block.parent);
+        assertTrue(contains(structure.getBlockById(4).children, 2));
+        assertFalse(contains(structure.getBlockById(1).children, 2));
+        assertNull(structure.getBlockByPosition(Vec3.fromPacked(oldPosition)));
+        assertSame(block, structure.getBlockByPosition(block.coordinate));
+    }
+
+    @Test
+    public void movesLiveBlockToAnotherSideOfItsParent() {
+        Block moved = structure.getBlockById(2);
+        long oldPosition = moved.coordinate.pack();
+        List<BlockOperation> operations = Collections.singletonList(
+                new BlockOperation(structure.getBlockById(1), BlockSide.LEFT, moved, BlockOperationType.BLOCK_ADD));
+
+        assertTrue(structure.applyAll(operations).isEmpty());
+
+        assertConsistent(structure);
+        Block block = structure.getBlockById(2);
+        assertEquals(1, block.parent);
+        assertEquals(1, count(structure.getBlockById(1).children, 2));
+        assertNull(structure.getBlockByPosition(Vec3.fromPacked(oldPosition)));
+        assertSame(block, structure.getBlockByPosition(block.coordinate));
+    }
+
+    @Test
+    public void rejectsAttachingBlockToItsSubtree() {
+        List<BlockOperation> operations = Collections.singletonList(
+                new BlockOperation(structure.getBlockById(4), BlockSide.TOP, structure.getBlockById(3), BlockOperationType.BLOCK_ADD));
+
+        assertEquals(1, structure.applyAll(operations).size());
+
+        assertConsistent(structure);
+        assertEquals(6, structure.blocks.size());
+        assertEquals(3, structure.getBlockById(4).parent);
+    }
+
+    @Test
+    public void replaysIntoOtherStructuresWithoutSharingBlocks() {
+        List<BlockOperation> operations = new ArrayList<>();
+        operations.add(new BlockOperation(structure.getBlockById(0), BlockSide.FRONT, structure.getBlockById(1), BlockOperationType.BLOCK_ADD));
+        operations.add(new BlockOperation(structure.getBlockById(1), BlockSide.TOP, structure.getBlockById(2), BlockOperationType.BLOCK_ADD));
+        Block blockA = operations.get(1).blockA, blockB = operations.get(1).blockB;
+
+        Structure first = new Structure(), second = new Structure();
+        assertTrue(first.applyAll(operations).isEmpty());
+        assertTrue(second.applyAll(operations).isEmpty());
+
+        assertSame(blockA, operations.get(1).blockA);
+        assertSame(blockB, operations.get(1).blockB);
+        assertConsistent(first);
+        assertConsistent(second);
+        assertTrue(first.snapshot().hasSameBlocks(second.snapshot()));
+        Set<Block> firstBlocks = Collections.newSetFromMap(new IdentityHashMap<>());
+        firstBlocks.addAll(first.blocks);
+        for (Block block :
+                second.blocks) {
+            assertFalse(firstBlocks.contains(block));
+        }
+        for (Block block :
+                structure.blocks) {
+            assertFalse(firstBlocks.contains(block));
+        }
+    }
+
+    /**
+     * Attaches a new block, checking it was added.
+     */
+    private static void add(Structure structure, int parent, BlockSide side, int id) {
+        structure.onBuildOperation(new BlockOperation(structure.getBlockById(parent), side, new Block(id), BlockOperationType.BLOCK_ADD));
+        assertNotNull(structure.getBlockById(id));
+    }
+
+    /**
+     * Checks the block list, the snapshot and the indexes agree.
+     */
+    private static void assertConsistent(Structure structure) {
+        assertEquals(structure.blocks.size(), structure.snapshot().size());
+        for (Block block :
+                structure.blocks) {
+            assertSame(block, structure.getBlockById(block.id));
+            assertSame(block, structure.getBlockByPosition(block.coordinate));
+            Block parent = structure.getBlockById(block.parent);
+            if(parent != null) {
+                assertEquals(1, count(parent.children, block.id));
+            }
+        }
+    }
+
+    private static boolean contains(int[] ids, int id) {
+        return count(ids, id) > 0;
+    }
+
+    private static int count(int[] ids, int id) {
+        int count = 0;
+        for (int value : ids) {
+            if(value == id) count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,212 @@
+package com.logitow.bridge.build;
+
+import com.logitow.bridge.build.block.Block;
+import com.logitow.bridge.build.block.BlockOperation;
+import com.logitow.bridge.build.block.BlockOperationType;
+import com.logitow.bridge.build.block.BlockSide;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests recovering structures from their journal, see StructureJournal.recover.
+ */
+public class StructureJournalTest {
+    /**
+     * The size of the log header: magic, version and checkpoint id.
+     */
+    private static final int LOG_HEADER_SIZE = 13;
+
+    /**
+     * The size of the length and CRC ahead of every logged change.
+     */
+    private static final int CHANGE_HEADER_SIZE = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File logFile;
+    private Random random;
+    private int nextId;
+
+    @Before
+    public void setUp() throws IOException {
+        logFile = new File(folder.newFolder("journal"), "test" + StructureJournal.EXTENSION);
+        random = new Random(42);
+        nextId = 1000;
+    }
+
+    @Test
+    public void recoversLoggedChanges() throws IOException {
+        Structure structure = new Structure();
+        StructureJournal journal = StructureJournal.open(structure, logFile);
+        addBlocks(structure, 40);
+        structure.customName = "journaled";
+        addBlocks(structure, 5);
+        assertTrue(structure.rotate(new Vec3(0, 90, 0)));
+        structure.removeBlock(structure.blocks.get(structure.blocks.size() - 1));
+        journal.close();
+
+        assertSameState(structure.snapshot(), structure.customName, StructureJournal.recover(logFile));
+    }
+
+    @Test
+    public void recoversCheckpoint() throws IOException {
+        Structure structure = new Structure();
+        addBlocks(structure, 60);
+        structure.customName = "checkpointed";
+        assertTrue(structure.rotate(new Vec3(90, 0, 90)));
+        StructureJournal journal = StructureJournal.open(structure, logFile);
+        journal.close();
+
+        //Only the header is logged, the structure is read from the checkpoint.
+        assertEquals(LOG_HEADER_SIZE, logFile.length());
+        assertSameState(structure.snapshot(), structure.customName, StructureJournal.recover(logFile));
+    }
+
+    @Test
+    public void recoversCheckpointWithoutLog() throws IOException {
+        Structure structure = new Structure();
+        StructureJournal journal = StructureJournal.open(structure, logFile);
+        addBlocks(structure, 30);
+        journal.checkpoint();
+        journal.close();
+        assertTrue(logFile.delete());
+
+        assertSameState(structure.snapshot(), structure.customName, StructureJournal.recover(logFile));
+    }
+
+    @Test
+    public void recoversChangesBeforeTornTail() throws IOException {
+        Structure structure = new Structure();
+        StructureJournal journal = StructureJournal.open(structure, logFile);
+        addBlocks(structure, 20);
+        journal.sync();
+        StructureSnapshot synced = structure.snapshot();
+        long syncedLength = logFile.length();
+
+        addBlocks(structure, 1);
+        journal.close();
+        long length = logFile.length();
+        assertTrue(length > syncedLength);
+
+        //Crashing halfway through writing the last change.
+        truncate(logFile, syncedLength + (length - syncedLength) / 2);
+        assertSameState(synced, null, StructureJournal.recover(logFile));
+
+        //Crashing right after writing the length of the last change.
+        truncate(logFile, syncedLength + 4);
+        assertSameState(synced, null, StructureJournal.recover(logFile));
+    }
+
+    @Test
+    public void stopsReplayAtChecksumMismatch() throws IOException {
+        Structure structure = new Structure();
+        StructureJournal journal = StructureJournal.open(structure, logFile);
+        List<StructureSnapshot> states = new ArrayList<>();
+        List<Long> lengths = new ArrayList<>();
+        states.add(structure.snapshot());
+        lengths.add(logFile.length());
+        for (int i = 0; i < 5; i++) {
+            addBlocks(structure, 1);
+            journal.sync();
+            states.add(structure.snapshot());
+            lengths.add(logFile.length());
+        }
+        journal.close();
+        assertEquals(LOG_HEADER_SIZE, (long) lengths.get(0));
+
+        //Corrupting the third change, the changes after it aren't replayed either.
+        corrupt(logFile, lengths.get(2) + CHANGE_HEADER_SIZE);
+        assertSameState(states.get(2), null, StructureJournal.recover(logFile));
+
+        //Corrupting the checksum of the first change, only the checkpoint is recovered.
+        corrupt(logFile, LOG_HEADER_SIZE + 4);
+        assertSameState(states.get(0), null, StructureJournal.recover(logFile));
+    }
+
+    @Test
+    public void ignoresLogOfStaleCheckpoint() throws IOException {
+        Structure structure = new Structure();
+        addBlocks(structure, 10);
+        StructureSnapshot checkpointed = structure.snapshot();
+        StructureJournal journal = StructureJournal.open(structure, logFile);
+        addBlocks(structure, 10);
+        journal.close();
+        assertFalse(structure.snapshot().hasSameBlocks(checkpointed));
+
+        //The log of a previous checkpoint, as left by a crash while starting the log over.
+        corrupt(logFile, LOG_HEADER_SIZE - 1);
+        assertSameState(checkpointed, null, StructureJournal.recover(logFile));
+    }
+
+    @Test
+    public void recoversNothingWithoutCheckpoint() throws IOException {
+        assertNull(StructureJournal.recover(logFile));
+
+        Structure structure = new Structure();
+        StructureJournal journal = StructureJournal.open(structure, logFile);
+        addBlocks(structure, 3);
+        journal.delete();
+        assertNull(StructureJournal.recover(logFile));
+    }
+
+    /**
+     * Attaches blocks at random free sides of the structure.
+     */
+    private void addBlocks(Structure structure, int count) {
+        int target = structure.blocks.size() + count;
+        while (structure.blocks.size() < target) {
+            Block parent = structure.blocks.get(random.nextInt(structure.blocks.size()));
+            if(parent.id == -1) continue;
+            BlockSide side = parent.id == 0 ? BlockSide.FRONT : BlockSide.getBlockSide(2 + random.nextInt(5));
+            BlockSide direction = parent.getRelativeDirection(side);
+            if(direction == BlockSide.UNDEFINED || parent.children[direction.sideId - 1] != -10) continue;
+            Block block = new Block(nextId++);
+            structure.onBuildOperation(new BlockOperation(parent, side, block, BlockOperationType.BLOCK_ADD));
+        }
+    }
+
+    /**
+     * Checks a recovered structure against the state it was journaled with.
+     */
+    private static void assertSameState(StructureSnapshot expected, String customName, Structure recovered) {
+        assertNotNull(recovered);
+        StructureSnapshot snapshot = recovered.snapshot();
+        assertEquals(expected.getUuid(), recovered.uuid);
+        assertEquals(customName, recovered.customName);
+        assertEquals(expected.getOrientation(), snapshot.getOrientation());
+        assertEquals(expected.size(), snapshot.size());
+        assertTrue(expected.hasSameBlocks(snapshot));
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        try (RandomAccessFile access = new RandomAccessFile(file, "rw")) {
+            access.setLength(length);
+        }
+    }
+
+    /**
+     * Flips the bits of a byte of a file.
+     */
+    private static void corrupt(File file, long position) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        bytes[(int) position] ^= 0xFF;
+        Files.write(file.toPath(), bytes);
+    }
+}
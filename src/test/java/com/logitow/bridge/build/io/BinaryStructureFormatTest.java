@@ -0,0 +1,400 @@
+package com.logitow.bridge.build.io;
+
+import com.logitow.bridge.build.Structure;
+import com.logitow.bridge.build.StructureSnapshot;
+import com.logitow.bridge.build.Vec3;
+import com.logitow.bridge.build.block.Block;
+import com.logitow.bridge.build.block.BlockOperation;
+import com.logitow.bridge.build.block.BlockOperationType;
+import com.logitow.bridge.build.block.BlockSide;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests reading and writing structure files, see BinaryStructureFormat and StructureFormat.
+ */
+public class BinaryStructureFormatTest {
+    /**
+     * The size of the header ahead of the custom name: magic, version, flags and uuid.
+     */
+    private static final int HEADER_SIZE = 22;
+
+    /**
+     * The position of the version byte.
+     */
+    private static final int VERSION_POSITION = 4;
+
+    /**
+     * The largest section length the format accepts, see BinaryStructureFormat.MAX_SECTION_LENGTH.
+     */
+    private static final int MAX_SECTION_LENGTH = 1 << 26;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Random random;
+    private int nextId;
+    private Structure structure;
+
+    @Before
+    public void setUp() {
+        random = new Random(7);
+        nextId = 0;
+        structure = new Structure();
+        addBlocks(structure, 50);
+        structure.customName = "format test";
+        assertTrue(structure.rotate(new Vec3(0, 90, 90)));
+    }
+
+    @Test
+    public void roundTripsStructure() throws IOException {
+        Structure read = BinaryStructureFormat.read(new ByteArrayInputStream(write(structure)));
+
+        assertSameStructure(structure, read);
+        for (Block block :
+                read.blocks) {
+            assertEquals(structure.getBlockById(block.id).coordinate, block.coordinate);
+            assertSame(block, read.getBlockByPosition(block.coordinate));
+        }
+    }
+
+    @Test
+    public void roundTripsStructureWithoutName() throws IOException {
+        structure.customName = null;
+        byte[] bytes = write(structure);
+
+        assertSameStructure(structure, BinaryStructureFormat.read(new ByteArrayInputStream(bytes)));
+        StructureHeader header = BinaryStructureFormat.readHeader(new ByteArrayInputStream(bytes));
+        assertEquals(structure.uuid, header.uuid);
+        assertNull(header.customName);
+    }
+
+    @Test
+    public void detectsFormatByMagic() throws IOException {
+        byte[] binary = write(structure);
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        StructureFormat.JSON.write(structure, json);
+
+        assertTrue(BinaryStructureFormat.hasMagic(binary));
+        assertFalse(BinaryStructureFormat.hasMagic(json.toByteArray()));
+        assertFalse(BinaryStructureFormat.hasMagic(Arrays.copyOf(binary, 3)));
+
+        //Detecting doesn't consume the stream.
+        InputStream in = new BufferedInputStream(new ByteArrayInputStream(binary));
+        assertEquals(StructureFormat.BINARY, StructureFormat.detect(in));
+        assertSameStructure(structure, StructureFormat.BINARY.read(in));
+        in = new BufferedInputStream(new ByteArrayInputStream(json.toByteArray()));
+        assertEquals(StructureFormat.JSON, StructureFormat.detect(in));
+        assertSameStructure(structure, StructureFormat.JSON.read(in));
+
+        //Files too short for the magic are JSON.
+        assertEquals(StructureFormat.JSON, StructureFormat.detect(new BufferedInputStream(new ByteArrayInputStream(new byte[]{'L', 'G'}))));
+    }
+
+    @Test
+    public void rejectsUnsupportedVersions() throws IOException {
+        byte[] bytes = write(structure);
+        for (int version : new int[]{0, BinaryStructureFormat.VERSION + 1}) {
+            bytes[VERSION_POSITION] = (byte) version;
+            assertRejected(bytes);
+        }
+    }
+
+    @Test
+    public void readsVersion1() throws IOException {
+        byte[] bytes = toVersion1(write(structure));
+
+        assertSameStructure(structure, BinaryStructureFormat.read(new ByteArrayInputStream(bytes)));
+        //Not stored in version 1, computed from the blocks.
+        assertSameMetadata(StructureMetadata.of(structure), BinaryStructureFormat.readMetadata(new ByteArrayInputStream(bytes)));
+        assertArrayEquals(previewOf(structure), toBytes(BinaryStructureFormat.readPreview(new ByteArrayInputStream(bytes))));
+        assertArrayEquals(BlockIdFilter.idsOf(structure), BinaryStructureFormat.readBlockIds(new ByteArrayInputStream(bytes)));
+        StructureHeader header = BinaryStructureFormat.readStoredMetadata(new ByteArrayInputStream(bytes));
+        assertFalse(header instanceof StructureMetadata);
+        assertEquals(structure.customName, header.customName);
+    }
+
+    @Test
+    public void loadsJsonFiles() throws IOException {
+        File file = folder.newFile("json.logitow");
+        Structure.saveToFile(structure, file.getPath(), StructureFormat.JSON);
+        assertFalse(BinaryStructureFormat.hasMagic(Arrays.copyOf(Files.readAllBytes(file.toPath()), 4)));
+
+        assertSameStructure(structure, Structure.loadFromFile(file.getPath()));
+        assertSameMetadata(StructureMetadata.of(structure), Structure.readMetadata(file.getPath()));
+        assertArrayEquals(previewOf(structure), toBytes(Structure.readPreview(file.getPath())));
+    }
+
+    @Test
+    public void readsMetadataWithoutBlocks() throws IOException {
+        byte[] bytes = write(structure);
+        //Only the header and the sections, reading the blocks would fail.
+        byte[] preamble = Arrays.copyOf(bytes, blocksPosition(bytes));
+
+        StructureMetadata metadata = BinaryStructureFormat.readMetadata(new ByteArrayInputStream(preamble));
+        assertSameMetadata(StructureMetadata.of(structure), metadata);
+        assertEquals(structure.fingerprint(), metadata.fingerprint);
+        assertNull(metadata.reference);
+        assertTrue(BinaryStructureFormat.readStoredMetadata(new ByteArrayInputStream(preamble)) instanceof StructureMetadata);
+        assertArrayEquals(BlockIdFilter.idsOf(structure), BinaryStructureFormat.readBlockIds(new ByteArrayInputStream(preamble)));
+        BlockIdFilter filter = BinaryStructureFormat.readBlockFilter(new ByteArrayInputStream(preamble));
+        for (Block block :
+                structure.blocks) {
+            assertTrue(filter.mightContain(block.id));
+        }
+    }
+
+    @Test
+    public void readsPreviewWithoutBlocks() throws IOException {
+        byte[] bytes = write(structure);
+        byte[] preamble = Arrays.copyOf(bytes, blocksPosition(bytes));
+
+        StructurePreview preview = BinaryStructureFormat.readPreview(new ByteArrayInputStream(preamble));
+        assertArrayEquals(previewOf(structure), toBytes(preview));
+        for (StructurePreview.View view :
+                StructurePreview.View.values()) {
+            assertNotNull(preview.get(view));
+        }
+    }
+
+    @Test
+    public void skipsUnknownSections() throws IOException {
+        byte[] bytes = write(structure);
+        ByteArrayOutputStream section = new ByteArrayOutputStream();
+        VarInt.writeUnsigned(section, 100);
+        VarInt.writeUnsigned(section, 3);
+        section.write(new byte[]{1, 2, 3});
+
+        assertSameStructure(structure, BinaryStructureFormat.read(new ByteArrayInputStream(insert(bytes, sectionsPosition(bytes), section.toByteArray()))));
+    }
+
+    @Test
+    public void writesReferences() throws IOException {
+        File directory = folder.newFolder("references");
+        File target = new File(directory, "target.logitow");
+        Structure.saveToFile(structure, target.getPath(), StructureFormat.BINARY);
+
+        Structure copy = structure.snapshot().toStructure();
+        copy.uuid = UUID.randomUUID();
+        copy.customName = "copy";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryStructureFormat.writeReference(copy, "target", out);
+        byte[] bytes = out.toByteArray();
+
+        try {
+            BinaryStructureFormat.read(new ByteArrayInputStream(bytes));
+            fail("Read the blocks of a reference.");
+        } catch (StructureReferenceException e) {
+            assertEquals("target", e.target);
+            assertEquals(copy.uuid, e.header.uuid);
+            assertEquals("copy", e.header.customName);
+            assertEquals(copy.getOrientation(), e.orientation);
+        }
+        StructureMetadata metadata = BinaryStructureFormat.readMetadata(new ByteArrayInputStream(bytes));
+        assertEquals("target", metadata.reference);
+        assertEquals(structure.blocks.size(), metadata.blockCount);
+
+        //Loading the file reads the blocks of the referenced file.
+        File file = new File(directory, "copy.logitow");
+        try (OutputStream fileOut = new FileOutputStream(file)) {
+            fileOut.write(bytes);
+        }
+        assertSameStructure(copy, Structure.loadFromFile(file.getPath()));
+    }
+
+    @Test
+    public void rejectsOversizedSections() throws IOException {
+        byte[] bytes = write(structure);
+        int position = sectionsPosition(bytes);
+
+        for (int length : new int[]{MAX_SECTION_LENGTH + 1, Integer.MAX_VALUE, -1}) {
+            ByteArrayOutputStream section = new ByteArrayOutputStream();
+            VarInt.writeUnsigned(section, BinaryStructureFormat.SECTION_PREVIEW);
+            VarInt.writeUnsigned(section, length);
+            byte[] corrupt = insert(bytes, position, section.toByteArray());
+            assertRejected(corrupt);
+            try {
+                BinaryStructureFormat.readPreview(new ByteArrayInputStream(corrupt));
+                fail("Read a section of length: " + length);
+            } catch (IOException e) {
+                //Expected.
+            }
+        }
+    }
+
+    @Test
+    public void rejectsOversizedNames() throws IOException {
+        structure.customName = "x";
+        byte[] bytes = write(structure);
+        ByteArrayOutputStream length = new ByteArrayOutputStream();
+        VarInt.writeUnsigned(length, Integer.MAX_VALUE);
+        byte[] corrupt = insert(Arrays.copyOf(bytes, HEADER_SIZE), HEADER_SIZE, length.toByteArray());
+
+        try {
+            BinaryStructureFormat.readHeader(new ByteArrayInputStream(corrupt));
+            fail("Read a name of length: " + Integer.MAX_VALUE);
+        } catch (IOException e) {
+            //Expected.
+        }
+    }
+
+    @Test
+    public void rejectsSectionsPastTheEnd() throws IOException {
+        byte[] bytes = write(structure);
+        ByteArrayOutputStream section = new ByteArrayOutputStream();
+        VarInt.writeUnsigned(section, 100);
+        VarInt.writeUnsigned(section, bytes.length);
+        byte[] corrupt = insert(bytes, sectionsPosition(bytes), section.toByteArray());
+
+        assertRejected(corrupt);
+    }
+
+    @Test
+    public void rejectsTruncatedFiles() throws IOException {
+        Structure small = new Structure();
+        addBlocks(small, 5);
+        small.customName = "small";
+        byte[] bytes = write(small);
+
+        for (int length = 0; length < bytes.length; length++) {
+            assertRejected(Arrays.copyOf(bytes, length));
+        }
+        assertSameStructure(small, BinaryStructureFormat.read(new ByteArrayInputStream(bytes)));
+    }
+
+    /**
+     * Attaches blocks at random free sides of the structure, with ids of every color and no overlaps.
+     */
+    private void addBlocks(Structure structure, int count) {
+        int target = structure.blocks.size() + count;
+        while (structure.blocks.size() < target) {
+            Block parent = structure.blocks.get(random.nextInt(structure.blocks.size()));
+            if(parent.id == -1) continue;
+            BlockSide side = parent.id == 0 ? BlockSide.FRONT : BlockSide.getBlockSide(2 + random.nextInt(5));
+            BlockSide direction = parent.getRelativeDirection(side);
+            if(direction == BlockSide.UNDEFINED || parent.children[direction.sideId - 1] != -10) continue;
+            Block block = new Block((2 + nextId % 9) * 1048576 + nextId++);
+            structure.onBuildOperation(new BlockOperation(parent, side, block, BlockOperationType.BLOCK_ADD));
+            //Keeping only blocks of their own position.
+            if(structure.getBlockByPosition(block.coordinate) != block) structure.removeBlock(block);
+        }
+    }
+
+    private static byte[] write(Structure structure) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryStructureFormat.write(structure, out);
+        return out.toByteArray();
+    }
+
+    private static byte[] previewOf(Structure structure) throws IOException {
+        return toBytes(StructurePreview.of(structure));
+    }
+
+    private static byte[] toBytes(StructurePreview preview) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        preview.write(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Checks that reading the data fails with an IOException.
+     */
+    private static void assertRejected(byte[] bytes) {
+        try {
+            BinaryStructureFormat.read(new ByteArrayInputStream(bytes));
+            fail("Read a structure from " + bytes.length + " corrupt bytes.");
+        } catch (IOException e) {
+            //Expected.
+        }
+    }
+
+    private static void assertSameStructure(Structure expected, Structure read) {
+        assertNotNull(read);
+        StructureSnapshot snapshot = read.snapshot();
+        assertEquals(expected.uuid, read.uuid);
+        assertEquals(expected.customName, read.customName);
+        assertEquals(expected.getOrientation(), snapshot.getOrientation());
+        assertEquals(expected.blocks.size(), snapshot.size());
+        assertTrue(expected.snapshot().hasSameBlocks(snapshot));
+    }
+
+    private static void assertSameMetadata(StructureMetadata expected, StructureMetadata read) {
+        assertEquals(expected.uuid, read.uuid);
+        assertEquals(expected.customName, read.customName);
+        assertEquals(expected.blockCount, read.blockCount);
+        assertEquals(expected.min, read.min);
+        assertEquals(expected.max, read.max);
+        assertEquals(expected.colorCounts, read.colorCounts);
+    }
+
+    /**
+     * Gets the position of the first section, after the header and the rotation.
+     */
+    private static int sectionsPosition(byte[] bytes) throws IOException {
+        int position = HEADER_SIZE;
+        if((bytes[5] & 1) != 0) {
+            ByteArrayInputStream in = new ByteArrayInputStream(bytes, position, bytes.length - position);
+            int length = VarInt.readUnsigned(in);
+            position = bytes.length - in.available() + length;
+        }
+        return position + 1;
+    }
+
+    /**
+     * Gets the position of the blocks, after the sections.
+     */
+    private static int blocksPosition(byte[] bytes) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes, sectionsPosition(bytes), bytes.length);
+        while (VarInt.readUnsigned(in) != BinaryStructureFormat.SECTION_END) {
+            int length = VarInt.readUnsigned(in);
+            assertEquals(length, in.skip(length));
+        }
+        return bytes.length - in.available();
+    }
+
+    /**
+     * Rewrites a file in version 1, without the sections.
+     */
+    private static byte[] toVersion1(byte[] bytes) throws IOException {
+        int sections = sectionsPosition(bytes);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(bytes, 0, sections);
+        int blocks = blocksPosition(bytes);
+        out.write(bytes, blocks, bytes.length - blocks);
+        byte[] version1 = out.toByteArray();
+        version1[VERSION_POSITION] = 1;
+        return version1;
+    }
+
+    private static byte[] insert(byte[] bytes, int position, byte[] inserted) {
+        byte[] result = new byte[bytes.length + inserted.length];
+        System.arraycopy(bytes, 0, result, 0, position);
+        System.arraycopy(inserted, 0, result, position, inserted.length);
+        System.arraycopy(bytes, position, result, position + inserted.length, bytes.length - position);
+        return result;
+    }
+}
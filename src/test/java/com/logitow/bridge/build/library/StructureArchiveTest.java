@@ -0,0 +1,236 @@
+package com.logitow.bridge.build.library;
+
+import com.logitow.bridge.build.Structure;
+import com.logitow.bridge.build.block.Block;
+import com.logitow.bridge.build.block.BlockOperation;
+import com.logitow.bridge.build.block.BlockOperationType;
+import com.logitow.bridge.build.block.BlockSide;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the records of structure archives, see StructureArchive.
+ */
+public class StructureArchiveTest {
+    /**
+     * The size of the archive header: magic, version and reserved bytes.
+     */
+    private static final int HEADER_SIZE = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private Random random;
+    private int nextId;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(folder.newFolder("archive"), "structures.lgta");
+        random = new Random(11);
+        nextId = 1000;
+    }
+
+    @Test
+    public void readsRecordsAfterReopening() throws IOException {
+        Structure first = structure("first", 20);
+        Structure second = structure("second", 30);
+        Structure unnamed = structure(null, 10);
+        StructureArchive archive = StructureArchive.open(file);
+        archive.put(first);
+        archive.put(second);
+        archive.put(unnamed);
+        archive.close();
+
+        archive = StructureArchive.open(file);
+        assertEquals(3, archive.size());
+        assertEquals(new TreeSet<>(Arrays.asList("first", "second", unnamed.uuid.toString())), archive.getNames());
+        assertSameStructure(first, archive.load("first"));
+        assertSameStructure(second, archive.load(second.uuid));
+        assertSameStructure(unnamed, archive.load(unnamed.uuid.toString()));
+        assertNull(archive.load("missing"));
+        assertEquals(file.length(), archive.getFileSize());
+        archive.close();
+    }
+
+    @Test
+    public void keepsLatestRecords() throws IOException {
+        Structure replaced = structure("replaced", 20);
+        Structure removed = structure("removed", 20);
+        StructureArchive archive = StructureArchive.open(file);
+        archive.put(replaced);
+        archive.put(removed);
+        addBlocks(replaced, 10);
+        archive.put(replaced);
+        assertTrue(archive.remove("removed"));
+        assertFalse(archive.remove("removed"));
+        archive.close();
+
+        //The replaced record and the removal are replayed when opening.
+        archive = StructureArchive.open(file);
+        assertEquals(1, archive.size());
+        assertFalse(archive.contains("removed"));
+        assertFalse(archive.contains(removed.uuid));
+        assertSameStructure(replaced, archive.load("replaced"));
+        assertTrue(archive.getGarbageSize() > 0);
+
+        //Compaction only keeps the latest record.
+        long size = archive.getFileSize();
+        archive.compact();
+        assertEquals(0, archive.getGarbageSize());
+        assertTrue(archive.getFileSize() < size);
+        assertEquals(file.length(), archive.getFileSize());
+        assertSameStructure(replaced, archive.load("replaced"));
+        archive.close();
+
+        archive = StructureArchive.open(file);
+        assertEquals(1, archive.size());
+        assertSameStructure(replaced, archive.load(replaced.uuid));
+        archive.close();
+    }
+
+    @Test
+    public void dropsTornRecord() throws IOException {
+        Structure first = structure("first", 20);
+        StructureArchive archive = StructureArchive.open(file);
+        archive.put(first);
+        long length = archive.getFileSize();
+        archive.put(structure("second", 20));
+        archive.close();
+
+        //Crashing halfway through appending the second record.
+        truncate(file, length + (file.length() - length) / 2);
+        archive = StructureArchive.open(file);
+        assertEquals(1, archive.size());
+        assertFalse(archive.contains("second"));
+        assertSameStructure(first, archive.load("first"));
+        assertEquals(length, file.length());
+
+        //Appending after the dropped record.
+        Structure third = structure("third", 5);
+        archive.put(third);
+        archive.close();
+        archive = StructureArchive.open(file);
+        assertEquals(2, archive.size());
+        assertSameStructure(third, archive.load("third"));
+        archive.close();
+
+        //Crashing within the header of the record.
+        truncate(file, length + 10);
+        archive = StructureArchive.open(file);
+        assertEquals(1, archive.size());
+        assertEquals(length, file.length());
+        archive.close();
+    }
+
+    @Test
+    public void detectsDamagedRecord() throws IOException {
+        StructureArchive archive = StructureArchive.open(file);
+        archive.put(structure("damaged", 20));
+        archive.close();
+
+        //Flipping the bits of the last byte of the record.
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        bytes[bytes.length - 1] ^= 0xFF;
+        Files.write(file.toPath(), bytes);
+
+        archive = StructureArchive.open(file);
+        assertTrue(archive.contains("damaged"));
+        try {
+            archive.load("damaged");
+            fail("Loaded a damaged record.");
+        } catch (IOException e) {
+            //Expected.
+        }
+        archive.close();
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        Files.write(file.toPath(), "{\"blocks\":[]}".getBytes(StandardCharsets.UTF_8));
+        try {
+            StructureArchive.open(file);
+            fail("Opened a file which isn't an archive.");
+        } catch (IOException e) {
+            //Expected.
+        }
+
+        //Another version of the layout.
+        byte[] header = {'L', 'G', 'T', 'A', 2, 0, 0, 0};
+        Files.write(file.toPath(), header);
+        try {
+            StructureArchive.open(file);
+            fail("Opened an archive of an unsupported version.");
+        } catch (IOException e) {
+            //Expected.
+        }
+    }
+
+    @Test
+    public void createsEmptyArchive() throws IOException {
+        StructureArchive archive = StructureArchive.open(file);
+        assertEquals(0, archive.size());
+        assertEquals(HEADER_SIZE, archive.getFileSize());
+        archive.close();
+
+        assertEquals(HEADER_SIZE, file.length());
+        archive = StructureArchive.open(file);
+        assertEquals(0, archive.size());
+        archive.close();
+    }
+
+    private Structure structure(String name, int blocks) {
+        Structure structure = new Structure();
+        structure.customName = name;
+        addBlocks(structure, blocks);
+        return structure;
+    }
+
+    /**
+     * Attaches blocks at random free sides of the structure.
+     */
+    private void addBlocks(Structure structure, int count) {
+        int target = structure.blocks.size() + count;
+        while (structure.blocks.size() < target) {
+            Block parent = structure.blocks.get(random.nextInt(structure.blocks.size()));
+            if(parent.id == -1) continue;
+            BlockSide side = parent.id == 0 ? BlockSide.FRONT : BlockSide.getBlockSide(2 + random.nextInt(5));
+            BlockSide direction = parent.getRelativeDirection(side);
+            if(direction == BlockSide.UNDEFINED || parent.children[direction.sideId - 1] != -10) continue;
+            Block block = new Block(nextId++);
+            structure.onBuildOperation(new BlockOperation(parent, side, block, BlockOperationType.BLOCK_ADD));
+        }
+    }
+
+    private static void assertSameStructure(Structure expected, Structure loaded) {
+        assertNotNull(loaded);
+        assertEquals(expected.uuid, loaded.uuid);
+        assertEquals(expected.customName, loaded.customName);
+        assertEquals(expected.blocks.size(), loaded.blocks.size());
+        assertTrue(expected.snapshot().hasSameBlocks(loaded.snapshot()));
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        try (RandomAccessFile access = new RandomAccessFile(file, "rw")) {
+            access.setLength(length);
+        }
+    }
+}